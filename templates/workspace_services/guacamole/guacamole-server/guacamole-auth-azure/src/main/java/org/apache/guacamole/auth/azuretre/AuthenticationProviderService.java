@@ -19,11 +19,11 @@
 package org.apache.guacamole.auth.azuretre;
 
 import com.auth0.jwk.Jwk;
-import com.auth0.jwk.UrlJwkProvider;
+import com.auth0.jwk.JwkException;
+import com.auth0.jwk.JwkProvider;
 import com.auth0.jwt.JWT;
 import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.algorithms.Algorithm;
-import com.auth0.jwt.interfaces.Claim;
 import com.auth0.jwt.interfaces.DecodedJWT;
 import org.apache.guacamole.net.auth.credentials.CredentialsInfo;
 import org.apache.guacamole.net.auth.credentials.GuacamoleInvalidCredentialsException;
@@ -32,16 +32,70 @@ import org.slf4j.LoggerFactory;
 
 import java.security.interfaces.RSAPublicKey;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Service responsible for validating access tokens issued to TRE users.
  */
 public final class AuthenticationProviderService {
 
+    /** Roles allowed to use Guacamole, lower-cased. */
+    private static final Set<String> AUTHORISED_ROLES = Set.of(
+        "workspaceowner",
+        "workspaceresearcher",
+        "airlockmanager");
+
     /** Logger for validation errors. */
     private static final Logger LOGGER = LoggerFactory.getLogger(
         AzureTREAuthenticationProvider.class);
 
+    /** Extension configuration. */
+    private final TreConfiguration configuration;
+
+    /** Tokens that already passed validation. */
+    private final ValidatedTokenCache tokenCache;
+
+    /** Verifiers indexed by the key id they were built for. */
+    private final Map<String, KeyVerifier> verifiers =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Creates a service for the given configuration.
+     *
+     * @param treConfiguration extension configuration.
+     */
+    public AuthenticationProviderService(
+        final TreConfiguration treConfiguration) {
+        this(
+            treConfiguration,
+            new ValidatedTokenCache(treConfiguration.getTokenCacheSize()));
+    }
+
+    /**
+     * Creates a service backed by the given token cache.
+     *
+     * @param treConfiguration     extension configuration.
+     * @param validatedTokenCache  cache of previously validated tokens.
+     */
+    public AuthenticationProviderService(
+        final TreConfiguration treConfiguration,
+        final ValidatedTokenCache validatedTokenCache) {
+        this.configuration = treConfiguration;
+        this.tokenCache = validatedTokenCache;
+    }
+
+    /**
+     * Returns the cache of previously validated tokens.
+     *
+     * @return validated token cache.
+     */
+    public ValidatedTokenCache getTokenCache() {
+        return tokenCache;
+    }
+
     /**
      * Validates the supplied JWT token using the provided JWK provider.
      *
@@ -51,47 +105,33 @@ public final class AuthenticationProviderService {
      */
     public void validateToken(
         final String token,
-        final UrlJwkProvider jwkProvider)
+        final JwkProvider jwkProvider)
         throws GuacamoleInvalidCredentialsException {
+        if (tokenCache.contains(token)) {
+            LOGGER.debug("Token validation served from cache");
+            return;
+        }
+
         try {
-            if (System.getenv("AUDIENCE").length() == 0) {
-                throw new Exception("AUDIENCE is not provided");
-            }
-            if (System.getenv("ISSUER").length() == 0) {
-                throw new Exception("ISSUER is not provided");
-            }
+            final DecodedJWT decoded = JWT.decode(token);
+            final DecodedJWT jwt = getVerifier(decoded.getKeyId(), jwkProvider)
+                .verify(decoded);
 
-            final Jwk jwk = jwkProvider.get(JWT.decode(token).getKeyId());
-            final Algorithm algorithm = Algorithm.RSA256(
-                (RSAPublicKey) jwk.getPublicKey(),
-                null);
-            final JWTVerifier verifier = JWT.require(algorithm)
-                .withAudience(System.getenv("AUDIENCE"))
-                .withClaimPresence("roles")
-                .withIssuer(System.getenv("ISSUER"))
-                .build();
-
-            final DecodedJWT jwt = verifier.verify(token);
-            final Claim roles = jwt.getClaim("roles");
-            if (roles == null
-                || roles.isNull()
-                || roles.asArray(Object.class).length == 0) {
+            final List<String> roles = jwt.getClaim("roles")
+                .asList(String.class);
+            if (roles == null || roles.isEmpty()) {
                 throw new GuacamoleInvalidCredentialsException(
                     "Token must contain a 'roles' claim",
                     CredentialsInfo.USERNAME_PASSWORD);
             }
-
-            final List<String> rolesList = roles.asList(String.class);
-            final boolean hasAuthorisedRole = rolesList.stream().anyMatch(
-                role -> role.equalsIgnoreCase("WorkspaceOwner")
-                    || role.equalsIgnoreCase("WorkspaceResearcher")
-                    || role.equalsIgnoreCase("AirlockManager"));
-            if (!hasAuthorisedRole) {
+            if (!hasAuthorisedRole(roles)) {
                 throw new GuacamoleInvalidCredentialsException(
                     "User must have workspace owner, workspace researcher, "
                         + "or Airlock Manager role",
                     CredentialsInfo.USERNAME_PASSWORD);
             }
+
+            tokenCache.put(token, jwt.getExpiresAtAsInstant());
         } catch (final GuacamoleInvalidCredentialsException ex) {
             // Re-throw without logging to avoid leaking role information.
             throw ex;
@@ -110,4 +150,54 @@ public final class AuthenticationProviderService {
                 CredentialsInfo.USERNAME_PASSWORD);
         }
     }
+
+    private JWTVerifier getVerifier(
+        final String keyId,
+        final JwkProvider jwkProvider) throws JwkException {
+        final Jwk jwk = jwkProvider.get(keyId);
+        final KeyVerifier cached = keyId == null ? null : verifiers.get(keyId);
+        if (cached != null && cached.jwk == jwk) {
+            return cached.verifier;
+        }
+
+        final Algorithm algorithm = Algorithm.RSA256(
+            (RSAPublicKey) jwk.getPublicKey(),
+            null);
+        final JWTVerifier verifier = JWT.require(algorithm)
+            .withAudience(configuration.getAudience())
+            .withClaimPresence("roles")
+            .withIssuer(configuration.getIssuer())
+            .build();
+        if (keyId != null) {
+            verifiers.put(keyId, new KeyVerifier(jwk, verifier));
+        }
+        return verifier;
+    }
+
+    private static boolean hasAuthorisedRole(final List<String> roles) {
+        for (final String role : roles) {
+            if (role != null
+                && AUTHORISED_ROLES.contains(role.toLowerCase(Locale.ROOT))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Verifier built for a specific signing key.
+     */
+    private static final class KeyVerifier {
+
+        /** Key the verifier was built from. */
+        private final Jwk jwk;
+
+        /** Immutable, thread-safe verifier. */
+        private final JWTVerifier verifier;
+
+        KeyVerifier(final Jwk signingKey, final JWTVerifier jwtVerifier) {
+            this.jwk = signingKey;
+            this.verifier = jwtVerifier;
+        }
+    }
 }
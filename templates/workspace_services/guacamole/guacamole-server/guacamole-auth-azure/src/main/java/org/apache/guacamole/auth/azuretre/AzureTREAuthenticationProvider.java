@@ -18,11 +18,21 @@
  */
 package org.apache.guacamole.auth.azuretre;
 
-import com.auth0.jwk.UrlJwkProvider;
 import com.google.common.base.Strings;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.TypeLiteral;
+import com.google.inject.util.Modules;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.auth.azuretre.connection.ConnectionService;
+import org.apache.guacamole.auth.azuretre.connection.UserResource;
+import org.apache.guacamole.auth.azuretre.credentials.CachingCredentialSource;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialPrefetcher;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialSource;
 import org.apache.guacamole.auth.azuretre.user.AzureTREAuthenticatedUser;
+import org.apache.guacamole.auth.azuretre.user.RefreshingConnectionDirectory;
 import org.apache.guacamole.auth.azuretre.user.TreUserContext;
 import org.apache.guacamole.net.auth.AbstractAuthenticationProvider;
 import org.apache.guacamole.net.auth.AuthenticatedUser;
@@ -32,9 +42,14 @@ import org.apache.guacamole.net.auth.UserContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Authentication provider that integrates Guacamole with Azure TRE.
@@ -49,30 +64,86 @@ public final class AzureTREAuthenticationProvider
     private static final Logger LOGGER = LoggerFactory.getLogger(
         AzureTREAuthenticationProvider.class);
 
+    /** Extension configuration. */
+    private final TreConfiguration configuration;
+
+    /** Owner of the shared clients, caches and thread pools. */
+    private final AzureTREModule module;
+
     /** Service responsible for token validation. */
     private final AuthenticationProviderService authenticationProviderService;
 
+    /** Service listing the connections available to a user. */
+    private final ConnectionService connectionService;
+
+    /** Shared signing key cache. */
+    private final CachingJwkProvider jwkProvider;
+
+    /** Shared source of VM credentials. */
+    private final CredentialSource credentialSource;
+
+    /** Warms the VM credential cache, or {@code null} if disabled. */
+    private final CredentialPrefetcher credentialPrefetcher;
+
+    /** Warm-up of the shared clients, completed if disabled. */
+    private final CompletableFuture<Void> warmup;
+
     /**
-     * Creates a provider with a default authentication service.
+     * Creates a provider configured from the environment.
+     *
+     * @throws GuacamoleException if the configuration is invalid.
      */
-    public AzureTREAuthenticationProvider() {
-        this.authenticationProviderService =
-            new AuthenticationProviderService();
+    public AzureTREAuthenticationProvider() throws GuacamoleException {
+        this(TreConfiguration.fromEnvironment());
     }
 
     /**
-     * Creates a provider with the given authentication service.
+     * Creates a provider with default services for the given configuration.
      *
-     * @param providerService optional service override.
+     * @param configuration extension configuration.
      */
     public AzureTREAuthenticationProvider(
-        final AuthenticationProviderService providerService) {
-        if (providerService == null) {
-            this.authenticationProviderService =
-                new AuthenticationProviderService();
-        } else {
-            this.authenticationProviderService = providerService;
-        }
+        final TreConfiguration configuration) {
+        this(configuration, Modules.EMPTY_MODULE);
+    }
+
+    /**
+     * Creates a provider whose services are taken from {@link AzureTREModule}
+     * with the given bindings overridden. Overridden services are not closed
+     * by {@link #shutdown()}.
+     *
+     * @param treConfiguration  extension configuration.
+     * @param overrides         bindings replacing those of the module.
+     */
+    public AzureTREAuthenticationProvider(
+        final TreConfiguration treConfiguration,
+        final Module overrides) {
+        this.configuration = treConfiguration;
+        this.module = new AzureTREModule(treConfiguration);
+        final Injector injector = Guice.createInjector(
+            Modules.override(module).with(overrides));
+        this.authenticationProviderService =
+            injector.getInstance(AuthenticationProviderService.class);
+        this.connectionService = injector.getInstance(ConnectionService.class);
+        this.jwkProvider = injector.getInstance(CachingJwkProvider.class);
+        this.credentialSource = injector.getInstance(CredentialSource.class);
+        this.credentialPrefetcher = injector.getInstance(
+            Key.get(new TypeLiteral<Optional<CredentialPrefetcher>>() { }))
+            .orElse(null);
+        this.warmup = treConfiguration.isWarmupEnabled()
+            ? injector.getInstance(Warmup.class).start()
+            : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Returns whether the provider is ready for traffic: warm-up, if
+     * enabled, has finished. Requests are served either way; before then
+     * they may pay the costs warm-up would have.
+     *
+     * @return {@code true} once warm-up has finished or if it is disabled.
+     */
+    public boolean isReady() {
+        return warmup.isDone();
     }
 
     @Override
@@ -84,6 +155,14 @@ public final class AzureTREAuthenticationProvider
     public AuthenticatedUser updateAuthenticatedUser(
         final AuthenticatedUser authenticatedUser,
         final Credentials credentials) throws GuacamoleException {
+        // Guacamole re-authenticates on most requests; the proxy forwards
+        // the same token until it is renewed.
+        if (authenticatedUser instanceof AzureTREAuthenticatedUser
+            && ((AzureTREAuthenticatedUser) authenticatedUser).hasAccessToken(
+                credentials.getRequestDetails().getHeader(
+                    "X-Forwarded-Access-Token"))) {
+            return authenticatedUser;
+        }
         return authenticateUser(credentials);
     }
 
@@ -125,37 +204,126 @@ public final class AzureTREAuthenticationProvider
             (AzureTREAuthenticatedUser) authenticatedUser;
         final String accessToken = user.getAccessToken();
 
+        // The inventory fetch does not depend on the outcome of validation,
+        // so it is started first and discarded if validation fails.
+        final CompletableFuture<List<UserResource>> resources =
+            connectionService.fetchUserResources(user);
+        if (!isValid(accessToken)) {
+            resources.cancel(true);
+            return null;
+        }
+
+        final Map<String, Connection> connections =
+            connectionService.getConnections(user, resources);
+        // Refreshes use the latest token the context was updated with.
+        final AtomicReference<TreUserContext> context =
+            new AtomicReference<>();
+        // VMs that appear later, by refresh or re-authentication, are
+        // prefetched as they are added.
+        final Queue<CompletableFuture<Void>> prefetches =
+            new ConcurrentLinkedQueue<>();
+        prefetchCredentials(connections.keySet(), prefetches);
+        final RefreshingConnectionDirectory directory =
+            new RefreshingConnectionDirectory(
+                connections,
+                configuration.getConnectionDirectoryMaxAge(),
+                () -> connectionService.refreshConnections(
+                    context.get().getUser()),
+                added -> prefetchCredentials(added, prefetches));
+        final TreUserContext treUserContext = new TreUserContext(
+            this,
+            directory,
+            () -> {
+                prefetches.forEach(prefetch -> prefetch.cancel(false));
+                connectionService.invalidate(context.get().getUser());
+            });
+        treUserContext.init(user);
+        context.set(treUserContext);
+        return treUserContext;
+    }
+
+    private boolean isValid(final String accessToken) {
         try {
             LOGGER.info("Validating token");
-            final UrlJwkProvider jwkProvider = new UrlJwkProvider(
-                buildJwksEndpointUrl());
             authenticationProviderService.validateToken(
                 accessToken,
                 jwkProvider);
+            return true;
         } catch (final Exception ex) {
             LOGGER.error("Failed to validate token: {}", ex.getMessage());
             LOGGER.debug("Token validation failure", ex);
-            return null;
+            return false;
         }
+    }
 
-        final Map<String, Connection> connections =
-            ConnectionService.getConnections(user);
-        final TreUserContext treUserContext = new TreUserContext(
-            this,
-            connections);
-        treUserContext.init(user);
-        return treUserContext;
+    private void prefetchCredentials(
+        final Set<String> identifiers,
+        final Queue<CompletableFuture<Void>> prefetches) {
+        if (credentialPrefetcher == null || identifiers.isEmpty()) {
+            return;
+        }
+        // Connections are keyed by the Azure resource id of their VM.
+        final CompletableFuture<Void> prefetch =
+            credentialPrefetcher.prefetch(identifiers);
+        prefetches.add(prefetch);
+        prefetch.whenComplete((ignored, ex) -> prefetches.remove(prefetch));
     }
 
+    /**
+     * Updates the user's existing context in place rather than building a
+     * new one. The token is still validated, which is served from the token
+     * cache until it expires. If the token is unchanged nothing else is
+     * done; otherwise the connections are brought up to date and only those
+     * that changed are rebuilt.
+     */
     @Override
     public UserContext updateUserContext(
         final UserContext context,
         final AuthenticatedUser authenticatedUser,
         final Credentials credentials) throws GuacamoleException {
-        return getUserContext(authenticatedUser);
+        if (!(context instanceof TreUserContext)
+            || !(authenticatedUser instanceof AzureTREAuthenticatedUser)) {
+            return getUserContext(authenticatedUser);
+        }
+
+        final TreUserContext treUserContext = (TreUserContext) context;
+        final AzureTREAuthenticatedUser user =
+            (AzureTREAuthenticatedUser) authenticatedUser;
+        final AzureTREAuthenticatedUser previous = treUserContext.getUser();
+        if (previous == null
+            || !previous.getIdentifier().equals(user.getIdentifier())) {
+            return getUserContext(user);
+        }
+
+        if (!isValid(user.getAccessToken())) {
+            return null;
+        }
+        if (previous == user
+            || previous.hasAccessToken(user.getAccessToken())) {
+            LOGGER.debug("Token unchanged, keeping user context");
+            return treUserContext;
+        }
+
+        treUserContext.update(user, connectionService.updateConnections(
+            user,
+            treUserContext.getConnectionDirectory().getConnections()));
+        return treUserContext;
     }
 
-    private URL buildJwksEndpointUrl() throws MalformedURLException {
-        return new URL(System.getenv("OAUTH2_PROXY_JWKS_ENDPOINT"));
+    @Override
+    public void shutdown() {
+        LOGGER.info(
+            "Token cache hit rate: {}",
+            authenticationProviderService.getTokenCache().stats().hitRate());
+        LOGGER.info(
+            "User resources cache hit rate: {}",
+            connectionService.getResourceCache().stats().hitRate());
+        if (credentialSource instanceof CachingCredentialSource) {
+            LOGGER.info(
+                "VM credentials cache hit rate: {}",
+                ((CachingCredentialSource) credentialSource)
+                    .cacheStats().hitRate());
+        }
+        module.close();
     }
 }
@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre;
+
+import com.auth0.jwk.UrlJwkProvider;
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import org.apache.guacamole.auth.azuretre.connection.ApiHttpClient;
+import org.apache.guacamole.auth.azuretre.connection.ConnectAdmission;
+import org.apache.guacamole.auth.azuretre.connection.ConnectionService;
+import org.apache.guacamole.auth.azuretre.credentials.CachingCredentialSource;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialPrefetcher;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialSource;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialSources;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+
+/**
+ * Guice module owning the clients, caches and thread pools that the
+ * provider shares across every user and request.
+ *
+ * <p>Each resource is a singleton created on first use. Resources created
+ * by this module are closed by {@link #close()}, in the reverse order of
+ * their creation; bindings overridden with
+ * {@link com.google.inject.util.Modules#override} are left to their owner.
+ * A module instance is meant to back a single injector.</p>
+ */
+public final class AzureTREModule extends AbstractModule
+    implements AutoCloseable {
+
+    /** JWKS endpoint connect and read timeout in milliseconds. */
+    private static final int JWKS_TIMEOUT_MILLIS = 5000;
+
+    /** Logger for resource lifecycle. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        AzureTREModule.class);
+
+    /** Extension configuration. */
+    private final TreConfiguration configuration;
+
+    /** Resources created by this module, most recent first. */
+    private final Deque<AutoCloseable> owned = new ArrayDeque<>();
+
+    /**
+     * Creates a module for the given configuration.
+     *
+     * @param treConfiguration extension configuration.
+     */
+    public AzureTREModule(final TreConfiguration treConfiguration) {
+        this.configuration = treConfiguration;
+    }
+
+    @Override
+    protected void configure() {
+        bind(TreConfiguration.class).toInstance(configuration);
+    }
+
+    /**
+     * Provides the token validation service.
+     *
+     * @param treConfiguration extension configuration.
+     * @return token validation service.
+     */
+    @Provides
+    @Singleton
+    AuthenticationProviderService authenticationProviderService(
+        final TreConfiguration treConfiguration) {
+        return new AuthenticationProviderService(treConfiguration);
+    }
+
+    /**
+     * Provides the signing key cache.
+     *
+     * @param treConfiguration extension configuration.
+     * @return signing key cache.
+     */
+    @Provides
+    @Singleton
+    CachingJwkProvider jwkProvider(final TreConfiguration treConfiguration) {
+        return own(new CachingJwkProvider(
+            new UrlJwkProvider(
+                treConfiguration.getJwksEndpoint(),
+                JWKS_TIMEOUT_MILLIS,
+                JWKS_TIMEOUT_MILLIS),
+            treConfiguration.getJwksCacheTtl(),
+            treConfiguration.getJwksRefreshCooldown()));
+    }
+
+    /**
+     * Provides the TRE API client and its executor.
+     *
+     * @param treConfiguration extension configuration.
+     * @return TRE API client.
+     */
+    @Provides
+    @Singleton
+    ApiHttpClient apiHttpClient(final TreConfiguration treConfiguration) {
+        return own(new ApiHttpClient(
+            treConfiguration.getApiHttpThreads(),
+            Duration.ofSeconds(ConnectionService.API_TIMEOUT_SECONDS),
+            treConfiguration.getExecutionMode()));
+    }
+
+    /**
+     * Provides the HTTP client used for TRE API calls.
+     *
+     * @param apiHttpClient owner of the client.
+     * @return HTTP client.
+     */
+    @Provides
+    HttpClient httpClient(final ApiHttpClient apiHttpClient) {
+        return apiHttpClient.get();
+    }
+
+    /**
+     * Provides the source of VM credentials, including its cache.
+     *
+     * @param treConfiguration extension configuration.
+     * @return source of VM credentials.
+     */
+    @Provides
+    @Singleton
+    CredentialSource credentialSource(
+        final TreConfiguration treConfiguration) {
+        return own(CredentialSources.create(treConfiguration));
+    }
+
+    /**
+     * Provides the admission of concurrent connects to the same VM.
+     *
+     * @param treConfiguration extension configuration.
+     * @return connect admission.
+     */
+    @Provides
+    @Singleton
+    ConnectAdmission connectAdmission(
+        final TreConfiguration treConfiguration) {
+        return new ConnectAdmission(
+            treConfiguration.getConnectAdmission(),
+            treConfiguration.getConnectAdmissionTimeout());
+    }
+
+    /**
+     * Provides the service listing the connections available to a user.
+     *
+     * @param treConfiguration extension configuration.
+     * @param httpClient       client used for TRE API calls.
+     * @param credentialSource source of VM credentials.
+     * @param admission        admission of concurrent connects.
+     * @return connection service.
+     */
+    @Provides
+    @Singleton
+    ConnectionService connectionService(
+        final TreConfiguration treConfiguration,
+        final HttpClient httpClient,
+        final CredentialSource credentialSource,
+        final ConnectAdmission admission) {
+        return new ConnectionService(
+            treConfiguration,
+            httpClient,
+            credentialSource,
+            admission);
+    }
+
+    /**
+     * Provides the VM credential prefetcher, if prefetching is enabled and
+     * VM credentials are cached.
+     *
+     * @param treConfiguration extension configuration.
+     * @param credentialSource source of VM credentials.
+     * @return prefetcher, or empty if disabled.
+     */
+    @Provides
+    @Singleton
+    Optional<CredentialPrefetcher> credentialPrefetcher(
+        final TreConfiguration treConfiguration,
+        final CredentialSource credentialSource) {
+        final int threads = treConfiguration.getVmCredentialsPrefetchThreads();
+        if (threads == 0) {
+            return Optional.empty();
+        }
+        if (!(credentialSource instanceof CachingCredentialSource)) {
+            LOGGER.warn(
+                "VM_CREDENTIALS_PREFETCH_THREADS is ignored because "
+                    + "VM_CREDENTIALS_CACHE_TTL_SECONDS is 0");
+            return Optional.empty();
+        }
+        return Optional.of(own(new CredentialPrefetcher(
+            (CachingCredentialSource) credentialSource,
+            threads,
+            treConfiguration.getExecutionMode())));
+    }
+
+    /**
+     * Provides the warm-up of the shared clients.
+     *
+     * @param treConfiguration extension configuration.
+     * @param jwkProvider      signing key cache.
+     * @param httpClient       client used for TRE API calls.
+     * @param credentialSource source of VM credentials.
+     * @return warm-up, not yet started.
+     */
+    @Provides
+    @Singleton
+    Warmup warmup(
+        final TreConfiguration treConfiguration,
+        final CachingJwkProvider jwkProvider,
+        final HttpClient httpClient,
+        final CredentialSource credentialSource) {
+        return own(new Warmup(
+            jwkProvider,
+            httpClient,
+            URI.create(treConfiguration.getUserResourcesUrl()),
+            Duration.ofSeconds(ConnectionService.API_TIMEOUT_SECONDS),
+            credentialSource));
+    }
+
+    private synchronized <T extends AutoCloseable> T own(final T resource) {
+        owned.push(resource);
+        return resource;
+    }
+
+    /**
+     * Closes every resource created by this module, most recent first. A
+     * resource that fails to close does not prevent the others from being
+     * closed.
+     */
+    @Override
+    public synchronized void close() {
+        while (!owned.isEmpty()) {
+            final AutoCloseable resource = owned.pop();
+            try {
+                resource.close();
+            } catch (final Exception ex) {
+                LOGGER.warn(
+                    "Failed to close {}",
+                    resource.getClass().getSimpleName(),
+                    ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre;
+
+import com.auth0.jwk.Jwk;
+import com.auth0.jwk.JwkException;
+import com.auth0.jwk.JwkProvider;
+import com.auth0.jwk.SigningKeyNotFoundException;
+import com.auth0.jwk.UrlJwkProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide signing key cache backed by a JWKS endpoint.
+ *
+ * <p>Keys are indexed by key id and held for a fixed time to live. A
+ * background refresh is scheduled ahead of expiry so that logins never wait
+ * on the endpoint while the cache is warm. A token presenting an unknown key
+ * id, or a login after the keys have expired, triggers a refresh, at most
+ * once per cooldown period. If that refresh fails, the expired keys are
+ * still served for up to one more time to live, so that an unreachable
+ * endpoint does not fail every login at once.</p>
+ */
+public final class CachingJwkProvider implements JwkProvider, AutoCloseable {
+
+    /** Fraction of the time to live after which keys are refreshed. */
+    private static final double REFRESH_AHEAD_RATIO = 0.8;
+
+    /** Shortest delay before a scheduled refresh, whatever the settings. */
+    private static final long MIN_REFRESH_DELAY_NANOS =
+        TimeUnit.SECONDS.toNanos(1);
+
+    /** Logger for cache refreshes. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        CachingJwkProvider.class);
+
+    /** Provider used to fetch the full key set from the endpoint. */
+    private final UrlJwkProvider delegate;
+
+    /** How long a fetched key set is considered valid. */
+    private final long ttlNanos;
+
+    /** How long expired keys are still served while refreshes fail. */
+    private final long staleGraceNanos;
+
+    /** Minimum interval between refreshes forced by logins. */
+    private final long forcedRefreshCooldownNanos;
+
+    /** Source of the current time in nanos. */
+    private final LongSupplier clock;
+
+    /** Scheduler running refresh-ahead fetches. */
+    private final ScheduledExecutorService scheduler;
+
+    /** Current immutable key snapshot. */
+    private volatile KeySet keySet = KeySet.EMPTY;
+
+    /** Time of the last fetch, successful or not, in nanos. */
+    private long lastFetchNanos;
+
+    /** Whether a fetch has been attempted yet. */
+    private boolean fetched;
+
+    /** Pending refresh-ahead task, if any. */
+    private ScheduledFuture<?> pendingRefresh;
+
+    /**
+     * Creates a caching provider over the given JWKS provider.
+     *
+     * @param jwkProvider            provider for the remote key set.
+     * @param ttl                    time to live for fetched keys.
+     * @param forcedRefreshCooldown  minimum interval between refreshes
+     *                               forced by logins.
+     */
+    public CachingJwkProvider(
+        final UrlJwkProvider jwkProvider,
+        final Duration ttl,
+        final Duration forcedRefreshCooldown) {
+        this(jwkProvider, ttl, forcedRefreshCooldown, System::nanoTime);
+    }
+
+    /**
+     * Creates a caching provider reading the time from the given clock.
+     *
+     * @param jwkProvider            provider for the remote key set.
+     * @param ttl                    time to live for fetched keys.
+     * @param forcedRefreshCooldown  minimum interval between refreshes
+     *                               forced by logins.
+     * @param nanoClock              source of the current time in nanos.
+     */
+    CachingJwkProvider(
+        final UrlJwkProvider jwkProvider,
+        final Duration ttl,
+        final Duration forcedRefreshCooldown,
+        final LongSupplier nanoClock) {
+        this.delegate = jwkProvider;
+        this.ttlNanos = ttl.toNanos();
+        this.staleGraceNanos = ttlNanos;
+        this.forcedRefreshCooldownNanos = forcedRefreshCooldown.toNanos();
+        this.clock = nanoClock;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                final Thread thread = new Thread(
+                    runnable,
+                    "azuretre-jwks-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    @Override
+    public Jwk get(final String keyId) throws JwkException {
+        final KeySet current = keySet;
+        if (!current.isExpired(clock.getAsLong())) {
+            final Jwk jwk = current.get(keyId);
+            if (jwk != null) {
+                return jwk;
+            }
+        }
+
+        final Jwk jwk = refreshFor(keyId).get(keyId);
+        if (jwk == null) {
+            throw new SigningKeyNotFoundException(
+                "No key found for kid " + keyId,
+                null);
+        }
+        return jwk;
+    }
+
+    /**
+     * Fetches the key set now, replacing the cached snapshot.
+     *
+     * @throws JwkException if the key set could not be fetched.
+     */
+    public synchronized void refresh() throws JwkException {
+        fetch();
+    }
+
+    /**
+     * Stops background refreshes.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private synchronized KeySet refreshFor(final String keyId)
+        throws JwkException {
+        final long now = clock.getAsLong();
+        final KeySet current = keySet;
+        final boolean expired = current.isExpired(now);
+        if (!expired && current.get(keyId) != null) {
+            // Another thread refreshed while we waited for the lock.
+            return current;
+        }
+        if (fetched && now - lastFetchNanos < forcedRefreshCooldownNanos) {
+            LOGGER.debug("JWKS refresh for kid {} on cooldown", keyId);
+            return usable(current, now);
+        }
+        if (!expired) {
+            LOGGER.info("Unknown kid {}, forcing JWKS refresh", keyId);
+        }
+        try {
+            fetch();
+        } catch (final JwkException ex) {
+            if (!current.isUsable(now)) {
+                throw ex;
+            }
+            LOGGER.warn(
+                "JWKS refresh failed, serving expired keys: {}",
+                ex.getMessage());
+            return current;
+        }
+        return keySet;
+    }
+
+    private static KeySet usable(final KeySet current, final long now)
+        throws JwkException {
+        if (!current.isExpired(now) || current.isUsable(now)) {
+            return current;
+        }
+        throw new SigningKeyNotFoundException(
+            "JWKS unavailable, refresh on cooldown",
+            null);
+    }
+
+    private void fetch() throws JwkException {
+        fetched = true;
+        lastFetchNanos = clock.getAsLong();
+        final List<Jwk> jwks;
+        try {
+            jwks = delegate.getAll();
+        } catch (final JwkException ex) {
+            scheduleRefresh(forcedRefreshCooldownNanos);
+            throw ex;
+        }
+
+        final Map<String, Jwk> byKeyId = new HashMap<>();
+        for (final Jwk jwk : jwks) {
+            if (jwk.getId() != null) {
+                byKeyId.put(jwk.getId(), jwk);
+            }
+        }
+        keySet = new KeySet(
+            byKeyId,
+            lastFetchNanos + ttlNanos,
+            lastFetchNanos + ttlNanos + staleGraceNanos);
+        LOGGER.debug("Cached {} signing keys", byKeyId.size());
+        scheduleRefresh((long) (ttlNanos * REFRESH_AHEAD_RATIO));
+    }
+
+    private void scheduleRefresh(final long delayNanos) {
+        if (pendingRefresh != null) {
+            pendingRefresh.cancel(false);
+        }
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        // Bounds the fetch rate for very short time to live or cooldown
+        // settings, including repeated failures.
+        pendingRefresh = scheduler.schedule(
+            this::backgroundRefresh,
+            Math.max(delayNanos, MIN_REFRESH_DELAY_NANOS),
+            TimeUnit.NANOSECONDS);
+    }
+
+    private void backgroundRefresh() {
+        try {
+            refresh();
+        } catch (final JwkException ex) {
+            LOGGER.warn("Background JWKS refresh failed: {}", ex.getMessage());
+            LOGGER.debug("JWKS refresh failure", ex);
+        }
+    }
+
+    /**
+     * Immutable snapshot of fetched keys and their expiry.
+     */
+    private static final class KeySet {
+
+        /** Snapshot used before the first fetch; always expired. */
+        private static final KeySet EMPTY =
+            new KeySet(Collections.emptyMap(), 0, 0);
+
+        /** Keys indexed by key id. */
+        private final Map<String, Jwk> keys;
+
+        /** Expiry of the snapshot in nanos. */
+        private final long expiresAtNanos;
+
+        /** End of the stale grace period in nanos. */
+        private final long staleUntilNanos;
+
+        KeySet(
+            final Map<String, Jwk> jwks,
+            final long expiryNanos,
+            final long staleNanos) {
+            this.keys = Collections.unmodifiableMap(jwks);
+            this.expiresAtNanos = expiryNanos;
+            this.staleUntilNanos = staleNanos;
+        }
+
+        Jwk get(final String keyId) {
+            return keyId == null ? null : keys.get(keyId);
+        }
+
+        boolean isExpired(final long now) {
+            return this == EMPTY || now - expiresAtNanos >= 0;
+        }
+
+        boolean isUsable(final long now) {
+            return this != EMPTY && now - staleUntilNanos < 0;
+        }
+    }
+}
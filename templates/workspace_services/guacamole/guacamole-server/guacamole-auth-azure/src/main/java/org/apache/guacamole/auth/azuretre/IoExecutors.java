@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre;
+
+import org.apache.guacamole.auth.azuretre.TreConfiguration.ExecutionMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run blocking calls to one dependency, such as
+ * the TRE API or Key Vault.
+ *
+ * <p>Each executor bounds the number of calls running at once. In
+ * {@link ExecutionMode#PLATFORM} mode that bound is the size of a pool of
+ * daemon threads. In {@link ExecutionMode#VIRTUAL} mode every call gets its
+ * own virtual thread, which waits for a permit before running, so a burst
+ * of logins queues as cheap parked threads instead of pool tasks. Virtual
+ * threads are looked up reflectively so that the extension still runs on
+ * Java 17, where the platform pool is used instead.</p>
+ */
+public final class IoExecutors {
+
+    /** Logger for execution mode fallbacks. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        IoExecutors.class);
+
+    /** Virtual thread builder factory, or {@code null} if unsupported. */
+    private static final Method OF_VIRTUAL = findOfVirtual();
+
+    private IoExecutors() {
+    }
+
+    /**
+     * Returns whether the running JDK supports virtual threads.
+     *
+     * @return {@code true} if virtual threads are available.
+     */
+    public static boolean virtualThreadsAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates an executor for blocking calls to one dependency.
+     *
+     * @param mode         threads that run the calls.
+     * @param name         thread name prefix, such as
+     *                     {@code azuretre-api}.
+     * @param concurrency  maximum number of calls running at once.
+     * @return executor; shut it down when the dependency is released.
+     */
+    public static ExecutorService create(
+        final ExecutionMode mode,
+        final String name,
+        final int concurrency) {
+        final int bound = Math.max(1, concurrency);
+        if (mode == ExecutionMode.VIRTUAL) {
+            final ThreadFactory factory = virtualThreadFactory(name);
+            if (factory != null) {
+                return new BoundedThreadPerTaskExecutor(factory, bound);
+            }
+            LOGGER.warn(
+                "Virtual threads are not available on Java {}, "
+                    + "using platform threads for {}",
+                Runtime.version().feature(),
+                name);
+        }
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(
+            bound,
+            runnable -> {
+                final Thread thread = new Thread(
+                    runnable,
+                    name + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Creates an executor that starts a thread per task and runs at most
+     * the given number of tasks at once.
+     *
+     * @param factory      creates the thread for each task.
+     * @param concurrency  maximum number of tasks running at once.
+     * @return executor.
+     */
+    static ExecutorService threadPerTask(
+        final ThreadFactory factory,
+        final int concurrency) {
+        return new BoundedThreadPerTaskExecutor(
+            factory,
+            Math.max(1, concurrency));
+    }
+
+    private static Method findOfVirtual() {
+        try {
+            return Thread.class.getMethod("ofVirtual");
+        } catch (final NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory virtualThreadFactory(final String name) {
+        if (OF_VIRTUAL == null) {
+            return null;
+        }
+        try {
+            final Class<?> builderType =
+                Class.forName("java.lang.Thread$Builder");
+            final Object builder = builderType
+                .getMethod("name", String.class, long.class)
+                .invoke(OF_VIRTUAL.invoke(null), name + "-", 1L);
+            return (ThreadFactory) builderType
+                .getMethod("factory")
+                .invoke(builder);
+        } catch (final ReflectiveOperationException ex) {
+            LOGGER.debug("Virtual thread factory unavailable", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Executor that starts a thread per task, where each thread waits for
+     * one of a fixed number of permits before running its task.
+     */
+    private static final class BoundedThreadPerTaskExecutor
+        extends AbstractExecutorService {
+
+        /** Creates the thread for each task. */
+        private final ThreadFactory factory;
+
+        /** Permits for running tasks. */
+        private final Semaphore permits;
+
+        /** Threads started and not yet finished. */
+        private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+        /** Whether the executor was shut down. Guarded by {@code this}. */
+        private boolean shutdown;
+
+        /** Whether tasks that have not started are to be dropped. */
+        private volatile boolean stopped;
+
+        BoundedThreadPerTaskExecutor(
+            final ThreadFactory threadFactory,
+            final int concurrency) {
+            this.factory = threadFactory;
+            this.permits = new Semaphore(concurrency);
+        }
+
+        @Override
+        public synchronized void execute(final Runnable task) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor shut down");
+            }
+            final Thread thread = factory.newThread(() -> run(task));
+            if (thread == null) {
+                throw new RejectedExecutionException("Thread not created");
+            }
+            threads.add(thread);
+            thread.start();
+        }
+
+        private void run(final Runnable task) {
+            try {
+                permits.acquire();
+                try {
+                    // A permit freed by an interrupted task may be taken
+                    // before this thread is interrupted in turn.
+                    if (!stopped) {
+                        task.run();
+                    }
+                } finally {
+                    permits.release();
+                }
+            } catch (final InterruptedException ex) {
+                // Shut down while waiting for a permit; the task is dropped.
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (this) {
+                    threads.remove(Thread.currentThread());
+                    notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            shutdown = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized List<Runnable> shutdownNow() {
+            stopped = true;
+            shutdown();
+            for (final Thread thread : threads) {
+                thread.interrupt();
+            }
+            return new ArrayList<>();
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return shutdown && threads.isEmpty();
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(
+            final long timeout,
+            final TimeUnit unit) throws InterruptedException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Registry of in-flight calls that lets concurrent callers asking for the
+ * same key share a single outstanding call and its result.
+ *
+ * <p>Each caller receives its own future. Cancelling it abandons only that
+ * caller's interest; the shared call is cancelled once every caller has
+ * abandoned it. A key is removed as soon as its call completes, so results
+ * are never cached and a later call for the same key starts afresh.</p>
+ *
+ * @param <K> key type; callers must include anything that changes the
+ *            result, such as the caller's authorisation.
+ * @param <V> result type.
+ */
+public final class SingleFlight<K, V> {
+
+    /** Calls currently in flight. */
+    private final Map<K, Flight<V>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the result of the in-flight call for the key, starting the
+     * call if none is in flight.
+     *
+     * @param key   identifies calls that produce the same result.
+     * @param call  starts the call; invoked at most once per flight, on the
+     *              calling thread.
+     * @return this caller's future result.
+     */
+    public CompletableFuture<V> execute(
+        final K key,
+        final Supplier<CompletableFuture<V>> call) {
+        while (true) {
+            final Flight<V> candidate = new Flight<>();
+            final Flight<V> existing = flights.putIfAbsent(key, candidate);
+            if (existing != null) {
+                if (existing.join()) {
+                    return existing.newWaiter();
+                }
+                // Completed or abandoned by all of its callers; replace it.
+                flights.remove(key, existing);
+                continue;
+            }
+
+            candidate.join();
+            candidate.result.whenComplete(
+                (value, ex) -> flights.remove(key, candidate));
+            final CompletableFuture<V> waiter = candidate.newWaiter();
+
+            CompletableFuture<V> started;
+            try {
+                started = call.get();
+            } catch (final RuntimeException ex) {
+                started = CompletableFuture.failedFuture(ex);
+            }
+            candidate.bind(started);
+            return waiter;
+        }
+    }
+
+    /**
+     * Returns the number of calls currently in flight.
+     *
+     * @return in-flight call count.
+     */
+    public int inFlight() {
+        return flights.size();
+    }
+
+    /**
+     * A single shared call and the callers waiting on it.
+     *
+     * @param <V> result type.
+     */
+    private static final class Flight<V> {
+
+        /** Shared result of the call. */
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+
+        /** The underlying call, once started. Guarded by {@code this}. */
+        private CompletableFuture<V> call;
+
+        /** Number of callers still interested. Guarded by {@code this}. */
+        private int waiters;
+
+        /**
+         * Whether every caller has abandoned the call. Guarded by
+         * {@code this}.
+         */
+        private boolean abandoned;
+
+        synchronized boolean join() {
+            if (abandoned || result.isDone()) {
+                return false;
+            }
+            waiters++;
+            return true;
+        }
+
+        CompletableFuture<V> newWaiter() {
+            final CompletableFuture<V> waiter = result.copy();
+            waiter.whenComplete((value, ex) -> {
+                if (waiter.isCancelled()) {
+                    release();
+                }
+            });
+            return waiter;
+        }
+
+        synchronized void bind(final CompletableFuture<V> started) {
+            if (abandoned) {
+                started.cancel(true);
+                return;
+            }
+            call = started;
+            started.whenComplete((value, ex) -> {
+                if (ex == null) {
+                    result.complete(value);
+                } else {
+                    result.completeExceptionally(ex);
+                }
+            });
+        }
+
+        private synchronized void release() {
+            waiters--;
+            if (waiters == 0 && !result.isDone()) {
+                abandoned = true;
+                result.cancel(true);
+                if (call != null) {
+                    call.cancel(true);
+                }
+            }
+        }
+    }
+}
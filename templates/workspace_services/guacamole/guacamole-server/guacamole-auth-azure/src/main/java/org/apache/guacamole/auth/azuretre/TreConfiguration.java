@@ -0,0 +1,638 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre;
+
+import com.google.common.base.Strings;
+import org.apache.guacamole.GuacamoleServerException;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the extension configuration, read and validated
+ * once when the provider is constructed.
+ */
+public final class TreConfiguration {
+
+    /**
+     * Where the admin credentials of VMs are read from.
+     */
+    public enum CredentialSourceType {
+
+        /** The workspace Key Vault. */
+        KEYVAULT,
+
+        /** Local files, for offline testing and benchmarks. */
+        FILE
+    }
+
+    /**
+     * How concurrent connects to the same VM are admitted.
+     */
+    public enum ConnectAdmissionPolicy {
+
+        /** Every connect proceeds at once. */
+        NONE,
+
+        /** Connects to a VM wait for the one in progress to finish. */
+        SERIALIZE,
+
+        /** Connects to a VM fail while another one is in progress. */
+        REJECT
+    }
+
+    /**
+     * Threads that run blocking calls to the TRE API and Key Vault.
+     */
+    public enum ExecutionMode {
+
+        /** A bounded pool of platform threads. */
+        PLATFORM,
+
+        /**
+         * A virtual thread per call, with the same bound on concurrent
+         * calls. Falls back to platform threads if the JDK lacks them.
+         */
+        VIRTUAL
+    }
+
+    /** Default lifetime of cached signing keys. */
+    private static final Duration DEFAULT_JWKS_CACHE_TTL =
+        Duration.ofHours(1);
+
+    /** Default minimum interval between forced JWKS refreshes. */
+    private static final Duration DEFAULT_JWKS_REFRESH_COOLDOWN =
+        Duration.ofSeconds(30);
+
+    /** Default maximum number of cached validated tokens. */
+    private static final long DEFAULT_TOKEN_CACHE_SIZE = 10_000;
+
+    /** Default number of threads used by the TRE API client. */
+    private static final long DEFAULT_API_HTTP_THREADS = 4;
+
+    /** Default lifetime of cached user resources. */
+    private static final Duration DEFAULT_USER_RESOURCES_CACHE_TTL =
+        Duration.ofSeconds(60);
+
+    /** Default age after which a user's connections are refreshed. */
+    private static final Duration DEFAULT_CONNECTION_DIRECTORY_MAX_AGE =
+        Duration.ofSeconds(60);
+
+    /** Default lifetime of cached VM credentials; caching is off. */
+    private static final Duration DEFAULT_VM_CREDENTIALS_CACHE_TTL =
+        Duration.ZERO;
+
+    /** Default deadline of a Key Vault read. */
+    private static final Duration DEFAULT_KEYVAULT_TIMEOUT =
+        Duration.ofSeconds(10);
+
+    /** Default wait for a serialised connect to be admitted. */
+    private static final Duration DEFAULT_CONNECT_ADMISSION_TIMEOUT =
+        Duration.ofSeconds(30);
+
+    /** Default number of credential prefetch threads; prefetch is off. */
+    private static final long DEFAULT_VM_CREDENTIALS_PREFETCH_THREADS = 0;
+
+    /** RDP parameters mapped to the variables that supply them. */
+    private static final Map<String, String> RDP_PARAMETER_VARIABLES;
+
+    static {
+        final Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("disable-copy", "GUAC_DISABLE_COPY");
+        variables.put("disable-paste", "GUAC_DISABLE_PASTE");
+        variables.put("enable-drive", "GUAC_ENABLE_DRIVE");
+        variables.put("drive-name", "GUAC_DRIVE_NAME");
+        variables.put("drive-path", "GUAC_DRIVE_PATH");
+        variables.put("disable-download", "GUAC_DISABLE_DOWNLOAD");
+        variables.put("disable-upload", "GUAC_DISABLE_UPLOAD");
+        variables.put("server-layout", "GUAC_SERVER_LAYOUT");
+        RDP_PARAMETER_VARIABLES = Collections.unmodifiableMap(variables);
+    }
+
+    /** Expected token audience. */
+    private final String audience;
+
+    /** Expected token issuer. */
+    private final String issuer;
+
+    /** JWKS endpoint used to resolve signing keys. */
+    private final URL jwksEndpoint;
+
+    /** TRE API user-resources endpoint for this workspace service. */
+    private final String userResourcesUrl;
+
+    /** Source of VM credentials. */
+    private final CredentialSourceType credentialSource;
+
+    /** File or directory holding VM credentials, or {@code null}. */
+    private final Path credentialSourcePath;
+
+    /** Workspace Key Vault URL, or {@code null} if not used. */
+    private final String keyVaultUrl;
+
+    /** Client id of the managed identity, or {@code null}. */
+    private final String managedIdentityClientId;
+
+    /** Lifetime of cached signing keys. */
+    private final Duration jwksCacheTtl;
+
+    /** Minimum interval between forced JWKS refreshes. */
+    private final Duration jwksRefreshCooldown;
+
+    /** Maximum number of cached validated tokens. */
+    private final long tokenCacheSize;
+
+    /** Number of threads used by the TRE API client. */
+    private final int apiHttpThreads;
+
+    /** Lifetime of cached user resources. */
+    private final Duration userResourcesCacheTtl;
+
+    /** Age after which a user's connections are refreshed. */
+    private final Duration connectionDirectoryMaxAge;
+
+    /** Lifetime of cached VM credentials. */
+    private final Duration vmCredentialsCacheTtl;
+
+    /** Number of threads prefetching VM credentials. */
+    private final int vmCredentialsPrefetchThreads;
+
+    /** Deadline of a Key Vault read. */
+    private final Duration keyVaultTimeout;
+
+    /** Admission of concurrent connects to the same VM. */
+    private final ConnectAdmissionPolicy connectAdmission;
+
+    /** Longest wait for a serialised connect to be admitted. */
+    private final Duration connectAdmissionTimeout;
+
+    /** Threads that run blocking calls to the TRE API and Key Vault. */
+    private final ExecutionMode executionMode;
+
+    /** Whether shared clients are warmed up when the provider starts. */
+    private final boolean warmupEnabled;
+
+    /** Optional RDP parameters applied to every connection. */
+    private final Map<String, String> rdpParameters;
+
+    private TreConfiguration(final Reader reader)
+        throws GuacamoleServerException {
+        this.audience = reader.required("AUDIENCE");
+        this.issuer = reader.required("ISSUER");
+        this.jwksEndpoint = reader.url("OAUTH2_PROXY_JWKS_ENDPOINT");
+        this.userResourcesUrl = String.format(
+            "%s/api/workspaces/%s/workspace-services/%s/user-resources",
+            reader.required("API_URL"),
+            reader.required("WORKSPACE_ID"),
+            reader.required("SERVICE_ID"));
+        this.credentialSource = reader.choice(
+            "CREDENTIAL_SOURCE",
+            CredentialSourceType.KEYVAULT);
+        if (credentialSource == CredentialSourceType.FILE) {
+            this.keyVaultUrl = reader.optional("KEYVAULT_URL");
+            this.credentialSourcePath = reader.path("CREDENTIAL_SOURCE_PATH");
+        } else {
+            this.keyVaultUrl = reader.required("KEYVAULT_URL");
+            this.credentialSourcePath = null;
+        }
+        this.managedIdentityClientId =
+            reader.optional("MANAGED_IDENTITY_CLIENT_ID");
+        this.jwksCacheTtl = reader.positiveSeconds(
+            "JWKS_CACHE_TTL_SECONDS",
+            DEFAULT_JWKS_CACHE_TTL);
+        this.jwksRefreshCooldown = reader.positiveSeconds(
+            "JWKS_REFRESH_COOLDOWN_SECONDS",
+            DEFAULT_JWKS_REFRESH_COOLDOWN);
+        this.tokenCacheSize = reader.number(
+            "TOKEN_CACHE_MAX_SIZE",
+            DEFAULT_TOKEN_CACHE_SIZE);
+        this.apiHttpThreads = (int) Math.max(1, Math.min(
+            Integer.MAX_VALUE,
+            reader.number("API_HTTP_THREADS", DEFAULT_API_HTTP_THREADS)));
+        this.userResourcesCacheTtl = reader.seconds(
+            "USER_RESOURCES_CACHE_TTL_SECONDS",
+            DEFAULT_USER_RESOURCES_CACHE_TTL);
+        this.connectionDirectoryMaxAge = reader.seconds(
+            "CONNECTION_DIRECTORY_MAX_AGE_SECONDS",
+            DEFAULT_CONNECTION_DIRECTORY_MAX_AGE);
+        this.vmCredentialsCacheTtl = reader.seconds(
+            "VM_CREDENTIALS_CACHE_TTL_SECONDS",
+            DEFAULT_VM_CREDENTIALS_CACHE_TTL);
+        this.vmCredentialsPrefetchThreads = (int) Math.min(
+            Integer.MAX_VALUE,
+            reader.number(
+                "VM_CREDENTIALS_PREFETCH_THREADS",
+                DEFAULT_VM_CREDENTIALS_PREFETCH_THREADS));
+        this.keyVaultTimeout = reader.positiveSeconds(
+            "KEYVAULT_TIMEOUT_SECONDS",
+            DEFAULT_KEYVAULT_TIMEOUT);
+        this.connectAdmission = reader.choice(
+            "CONNECT_ADMISSION",
+            ConnectAdmissionPolicy.NONE);
+        this.connectAdmissionTimeout = reader.positiveSeconds(
+            "CONNECT_ADMISSION_TIMEOUT_SECONDS",
+            DEFAULT_CONNECT_ADMISSION_TIMEOUT);
+        this.executionMode = reader.choice(
+            "EXECUTION_MODE",
+            ExecutionMode.PLATFORM);
+        this.warmupEnabled = reader.flag("WARMUP_ENABLED", false);
+
+        final Map<String, String> parameters = new LinkedHashMap<>();
+        for (final Map.Entry<String, String> entry
+            : RDP_PARAMETER_VARIABLES.entrySet()) {
+            final String value = reader.optional(entry.getValue());
+            if (value != null) {
+                parameters.put(entry.getKey(), value);
+            }
+        }
+        this.rdpParameters = Collections.unmodifiableMap(parameters);
+        reader.validate();
+    }
+
+    /**
+     * Loads the configuration from the process environment.
+     *
+     * @return validated configuration.
+     * @throws GuacamoleServerException if a value is missing or invalid.
+     */
+    public static TreConfiguration fromEnvironment()
+        throws GuacamoleServerException {
+        return fromMap(System.getenv());
+    }
+
+    /**
+     * Loads the configuration from the given variables.
+     *
+     * @param variables configuration variables keyed by name.
+     * @return validated configuration.
+     * @throws GuacamoleServerException if a value is missing or invalid.
+     */
+    public static TreConfiguration fromMap(final Map<String, String> variables)
+        throws GuacamoleServerException {
+        return new TreConfiguration(new Reader(variables));
+    }
+
+    /**
+     * Returns the expected token audience.
+     *
+     * @return audience claim value.
+     */
+    public String getAudience() {
+        return audience;
+    }
+
+    /**
+     * Returns the expected token issuer.
+     *
+     * @return issuer claim value.
+     */
+    public String getIssuer() {
+        return issuer;
+    }
+
+    /**
+     * Returns the JWKS endpoint used to resolve signing keys.
+     *
+     * @return JWKS endpoint URL.
+     */
+    public URL getJwksEndpoint() {
+        return jwksEndpoint;
+    }
+
+    /**
+     * Returns the TRE API endpoint listing the user resources of this
+     * workspace service.
+     *
+     * @return user-resources URL.
+     */
+    public String getUserResourcesUrl() {
+        return userResourcesUrl;
+    }
+
+    /**
+     * Returns where the admin credentials of VMs are read from.
+     *
+     * @return credential source.
+     */
+    public CredentialSourceType getCredentialSource() {
+        return credentialSource;
+    }
+
+    /**
+     * Returns the file or directory holding VM credentials when they are
+     * read from local files.
+     *
+     * @return credential path, or {@code null} for other sources.
+     */
+    public Path getCredentialSourcePath() {
+        return credentialSourcePath;
+    }
+
+    /**
+     * Returns the workspace Key Vault URL.
+     *
+     * @return Key Vault URL, or {@code null} if credentials are not read
+     *         from Key Vault and none is configured.
+     */
+    public String getKeyVaultUrl() {
+        return keyVaultUrl;
+    }
+
+    /**
+     * Returns the client id of the managed identity used for Key Vault.
+     *
+     * @return client id, or {@code null} to use the default identity.
+     */
+    public String getManagedIdentityClientId() {
+        return managedIdentityClientId;
+    }
+
+    /**
+     * Returns how long fetched signing keys are cached.
+     *
+     * @return signing key time to live.
+     */
+    public Duration getJwksCacheTtl() {
+        return jwksCacheTtl;
+    }
+
+    /**
+     * Returns the minimum interval between forced JWKS refreshes.
+     *
+     * @return forced refresh cooldown.
+     */
+    public Duration getJwksRefreshCooldown() {
+        return jwksRefreshCooldown;
+    }
+
+    /**
+     * Returns the maximum number of cached validated tokens.
+     *
+     * @return token cache size.
+     */
+    public long getTokenCacheSize() {
+        return tokenCacheSize;
+    }
+
+    /**
+     * Returns the number of threads used by the TRE API client.
+     *
+     * @return executor thread count, at least one.
+     */
+    public int getApiHttpThreads() {
+        return apiHttpThreads;
+    }
+
+    /**
+     * Returns how long a user's resources are cached.
+     *
+     * @return user resource time to live, zero if caching is disabled.
+     */
+    public Duration getUserResourcesCacheTtl() {
+        return userResourcesCacheTtl;
+    }
+
+    /**
+     * Returns the age after which a signed-in user's connections are
+     * refreshed in the background.
+     *
+     * @return maximum connection directory age, zero if refreshing is
+     *         disabled.
+     */
+    public Duration getConnectionDirectoryMaxAge() {
+        return connectionDirectoryMaxAge;
+    }
+
+    /**
+     * Returns how long VM credentials read from Key Vault are cached.
+     *
+     * @return VM credential time to live, zero if caching is disabled.
+     */
+    public Duration getVmCredentialsCacheTtl() {
+        return vmCredentialsCacheTtl;
+    }
+
+    /**
+     * Returns the number of threads that prefetch a signed-in user's VM
+     * credentials into the credential cache.
+     *
+     * @return prefetch thread count, zero if prefetching is disabled.
+     */
+    public int getVmCredentialsPrefetchThreads() {
+        return vmCredentialsPrefetchThreads;
+    }
+
+    /**
+     * Returns the deadline of a single Key Vault read.
+     *
+     * @return Key Vault read timeout, always positive.
+     */
+    public Duration getKeyVaultTimeout() {
+        return keyVaultTimeout;
+    }
+
+    /**
+     * Returns how concurrent connects to the same VM are admitted.
+     *
+     * @return connect admission policy.
+     */
+    public ConnectAdmissionPolicy getConnectAdmission() {
+        return connectAdmission;
+    }
+
+    /**
+     * Returns the longest time a serialised connect waits for the connect
+     * ahead of it.
+     *
+     * @return admission timeout, always positive.
+     */
+    public Duration getConnectAdmissionTimeout() {
+        return connectAdmissionTimeout;
+    }
+
+    /**
+     * Returns the threads that run blocking calls to the TRE API and Key
+     * Vault.
+     *
+     * @return execution mode.
+     */
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Returns whether signing keys, TLS sessions, the managed identity token
+     * and SDK classes are loaded in the background when the provider starts.
+     *
+     * @return {@code true} if warm-up is enabled.
+     */
+    public boolean isWarmupEnabled() {
+        return warmupEnabled;
+    }
+
+    /**
+     * Returns the optional RDP parameters applied to every connection.
+     *
+     * @return unmodifiable map of parameter names to values.
+     */
+    public Map<String, String> getRdpParameters() {
+        return rdpParameters;
+    }
+
+    /**
+     * Reads variables and collects every problem before failing.
+     */
+    private static final class Reader {
+
+        /** Source variables. */
+        private final Map<String, String> variables;
+
+        /** Problems found so far. */
+        private final List<String> errors = new ArrayList<>();
+
+        Reader(final Map<String, String> source) {
+            this.variables = source;
+        }
+
+        String optional(final String name) {
+            final String value = variables.get(name);
+            return Strings.isNullOrEmpty(value) ? null : value;
+        }
+
+        String required(final String name) {
+            final String value = optional(name);
+            if (value == null) {
+                errors.add(name + " is not provided");
+            }
+            return value;
+        }
+
+        URL url(final String name) {
+            final String value = required(name);
+            if (value == null) {
+                return null;
+            }
+            try {
+                return new URL(value);
+            } catch (final MalformedURLException ex) {
+                errors.add(name + " is not a valid URL");
+                return null;
+            }
+        }
+
+        Path path(final String name) {
+            final String value = required(name);
+            if (value == null) {
+                return null;
+            }
+            try {
+                return Paths.get(value);
+            } catch (final InvalidPathException ex) {
+                errors.add(name + " is not a valid path");
+                return null;
+            }
+        }
+
+        <E extends Enum<E>> E choice(final String name, final E defaultValue) {
+            final String value = optional(name);
+            if (value == null) {
+                return defaultValue;
+            }
+            final String normalised = value.trim().toUpperCase(Locale.ROOT);
+            for (final E constant
+                : defaultValue.getDeclaringClass().getEnumConstants()) {
+                if (constant.name().equals(normalised)) {
+                    return constant;
+                }
+            }
+
+            final List<String> allowed = new ArrayList<>();
+            for (final E constant
+                : defaultValue.getDeclaringClass().getEnumConstants()) {
+                allowed.add(constant.name().toLowerCase(Locale.ROOT));
+            }
+            errors.add(name + " must be one of " + String.join(", ", allowed));
+            return defaultValue;
+        }
+
+        boolean flag(final String name, final boolean defaultValue) {
+            final String value = optional(name);
+            if (value == null) {
+                return defaultValue;
+            }
+            final String normalised = value.trim().toLowerCase(Locale.ROOT);
+            if ("true".equals(normalised) || "false".equals(normalised)) {
+                return Boolean.parseBoolean(normalised);
+            }
+            errors.add(name + " must be true or false");
+            return defaultValue;
+        }
+
+        long number(final String name, final long defaultValue) {
+            final String value = optional(name);
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                final long number = Long.parseLong(value.trim());
+                if (number >= 0) {
+                    return number;
+                }
+            } catch (final NumberFormatException ex) {
+                // Reported below.
+            }
+            errors.add(name + " must be a non-negative integer");
+            return defaultValue;
+        }
+
+        Duration seconds(final String name, final Duration defaultValue) {
+            return Duration.ofSeconds(
+                number(name, defaultValue.getSeconds()));
+        }
+
+        Duration positiveSeconds(
+            final String name,
+            final Duration defaultValue) {
+            final String value = optional(name);
+            final Duration seconds = seconds(name, defaultValue);
+            if (value != null && seconds.isZero()) {
+                errors.add(name + " must be at least 1");
+                return defaultValue;
+            }
+            return seconds;
+        }
+
+        void validate() throws GuacamoleServerException {
+            if (!errors.isEmpty()) {
+                throw new GuacamoleServerException(
+                    "Invalid configuration: " + String.join(", ", errors));
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Bounded cache of tokens that have already passed signature and claim
+ * validation. Entries are keyed by the SHA-256 digest of the token, so raw
+ * tokens are never retained, and are honoured only until the token's
+ * {@code exp} claim.
+ */
+public final class ValidatedTokenCache {
+
+    /** Validated token digests mapped to their expiry. */
+    private final Cache<String, Instant> cache;
+
+    /**
+     * Creates a cache holding at most the given number of tokens.
+     *
+     * @param maximumSize maximum number of cached tokens.
+     */
+    public ValidatedTokenCache(final long maximumSize) {
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Returns whether the token was previously validated and has not yet
+     * expired.
+     *
+     * @param token raw access token.
+     * @return {@code true} if validation can be skipped.
+     */
+    public boolean contains(final String token) {
+        final String key = digest(token);
+        final Instant expiresAt = cache.getIfPresent(key);
+        if (expiresAt == null) {
+            return false;
+        }
+        if (!Instant.now().isBefore(expiresAt)) {
+            cache.invalidate(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records a successfully validated token.
+     *
+     * @param token      raw access token.
+     * @param expiresAt  expiry taken from the token's {@code exp} claim.
+     */
+    public void put(final String token, final Instant expiresAt) {
+        if (expiresAt != null && Instant.now().isBefore(expiresAt)) {
+            cache.put(digest(token), expiresAt);
+        }
+    }
+
+    /**
+     * Returns hit and miss statistics for the cache.
+     *
+     * @return cache statistics.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * Computes the SHA-256 digest of a token, Base64 encoded.
+     *
+     * @param token raw token.
+     * @return digest of the token.
+     */
+    public static String digest(final String token) {
+        try {
+            final MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(
+                sha256.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre;
+
+import com.auth0.jwk.JwkException;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Pays the one-off costs of the first login and connect before any user
+ * arrives: fetching the signing keys, TLS handshakes to the TRE API and Key
+ * Vault, acquiring the managed identity token and loading the classes on
+ * the login path.
+ *
+ * <p>Warm-up runs on a single background daemon thread and never delays
+ * startup. Each step is best effort: a failure is logged and the first
+ * request retries it as it would without warm-up.</p>
+ */
+public final class Warmup implements AutoCloseable {
+
+    /** Classes on the login and connect paths that are slow to load. */
+    private static final List<String> PRELOADED_CLASSES = List.of(
+        "com.auth0.jwt.JWT",
+        "com.auth0.jwt.algorithms.Algorithm",
+        "com.auth0.jwt.JWTVerifier",
+        "com.fasterxml.jackson.core.JsonFactory",
+        "org.apache.guacamole.protocol.ConfiguredGuacamoleSocket",
+        "org.apache.guacamole.net.InetGuacamoleSocket");
+
+    /** Logger for warm-up outcomes. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        Warmup.class);
+
+    /** Signing key cache to fill. */
+    private final CachingJwkProvider jwkProvider;
+
+    /** TRE API client whose connection is opened. */
+    private final HttpClient httpClient;
+
+    /** TRE API endpoint probed to open the connection. */
+    private final URI apiEndpoint;
+
+    /** Deadline of the TRE API probe. */
+    private final Duration apiTimeout;
+
+    /** Credential source to warm up. */
+    private final CredentialSource credentialSource;
+
+    /** Thread running the blocking steps. */
+    private final ExecutorService executor;
+
+    /**
+     * Creates a warm-up over the shared clients.
+     *
+     * @param jwks        signing key cache to fill.
+     * @param apiClient   TRE API client.
+     * @param apiUrl      TRE API endpoint probed to open the connection.
+     * @param timeout     deadline of the TRE API probe.
+     * @param credentials credential source to warm up.
+     */
+    public Warmup(
+        final CachingJwkProvider jwks,
+        final HttpClient apiClient,
+        final URI apiUrl,
+        final Duration timeout,
+        final CredentialSource credentials) {
+        this.jwkProvider = jwks;
+        this.httpClient = apiClient;
+        this.apiEndpoint = apiUrl;
+        this.apiTimeout = timeout;
+        this.credentialSource = credentials;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "azuretre-warmup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts warming up in the background.
+     *
+     * @return future completed once every step has finished, whether or not
+     *         it succeeded.
+     */
+    public CompletableFuture<Void> start() {
+        final long startNanos = System.nanoTime();
+        LOGGER.info("Warming up");
+        // The network steps are independent, so they overlap.
+        final CompletableFuture<Void> api = step("TRE API", probeApi());
+        final CompletableFuture<Void> keyVault = step(
+            "credential source",
+            credentialSource.warmUp());
+        final CompletableFuture<Void> local = CompletableFuture.runAsync(
+            () -> {
+                preloadClasses();
+                refreshKeys();
+            },
+            executor);
+        return CompletableFuture.allOf(api, keyVault, local)
+            .handle((ignored, ex) -> {
+                LOGGER.info(
+                    "Warm-up finished in {} ms",
+                    Duration.ofNanos(System.nanoTime() - startNanos)
+                        .toMillis());
+                return null;
+            });
+    }
+
+    private CompletableFuture<Void> probeApi() {
+        // The probe is unauthenticated; any response leaves a pooled
+        // connection behind.
+        final HttpRequest request = HttpRequest.newBuilder(apiEndpoint)
+            .method("HEAD", HttpRequest.BodyPublishers.noBody())
+            .timeout(apiTimeout)
+            .build();
+        try {
+            return httpClient.sendAsync(
+                request,
+                HttpResponse.BodyHandlers.discarding())
+                .thenApply(response -> null);
+        } catch (final RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    private static CompletableFuture<Void> step(
+        final String name,
+        final CompletableFuture<Void> work) {
+        return work.handle((ignored, ex) -> {
+            if (ex != null) {
+                LOGGER.warn("Warm-up of {} failed: {}", name, ex.toString());
+            }
+            return null;
+        });
+    }
+
+    private void preloadClasses() {
+        final ClassLoader loader = Warmup.class.getClassLoader();
+        for (final String className : PRELOADED_CLASSES) {
+            try {
+                Class.forName(className, true, loader);
+            } catch (final ClassNotFoundException | LinkageError ex) {
+                LOGGER.debug("Could not preload {}", className, ex);
+            }
+        }
+    }
+
+    private void refreshKeys() {
+        try {
+            jwkProvider.refresh();
+        } catch (final JwkException | RuntimeException ex) {
+            LOGGER.warn("Warm-up of signing keys failed: {}", ex.toString());
+        }
+    }
+
+    /**
+     * Stops the warm-up thread, abandoning steps that have not finished.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
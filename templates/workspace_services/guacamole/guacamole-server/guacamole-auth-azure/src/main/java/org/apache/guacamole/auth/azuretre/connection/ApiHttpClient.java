@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.connection;
+
+import org.apache.guacamole.auth.azuretre.IoExecutors;
+import org.apache.guacamole.auth.azuretre.TreConfiguration.ExecutionMode;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Long-lived HTTP client used for every TRE API call.
+ *
+ * <p>The client prefers HTTP/2 and keeps connections alive between logins,
+ * so the TLS handshake to the API is paid once rather than per login. Its
+ * asynchronous work runs on a dedicated executor, bounded to a fixed number
+ * of threads or of virtual threads, which is stopped by {@link #close()}.</p>
+ */
+public final class ApiHttpClient implements AutoCloseable {
+
+    /** Executor used by the client for asynchronous work. */
+    private final ExecutorService executor;
+
+    /** Shared client. */
+    private final HttpClient client;
+
+    /**
+     * Creates a shared client running on platform threads.
+     *
+     * @param threads         maximum number of executor threads.
+     * @param connectTimeout  timeout for establishing new connections.
+     */
+    public ApiHttpClient(final int threads, final Duration connectTimeout) {
+        this(threads, connectTimeout, ExecutionMode.PLATFORM);
+    }
+
+    /**
+     * Creates a shared client.
+     *
+     * @param threads         maximum number of concurrently running tasks.
+     * @param connectTimeout  timeout for establishing new connections.
+     * @param mode            threads that run the client's tasks.
+     */
+    public ApiHttpClient(
+        final int threads,
+        final Duration connectTimeout,
+        final ExecutionMode mode) {
+        this.executor = IoExecutors.create(mode, "azuretre-api", threads);
+        this.client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(connectTimeout)
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .executor(executor)
+            .build();
+    }
+
+    /**
+     * Returns the shared client.
+     *
+     * @return HTTP client.
+     */
+    public HttpClient get() {
+        return client;
+    }
+
+    /**
+     * Stops the client's executor. Pooled connections are released once
+     * the client is no longer referenced.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
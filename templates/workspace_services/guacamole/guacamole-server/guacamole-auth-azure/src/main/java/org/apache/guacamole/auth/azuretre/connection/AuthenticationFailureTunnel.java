@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.connection;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.apache.guacamole.protocol.GuacamoleStatus;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tunnel that reports when guacd rejects the credentials it was given, and
+ * when the outcome of the connect is known.
+ *
+ * <p>guacd reports a failed RDP login with an {@code error} instruction
+ * carrying {@link GuacamoleStatus#CLIENT_UNAUTHORIZED}. Instructions are
+ * inspected only until the remote desktop sends its first {@code sync},
+ * after which the stream is passed through untouched. The tunnel is
+ * settled by that {@code sync}, by an {@code error}, or by being closed,
+ * whichever comes first.</p>
+ */
+final class AuthenticationFailureTunnel extends DelegatingGuacamoleTunnel {
+
+    /** Status code guacd sends when the remote desktop rejects a login. */
+    private static final String UNAUTHORIZED = Integer.toString(
+        GuacamoleStatus.CLIENT_UNAUTHORIZED.getGuacamoleStatusCode());
+
+    /** Invoked once if the credentials are rejected. */
+    private final Runnable onRejected;
+
+    /** Invoked once when the tunnel is settled. */
+    private final Runnable onSettled;
+
+    /** Whether the session is established or the outcome is known. */
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    /**
+     * Wraps a tunnel whose connection uses injected credentials.
+     *
+     * @param tunnel    tunnel to wrap.
+     * @param rejected  invoked if guacd reports the credentials as rejected.
+     */
+    AuthenticationFailureTunnel(
+        final GuacamoleTunnel tunnel,
+        final Runnable rejected) {
+        this(tunnel, rejected, () -> { });
+    }
+
+    /**
+     * Wraps a tunnel whose connection uses injected credentials, reporting
+     * when it is settled.
+     *
+     * @param tunnel    tunnel to wrap.
+     * @param rejected  invoked if guacd reports the credentials as rejected,
+     *                  before the tunnel is settled.
+     * @param outcome   invoked once the tunnel is settled.
+     */
+    AuthenticationFailureTunnel(
+        final GuacamoleTunnel tunnel,
+        final Runnable rejected,
+        final Runnable outcome) {
+        super(tunnel);
+        this.onRejected = rejected;
+        this.onSettled = outcome;
+    }
+
+    @Override
+    public GuacamoleReader acquireReader() {
+        final GuacamoleReader reader = super.acquireReader();
+        return settled.get() ? reader : new InspectingReader(reader);
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+        try {
+            super.close();
+        } finally {
+            settle();
+        }
+    }
+
+    private void inspect(final GuacamoleInstruction instruction) {
+        if (instruction == null || settled.get()) {
+            return;
+        }
+        switch (instruction.getOpcode()) {
+            case "sync":
+                settle();
+                break;
+            case "error":
+                final List<String> args = instruction.getArgs();
+                if (args.size() > 1 && UNAUTHORIZED.equals(args.get(1))) {
+                    onRejected.run();
+                }
+                settle();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void settle() {
+        if (settled.compareAndSet(false, true)) {
+            onSettled.run();
+        }
+    }
+
+    /**
+     * Reader that inspects instructions until the tunnel is settled.
+     */
+    private final class InspectingReader implements GuacamoleReader {
+
+        /** Underlying tunnel reader. */
+        private final GuacamoleReader delegate;
+
+        InspectingReader(final GuacamoleReader reader) {
+            this.delegate = reader;
+        }
+
+        @Override
+        public boolean available() throws GuacamoleException {
+            return delegate.available();
+        }
+
+        @Override
+        public char[] read() throws GuacamoleException {
+            if (settled.get()) {
+                return delegate.read();
+            }
+            final GuacamoleInstruction instruction = readInstruction();
+            return instruction == null
+                ? null : instruction.toString().toCharArray();
+        }
+
+        @Override
+        public GuacamoleInstruction readInstruction()
+            throws GuacamoleException {
+            final GuacamoleInstruction instruction =
+                delegate.readInstruction();
+            inspect(instruction);
+            return instruction;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.connection;
+
+import com.google.common.util.concurrent.Striped;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleResourceConflictException;
+import org.apache.guacamole.auth.azuretre.TreConfiguration.ConnectAdmissionPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits concurrent connects to the same VM according to a
+ * {@link ConnectAdmissionPolicy}.
+ *
+ * <p>A double click or several tabs reconnecting at once would otherwise
+ * read the credentials and run a guacd handshake per connect, and the
+ * resulting RDP sessions then take the VM's single session from each
+ * other. Admission covers the connect from the credential read until the
+ * remote desktop sends its first frame, reports an error or the tunnel is
+ * closed; established sessions are not limited.</p>
+ *
+ * <p>Serialised connects wait on semaphores striped by Azure resource id,
+ * so memory stays bounded; two VMs that share a stripe at worst wait for
+ * each other. Rejection tracks the exact resource ids in progress, so an
+ * unrelated VM is never refused.</p>
+ */
+public final class ConnectAdmission {
+
+    /** Admission that lets every connect proceed at once. */
+    public static final ConnectAdmission NONE = new ConnectAdmission(
+        ConnectAdmissionPolicy.NONE,
+        Duration.ZERO);
+
+    /** Number of semaphore stripes for serialised connects. */
+    private static final int STRIPES = 1024;
+
+    /** Permit of an admission that does not limit connects. */
+    private static final Permit UNLIMITED = () -> { };
+
+    /** Logger for refused connects. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        ConnectAdmission.class);
+
+    /** Admission policy. */
+    private final ConnectAdmissionPolicy policy;
+
+    /** Longest wait of a serialised connect. */
+    private final Duration timeout;
+
+    /** One-permit semaphores of serialised connects. */
+    private final Striped<Semaphore> stripes;
+
+    /** Resource ids with a connect in progress, when rejecting. */
+    private final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates an admission.
+     *
+     * @param admissionPolicy   how concurrent connects are admitted.
+     * @param admissionTimeout  longest wait of a serialised connect.
+     */
+    public ConnectAdmission(
+        final ConnectAdmissionPolicy admissionPolicy,
+        final Duration admissionTimeout) {
+        this.policy = admissionPolicy;
+        this.timeout = admissionTimeout;
+        this.stripes = admissionPolicy == ConnectAdmissionPolicy.SERIALIZE
+            ? Striped.lazyWeakSemaphore(STRIPES, 1)
+            : null;
+    }
+
+    /**
+     * Admits a connect to a VM, waiting for connects ahead of it if the
+     * policy serialises them. The returned permit must be closed once the
+     * session has started or the connect has failed.
+     *
+     * @param resourceId Azure resource id of the VM.
+     * @return permit held for the duration of the connect.
+     * @throws GuacamoleException if the connect is refused, or if it waited
+     *         too long or was interrupted.
+     */
+    public Permit admit(final String resourceId) throws GuacamoleException {
+        switch (policy) {
+            case SERIALIZE:
+                return serialize(resourceId);
+            case REJECT:
+                return reject(resourceId);
+            case NONE:
+            default:
+                return UNLIMITED;
+        }
+    }
+
+    /**
+     * Returns whether this admission limits concurrent connects at all.
+     *
+     * @return {@code false} if every connect proceeds at once.
+     */
+    boolean isLimiting() {
+        return policy != ConnectAdmissionPolicy.NONE;
+    }
+
+    private Permit serialize(final String resourceId)
+        throws GuacamoleException {
+        final Semaphore semaphore = stripes.get(resourceId);
+        try {
+            if (!semaphore.tryAcquire(
+                timeout.toNanos(),
+                TimeUnit.NANOSECONDS)) {
+                LOGGER.info(
+                    "Connect to {} timed out waiting for another connect",
+                    resourceId);
+                throw new GuacamoleResourceConflictException(
+                    "Another connection to this VM is still starting");
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new GuacamoleResourceConflictException(
+                "Interrupted waiting for another connection to this VM");
+        }
+        return semaphore::release;
+    }
+
+    private Permit reject(final String resourceId)
+        throws GuacamoleException {
+        if (!inProgress.add(resourceId)) {
+            LOGGER.info(
+                "Connect to {} rejected, another connect is in progress",
+                resourceId);
+            throw new GuacamoleResourceConflictException(
+                "Another connection to this VM is already starting");
+        }
+        return () -> inProgress.remove(resourceId);
+    }
+
+    /**
+     * Admission of a single connect, released when closed.
+     */
+    @FunctionalInterface
+    public interface Permit extends AutoCloseable {
+
+        /**
+         * Releases the admission so that the next connect may proceed.
+         * Must be called exactly once.
+         */
+        @Override
+        void close();
+    }
+}
@@ -20,25 +20,40 @@ package org.apache.guacamole.auth.azuretre.connection;
 
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.auth.azuretre.AzureTREAuthenticationProvider;
+import org.apache.guacamole.auth.azuretre.SingleFlight;
+import org.apache.guacamole.auth.azuretre.TreConfiguration;
+import org.apache.guacamole.auth.azuretre.ValidatedTokenCache;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialSource;
 import org.apache.guacamole.auth.azuretre.user.AzureTREAuthenticatedUser;
 import org.apache.guacamole.net.auth.Connection;
 import org.apache.guacamole.protocol.GuacamoleConfiguration;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * Utility methods that hydrate Guacamole connections for TRE users.
+ * Service that hydrates Guacamole connections for TRE users. A single
+ * instance is shared by every user of the provider.
  */
 public final class ConnectionService {
 
@@ -46,14 +61,117 @@ public final class ConnectionService {
     private static final int HTTP_SUCCESS_MAX = 299;
 
     /** API call timeout in seconds. */
-    private static final int API_TIMEOUT_SECONDS = 5;
+    public static final int API_TIMEOUT_SECONDS = 5;
 
     /** Logger for this class. */
     private static final Logger LOGGER = LoggerFactory.getLogger(
         ConnectionService.class);
 
-    private ConnectionService() {
-        // Utility class
+    /** Extension configuration. */
+    private final TreConfiguration configuration;
+
+    /** RDP parameters shared by every connection. */
+    private final Map<String, String> rdpTemplate;
+
+    /** Shared client used for TRE API calls. */
+    private final HttpClient httpClient;
+
+    /** Executor parsing responses; the client's own. */
+    private final Executor responseExecutor;
+
+    /** Deadline of a user-resources request, including its body. */
+    private final Duration responseTimeout;
+
+    /** Shared credential source passed to every connection. */
+    private final CredentialSource credentialSource;
+
+    /** Admission of concurrent connects, shared by every connection. */
+    private final ConnectAdmission connectAdmission;
+
+    /** Per-token cache of user resources. */
+    private final UserResourceCache resourceCache;
+
+    /** In-flight user-resources requests keyed by token digest. */
+    private final SingleFlight<String, List<UserResource>> apiFlights =
+        new SingleFlight<>();
+
+    /**
+     * Creates a connection service for the given configuration.
+     *
+     * @param treConfiguration  extension configuration.
+     * @param apiHttpClient     shared client used for TRE API calls.
+     * @param credentials       shared source of VM credentials.
+     */
+    public ConnectionService(
+        final TreConfiguration treConfiguration,
+        final HttpClient apiHttpClient,
+        final CredentialSource credentials) {
+        this(
+            treConfiguration,
+            apiHttpClient,
+            credentials,
+            new ConnectAdmission(
+                treConfiguration.getConnectAdmission(),
+                treConfiguration.getConnectAdmissionTimeout()));
+    }
+
+    /**
+     * Creates a connection service that shares the given connect admission.
+     *
+     * @param treConfiguration  extension configuration.
+     * @param apiHttpClient     shared client used for TRE API calls.
+     * @param credentials       shared source of VM credentials.
+     * @param admission         admission of concurrent connects.
+     */
+    public ConnectionService(
+        final TreConfiguration treConfiguration,
+        final HttpClient apiHttpClient,
+        final CredentialSource credentials,
+        final ConnectAdmission admission) {
+        this(
+            treConfiguration,
+            apiHttpClient,
+            credentials,
+            admission,
+            Duration.ofSeconds(2L * API_TIMEOUT_SECONDS));
+    }
+
+    /**
+     * Creates a connection service whose user-resources requests fail after
+     * the given deadline.
+     *
+     * @param treConfiguration  extension configuration.
+     * @param apiHttpClient     shared client used for TRE API calls.
+     * @param credentials       shared source of VM credentials.
+     * @param admission         admission of concurrent connects.
+     * @param requestTimeout    deadline of a user-resources request,
+     *                          including reading its body.
+     */
+    ConnectionService(
+        final TreConfiguration treConfiguration,
+        final HttpClient apiHttpClient,
+        final CredentialSource credentials,
+        final ConnectAdmission admission,
+        final Duration requestTimeout) {
+        this.configuration = treConfiguration;
+        this.httpClient = apiHttpClient;
+        // Without an executor, dependent stages of the exchange would run on
+        // the common pool. A client lacking one parses on the thread that
+        // completes the exchange.
+        this.responseExecutor = apiHttpClient.executor()
+            .orElse(Runnable::run);
+        this.responseTimeout = requestTimeout;
+        this.credentialSource = credentials;
+        this.connectAdmission = admission;
+        this.resourceCache = new UserResourceCache(
+            treConfiguration.getUserResourcesCacheTtl());
+
+        final Map<String, String> template = new LinkedHashMap<>();
+        template.put("resize-method", "display-update");
+        template.put("port", "3389");
+        template.put("ignore-cert", "true");
+        template.putAll(treConfiguration.getRdpParameters());
+        this.rdpTemplate = Collections.unmodifiableMap(template);
     }
 
     /**
@@ -64,162 +182,313 @@ public final class ConnectionService {
      * @return map keyed by connection identifier.
      * @throws GuacamoleException if retrieving connections fails.
      */
-    public static Map<String, Connection> getConnections(
+    public Map<String, Connection> getConnections(
         final AzureTREAuthenticatedUser user) throws GuacamoleException {
-        final Map<String, Connection> connections = new TreeMap<>();
-        final Map<String, GuacamoleConfiguration> configs =
-            getConfigurations(user);
-
-        for (final Map.Entry<String, GuacamoleConfiguration> config
-            : configs.entrySet()) {
-            final Connection connection = new TokenInjectingConnection(
-                config.getValue().getParameter("display_name"),
-                config.getKey(),
-                config.getValue(),
-                true);
-            connection.setParentIdentifier(
-                AzureTREAuthenticationProvider.ROOT_CONNECTION_GROUP);
-            connections.putIfAbsent(config.getKey(), connection);
+        return getConnections(user, fetchUserResources(user));
+    }
+
+    /**
+     * Starts fetching the user resources of a user without waiting for the
+     * result, so that the request can overlap with token validation. The
+     * result is not cached until it is passed to
+     * {@link #getConnections(AzureTREAuthenticatedUser, CompletableFuture)};
+     * cancelling the returned future aborts the request.
+     *
+     * @param user the authenticated TRE user.
+     * @return future list of the user's resources.
+     */
+    public CompletableFuture<List<UserResource>> fetchUserResources(
+        final AzureTREAuthenticatedUser user) {
+        if (user == null) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
         }
 
-        return connections;
+        final List<UserResource> cached =
+            resourceCache.getIfPresent(cacheKey(user));
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return requestUserResources(user);
     }
 
-    private static Map<String, GuacamoleConfiguration> getConfigurations(
-        final AzureTREAuthenticatedUser user) throws GuacamoleException {
-        final Map<String, GuacamoleConfiguration> configs = new TreeMap<>();
+    /**
+     * Fetches the current connections of a user from the TRE API, bypassing
+     * and then replacing the user's cached resources. Used to refresh a
+     * user's connections in the background.
+     *
+     * @param user the authenticated TRE user.
+     * @return future map keyed by connection identifier.
+     */
+    public CompletableFuture<Map<String, Connection>> refreshConnections(
+        final AzureTREAuthenticatedUser user) {
+        return requestUserResources(user).thenApply(resources -> {
+            resourceCache.replace(cacheKey(user), resources);
+            return createConnections(resources);
+        });
+    }
 
-        if (user == null) {
-            return configs;
-        }
+    private static String cacheKey(final AzureTREAuthenticatedUser user) {
+        // The API authorises by token, so only identical tokens share a call
+        // or a cached result. The username header is not verified.
+        return ValidatedTokenCache.digest(user.getAccessToken());
+    }
 
-        try {
-            final JSONArray vmsJsonArray = getVMsFromProjectAPI(user);
-
-            for (int i = 0; i < vmsJsonArray.length(); i++) {
-                final GuacamoleConfiguration config =
-                    new GuacamoleConfiguration();
-                final JSONObject vmJsonObject = vmsJsonArray.getJSONObject(i);
-                final JSONObject templateParameters =
-                    (JSONObject) vmJsonObject.get("properties");
-
-                if (templateParameters.has("hostname")
-                    && templateParameters.has("ip")) {
-                    final String azureResourceId =
-                        templateParameters.getString("hostname");
-                    final String ip = templateParameters.getString("ip");
-                    final String displayName =
-                        templateParameters.getString("display_name");
-
-                    setConfig(config, azureResourceId, ip, displayName);
-                    LOGGER.info(
-                        "Adding VM id:{} ip:{} name:{}",
-                        azureResourceId,
-                        ip,
-                        displayName);
-                    configs.putIfAbsent(azureResourceId, config);
-                } else {
-                    LOGGER.info("Missing ip or hostname, skipping VM");
+    private CompletableFuture<List<UserResource>> requestUserResources(
+        final AzureTREAuthenticatedUser user) {
+        return apiFlights.execute(
+            cacheKey(user),
+            () -> sendUserResourcesRequest(user));
+    }
+
+    private CompletableFuture<List<UserResource>> sendUserResourcesRequest(
+        final AzureTREAuthenticatedUser user) {
+        final HttpRequest request = HttpRequest.newBuilder(
+                URI.create(configuration.getUserResourcesUrl()))
+            .header("Accept", "application/json")
+            .header("Authorization", "Bearer " + user.getAccessToken())
+            .timeout(Duration.ofSeconds(API_TIMEOUT_SECONDS))
+            .build();
+        // The client accumulates the body itself, so no thread waits on the
+        // network; only the parse runs on the response executor. Blocking
+        // reads there would also starve the client's own body delivery.
+        final CompletableFuture<HttpResponse<byte[]>> exchange =
+            httpClient.sendAsync(
+                request,
+                HttpResponse.BodyHandlers.ofByteArray());
+
+        final CompletableFuture<List<UserResource>> result =
+            new CompletableFuture<>();
+        exchange.whenCompleteAsync((response, ex) -> {
+            if (result.isDone()) {
+                // Abandoned or timed out; the exchange has been cancelled.
+                return;
+            }
+            if (ex != null) {
+                final Throwable cause = ex instanceof CompletionException
+                    && ex.getCause() != null ? ex.getCause() : ex;
+                LOGGER.error("Connection failed", cause);
+                result.completeExceptionally(new GuacamoleException(
+                    "Exception getting VMs: Connection failed: "
+                        + cause.getMessage(),
+                    cause));
+                return;
+            }
+            try {
+                result.complete(readUserResources(response));
+            } catch (final GuacamoleException readException) {
+                result.completeExceptionally(readException);
+            }
+        }, responseExecutor);
+        // The request timeout only covers the response headers; the deadline
+        // also bounds a stalled body, whose exchange is then aborted.
+        result.orTimeout(responseTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        result.whenComplete((resources, ex) -> {
+            if (ex != null) {
+                if (!(ex instanceof GuacamoleException)) {
+                    LOGGER.debug("User resources fetch abandoned");
                 }
+                exchange.cancel(true);
             }
-        } catch (final Exception ex) {
-            LOGGER.error("Exception getting VMs", ex);
-            throw new GuacamoleException(
-                "Exception getting VMs: " + ex.getMessage());
+        });
+        return result;
+    }
+
+    /**
+     * Builds a map of Guacamole connections from user resources fetched by
+     * {@link #fetchUserResources(AzureTREAuthenticatedUser)}, and caches
+     * the resources for the user's subsequent logins.
+     *
+     * @param user       the authenticated TRE user.
+     * @param resources  pending or completed fetch of the user's resources.
+     * @return map keyed by connection identifier.
+     * @throws GuacamoleException if retrieving connections fails.
+     */
+    public Map<String, Connection> getConnections(
+        final AzureTREAuthenticatedUser user,
+        final CompletableFuture<List<UserResource>> resources)
+        throws GuacamoleException {
+        if (user == null) {
+            resources.cancel(true);
+            return new TreeMap<>();
         }
 
-        return configs;
+        final List<UserResource> userResources = await(resources);
+        resourceCache.put(cacheKey(user), userResources);
+        return createConnections(userResources);
     }
 
-    private static void setConfig(
-        final GuacamoleConfiguration config,
-        final String azureResourceId,
-        final String ip,
-        final String displayName) {
-        config.setProtocol("rdp");
-        config.setParameter("hostname", ip);
-        config.setParameter("display_name", displayName);
-        config.setParameter("resize-method", "display-update");
-        config.setParameter("azure-resource-id", azureResourceId);
-        config.setParameter("port", "3389");
-        config.setParameter("ignore-cert", "true");
-
-        setEnvParameter(config, "disable-copy", "GUAC_DISABLE_COPY");
-        setEnvParameter(config, "disable-paste", "GUAC_DISABLE_PASTE");
-        setEnvParameter(config, "enable-drive", "GUAC_ENABLE_DRIVE");
-        setEnvParameter(config, "drive-name", "GUAC_DRIVE_NAME");
-        setEnvParameter(config, "drive-path", "GUAC_DRIVE_PATH");
-        setEnvParameter(
-            config,
-            "disable-download",
-            "GUAC_DISABLE_DOWNLOAD");
-        setEnvParameter(
-            config,
-            "disable-upload",
-            "GUAC_DISABLE_UPLOAD");
-
-        final String serverLayout = System.getenv("GUAC_SERVER_LAYOUT");
-        if (serverLayout != null && !serverLayout.isEmpty()) {
-            config.setParameter("server-layout", serverLayout);
+    /**
+     * Brings a user's existing connections up to date with their current
+     * user resources, served from the cache when possible. Connections whose
+     * VM is unchanged are reused rather than rebuilt.
+     *
+     * @param user     the authenticated TRE user.
+     * @param current  the user's existing connections.
+     * @return {@code current} itself if nothing changed, otherwise a new map
+     *         keyed by connection identifier.
+     * @throws GuacamoleException if retrieving connections fails.
+     */
+    public Map<String, Connection> updateConnections(
+        final AzureTREAuthenticatedUser user,
+        final Map<String, Connection> current) throws GuacamoleException {
+        final List<UserResource> userResources =
+            await(fetchUserResources(user));
+        resourceCache.put(cacheKey(user), userResources);
+
+        final Map<String, Connection> connections = new TreeMap<>();
+        int reused = 0;
+        for (final UserResource resource : userResources) {
+            final String identifier = resource.getAzureResourceId();
+            if (connections.containsKey(identifier)) {
+                continue;
+            }
+            final Connection existing = current.get(identifier);
+            if (existing != null && isFor(existing, resource)) {
+                connections.put(identifier, existing);
+                reused++;
+            } else {
+                connections.put(identifier, createConnection(resource));
+            }
         }
+
+        final boolean unchanged =
+            reused == current.size() && reused == connections.size();
+        LOGGER.debug(
+            "Updated connections: {} kept, {} added or changed, {} removed",
+            reused,
+            connections.size() - reused,
+            current.size() - reused);
+        return unchanged ? current : connections;
     }
 
-    private static void setEnvParameter(
-        final GuacamoleConfiguration config,
-        final String parameterName,
-        final String envVarName) {
-        final String value = System.getenv(envVarName);
-        if (value != null && !value.isEmpty()) {
-            config.setParameter(parameterName, value);
+    private Map<String, Connection> createConnections(
+        final List<UserResource> resources) {
+        final Map<String, Connection> connections = new TreeMap<>();
+        for (final UserResource resource : resources) {
+            if (!connections.containsKey(resource.getAzureResourceId())) {
+                connections.put(
+                    resource.getAzureResourceId(),
+                    createConnection(resource));
+            }
         }
+
+        return connections;
     }
 
-    private static JSONArray getVMsFromProjectAPI(
-        final AzureTREAuthenticatedUser user) throws GuacamoleException {
-        final String url = String.format(
-            "%s/api/workspaces/%s/workspace-services/%s/user-resources",
-            System.getenv("API_URL"),
-            System.getenv("WORKSPACE_ID"),
-            System.getenv("SERVICE_ID"));
-
-        final HttpClient client = HttpClient.newHttpClient();
-        final HttpRequest request = HttpRequest.newBuilder(URI.create(url))
-            .header("Accept", "application/json")
-            .header("Authorization", "Bearer " + user.getAccessToken())
-            .timeout(Duration.ofSeconds(API_TIMEOUT_SECONDS))
-            .build();
+    private Connection createConnection(final UserResource resource) {
+        final Connection connection = new TokenInjectingConnection(
+            resource.getDisplayName(),
+            resource.getAzureResourceId(),
+            null,
+            createConfiguration(resource),
+            true,
+            credentialSource,
+            connectAdmission);
+        connection.setParentIdentifier(
+            AzureTREAuthenticationProvider.ROOT_CONNECTION_GROUP);
+        return connection;
+    }
+
+    private static boolean isFor(
+        final Connection connection,
+        final UserResource resource) {
+        // Everything else in the configuration is the same for every VM.
+        return resource.getDisplayName().equals(connection.getName())
+            && resource.getIp().equals(
+                connection.getConfiguration().getParameter("hostname"));
+    }
+
+    /**
+     * Discards the user resources cached for a user's token, so that their
+     * next login queries the TRE API.
+     *
+     * @param user the authenticated TRE user.
+     */
+    public void invalidate(final AzureTREAuthenticatedUser user) {
+        resourceCache.invalidate(cacheKey(user));
+    }
 
-        final HttpResponse<String> response;
+    /**
+     * Discards the cached user resources of every user.
+     */
+    public void invalidateAll() {
+        resourceCache.invalidateAll();
+    }
+
+    /**
+     * Returns the cache of user resources.
+     *
+     * @return user resource cache.
+     */
+    public UserResourceCache getResourceCache() {
+        return resourceCache;
+    }
+
+    private GuacamoleConfiguration createConfiguration(
+        final UserResource resource) {
+        final GuacamoleConfiguration config = new GuacamoleConfiguration();
+        config.setProtocol("rdp");
+        config.setParameters(rdpTemplate);
+        config.setParameter("hostname", resource.getIp());
+        config.setParameter("display_name", resource.getDisplayName());
+        config.setParameter("azure-resource-id", resource.getAzureResourceId());
+        return config;
+    }
+
+    private static List<UserResource> await(
+        final CompletableFuture<List<UserResource>> resources)
+        throws GuacamoleException {
         try {
-            response = client.send(
-                request,
-                HttpResponse.BodyHandlers.ofString());
-        } catch (final IOException | InterruptedException ex) {
-            LOGGER.error("Connection failed", ex);
+            return resources.get(2L * API_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (final ExecutionException ex) {
+            if (ex.getCause() instanceof GuacamoleException) {
+                throw (GuacamoleException) ex.getCause();
+            }
+            if (ex.getCause() instanceof TimeoutException) {
+                throw new GuacamoleException(
+                    "Exception getting VMs: timed out");
+            }
+            throw new GuacamoleException(
+                "Exception getting VMs: " + ex.getCause().getMessage(),
+                ex.getCause());
+        } catch (final TimeoutException ex) {
+            resources.cancel(true);
+            throw new GuacamoleException("Exception getting VMs: timed out");
+        } catch (final InterruptedException ex) {
+            resources.cancel(true);
+            Thread.currentThread().interrupt();
             throw new GuacamoleException(
-                "Connection failed: " + ex.getMessage());
+                "Exception getting VMs: interrupted");
+        } catch (final CancellationException ex) {
+            throw new GuacamoleException("Exception getting VMs: cancelled");
         }
+    }
 
+    private static List<UserResource> readUserResources(
+        final HttpResponse<byte[]> response) throws GuacamoleException {
+        final byte[] body = response.body();
         final int statusCode = response.statusCode();
-        final String resBody = response.body();
         if (statusCode > HTTP_SUCCESS_MAX) {
             final String errorMsg =
                 "Failed getting VMs. statusCode: " + statusCode;
             LOGGER.error(errorMsg);
-            if (resBody != null && !resBody.isBlank()) {
+            final String resBody = new String(body, StandardCharsets.UTF_8);
+            if (!resBody.isBlank()) {
                 LOGGER.error("response: {}", resBody);
             }
-            throw new GuacamoleException(errorMsg);
+            throw new GuacamoleException(
+                "Exception getting VMs: " + errorMsg);
         }
 
-        LOGGER.debug("Got VMs list");
-
-        if (resBody != null && !resBody.isBlank()) {
-            final JSONObject result = new JSONObject(resBody);
-            return result.getJSONArray("userResources");
+        try {
+            final List<UserResource> resources =
+                UserResourcesParser.parse(new ByteArrayInputStream(body));
+            LOGGER.debug("Got {} VMs", resources.size());
+            return resources;
+        } catch (final IOException ex) {
+            LOGGER.error("Exception getting VMs", ex);
+            throw new GuacamoleException(
+                "Exception getting VMs: " + ex.getMessage());
         }
-
-        LOGGER.debug("Got an empty response");
-        return new JSONArray();
     }
 }
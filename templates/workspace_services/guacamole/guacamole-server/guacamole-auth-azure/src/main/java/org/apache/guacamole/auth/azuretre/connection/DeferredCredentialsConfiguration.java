@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.connection;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.auth.azuretre.credentials.VmCredentials;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Immutable configuration for a single connection attempt whose username
+ * and password are still being read while the guacd handshake starts.
+ *
+ * <p>Each attempt gets its own instance, so concurrent connects to the same
+ * connection never share or mutate configuration state. guacd asks for
+ * the connection parameters only after it has been told the protocol, so
+ * the credentials are first needed when the handshake looks them up, and
+ * are joined there. If they cannot be read, the lookup
+ * throws a {@link CredentialsUnavailableException} carrying the cause.</p>
+ *
+ * <p>Parameter lookups return strings, so each lookup of the password
+ * creates one that cannot be wiped. The handshake looks it up once and
+ * this configuration keeps no reference to it; it stays in memory until
+ * it is garbage collected.</p>
+ */
+final class DeferredCredentialsConfiguration extends GuacamoleConfiguration {
+
+    /** Serialization version; instances are never serialized. */
+    private static final long serialVersionUID = 1L;
+
+    /** Pending credentials, or {@code null} once released. */
+    private transient volatile CompletableFuture<VmCredentials> credentials;
+
+    /**
+     * Creates a configuration for one connection attempt.
+     *
+     * @param base     parameters of the connection, copied.
+     * @param pending  username and password being read, owned by this
+     *                 attempt and wiped by {@link #release()}.
+     */
+    DeferredCredentialsConfiguration(
+        final GuacamoleConfiguration base,
+        final CompletableFuture<VmCredentials> pending) {
+        super(base);
+        this.credentials = pending;
+    }
+
+    @Override
+    public void setConnectionID(final String connectionID) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setProtocol(final String protocol) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setParameter(final String name, final String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void unsetParameter(final String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setParameters(final Map<String, String> parameters) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Map<String, String> getParameters() {
+        return Collections.unmodifiableMap(super.getParameters());
+    }
+
+    @Override
+    public String getParameter(final String name) {
+        if (!"username".equals(name) && !"password".equals(name)) {
+            return super.getParameter(name);
+        }
+        final CompletableFuture<VmCredentials> pending = credentials;
+        if (pending == null) {
+            return null;
+        }
+        try {
+            final VmCredentials vmCredentials = pending.join();
+            // guacd is sent strings; this copy is not retained or wiped.
+            return "username".equals(name)
+                ? vmCredentials.getUsername()
+                : new String(vmCredentials.getPassword());
+        } catch (final CompletionException ex) {
+            throw new CredentialsUnavailableException(
+                ex.getCause() instanceof GuacamoleException
+                    ? (GuacamoleException) ex.getCause()
+                    : new GuacamoleException(
+                        "Failed to retrieve valid credentials"));
+        } catch (final CancellationException ex) {
+            throw new CredentialsUnavailableException(new GuacamoleException(
+                "Credential retrieval was cancelled"));
+        }
+    }
+
+    /**
+     * Drops the reference to the credentials once the handshake is over and
+     * wipes the password, now or when a still pending read completes, so
+     * it is not retained for the life of the connection.
+     */
+    void release() {
+        final CompletableFuture<VmCredentials> pending = credentials;
+        credentials = null;
+        if (pending != null) {
+            pending.thenAccept(VmCredentials::wipe);
+        }
+    }
+
+    /**
+     * Carries a credential failure out of the handshake, which only
+     * propagates unchecked exceptions from parameter lookups.
+     */
+    static final class CredentialsUnavailableException
+        extends RuntimeException {
+
+        /** Serialization version. */
+        private static final long serialVersionUID = 1L;
+
+        CredentialsUnavailableException(final GuacamoleException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        @Override
+        public GuacamoleException getCause() {
+            return (GuacamoleException) super.getCause();
+        }
+    }
+}
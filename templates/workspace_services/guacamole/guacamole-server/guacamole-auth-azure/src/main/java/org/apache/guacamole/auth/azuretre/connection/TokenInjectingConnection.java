@@ -18,25 +18,44 @@
  */
 package org.apache.guacamole.auth.azuretre.connection;
 
-import com.azure.core.http.HttpClient;
-import com.azure.core.http.netty.NettyAsyncHttpClientBuilder;
-import com.azure.identity.DefaultAzureCredentialBuilder;
-import com.azure.security.keyvault.secrets.SecretClient;
-import com.azure.security.keyvault.secrets.SecretClientBuilder;
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialSource;
+import org.apache.guacamole.auth.azuretre.credentials.VmCredentials;
+import org.apache.guacamole.environment.LocalEnvironment;
+import org.apache.guacamole.net.GuacamoleSocket;
 import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.InetGuacamoleSocket;
+import org.apache.guacamole.net.SSLGuacamoleSocket;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+import org.apache.guacamole.net.auth.GuacamoleProxyConfiguration;
 import org.apache.guacamole.net.auth.simple.SimpleConnection;
+import org.apache.guacamole.protocol.ConfiguredGuacamoleSocket;
 import org.apache.guacamole.protocol.GuacamoleClientInformation;
 import org.apache.guacamole.protocol.GuacamoleConfiguration;
-import org.json.JSONObject;
+import org.apache.guacamole.token.TokenFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Guacamole connection which injects credentials from Azure Key Vault before
- * establishing the tunnel.
+ * Guacamole connection which injects the VM's admin credentials, read from
+ * the configured {@link CredentialSource}, before establishing the tunnel.
+ *
+ * <p>The credential read and the guacd socket setup run concurrently: the
+ * read is started first, the socket is opened and the handshake begins, and
+ * the credentials are joined only when guacd asks for the connection's
+ * parameters.</p>
+ *
+ * <p>Every connect builds its own immutable configuration and hands it
+ * straight to the guacd socket; the shared configuration of this connection
+ * is only read, so concurrent connects need no locking. Concurrent connects
+ * to the same VM may instead be serialised or refused by a
+ * {@link ConnectAdmission}, whose permit is held until the remote desktop
+ * sends its first frame or the connect fails or is closed.</p>
  */
 public final class TokenInjectingConnection extends SimpleConnection {
 
@@ -44,6 +63,18 @@ public final class TokenInjectingConnection extends SimpleConnection {
     private static final Logger LOGGER = LoggerFactory.getLogger(
         TokenInjectingConnection.class);
 
+    /** Shared source of the VM credentials. */
+    private final CredentialSource credentialSource;
+
+    /** guacd location, or {@code null} to use the environment default. */
+    private final GuacamoleProxyConfiguration proxyConfiguration;
+
+    /** Whether tokens in the configuration are interpreted. */
+    private final boolean interpretTokens;
+
+    /** Admission of concurrent connects to the same VM. */
+    private final ConnectAdmission connectAdmission;
+
     /**
      * Creates a new connection wrapper that can inject credentials retrieved
      * from secure storage.
@@ -52,92 +83,175 @@ public final class TokenInjectingConnection extends SimpleConnection {
      * @param identifier       connection identifier.
      * @param config           backing configuration.
      * @param interpretTokens  whether tokens should be interpreted.
+     * @param credentials      shared source of the VM credentials.
+     */
+    public TokenInjectingConnection(
+        final String name,
+        final String identifier,
+        final GuacamoleConfiguration config,
+        final boolean interpretTokens,
+        final CredentialSource credentials) {
+        this(name, identifier, null, config, interpretTokens, credentials);
+    }
+
+    /**
+     * Creates a new connection wrapper that connects through the given
+     * guacd.
+     *
+     * @param name             display name for the connection.
+     * @param identifier       connection identifier.
+     * @param proxyConfig      guacd location, or {@code null} to use the
+     *                         environment default.
+     * @param config           backing configuration.
+     * @param interpretTokens  whether tokens should be interpreted.
+     * @param credentials      shared source of the VM credentials.
+     */
+    public TokenInjectingConnection(
+        final String name,
+        final String identifier,
+        final GuacamoleProxyConfiguration proxyConfig,
+        final GuacamoleConfiguration config,
+        final boolean interpretTokens,
+        final CredentialSource credentials) {
+        this(
+            name,
+            identifier,
+            proxyConfig,
+            config,
+            interpretTokens,
+            credentials,
+            ConnectAdmission.NONE);
+    }
+
+    /**
+     * Creates a new connection wrapper whose concurrent connects to the same
+     * VM are admitted by the given admission.
+     *
+     * @param name             display name for the connection.
+     * @param identifier       connection identifier.
+     * @param proxyConfig      guacd location, or {@code null} to use the
+     *                         environment default.
+     * @param config           backing configuration.
+     * @param interpretTokens  whether tokens should be interpreted.
+     * @param credentials      shared source of the VM credentials.
+     * @param admission        shared admission of connects to the VM.
      */
     public TokenInjectingConnection(
         final String name,
         final String identifier,
+        final GuacamoleProxyConfiguration proxyConfig,
         final GuacamoleConfiguration config,
-        final boolean interpretTokens) {
+        final boolean interpretTokens,
+        final CredentialSource credentials,
+        final ConnectAdmission admission) {
         super(name, identifier, config, interpretTokens);
+        this.credentialSource = credentials;
+        this.proxyConfiguration = proxyConfig;
+        this.interpretTokens = interpretTokens;
+        this.connectAdmission = admission;
     }
 
     @Override
     public GuacamoleTunnel connect(
         final GuacamoleClientInformation info,
         final Map<String, String> tokens) throws GuacamoleException {
-        final JSONObject credentials =
-            getConnectionCredentialsFromProjectAPI(
-                getConfiguration().getParameter("azure-resource-id"));
-        final GuacamoleConfiguration fullConfig = getFullConfiguration();
-        fullConfig.setParameter("username", credentials.getString("username"));
-        fullConfig.setParameter("password", credentials.getString("password"));
-        setConfiguration(fullConfig);
-
+        final String resourceId =
+            getConfiguration().getParameter("azure-resource-id");
+        final GuacamoleTunnel tunnel;
+        final ConnectAdmission.Permit permit =
+            connectAdmission.admit(resourceId);
         try {
-            return super.connect(info, tokens);
-        } finally {
-            // Clear credentials from configuration after connection attempt.
-            fullConfig.setParameter("username", null);
-            fullConfig.setParameter("password", null);
+            tunnel = establish(info, tokens, resourceId);
+        } catch (final GuacamoleException | RuntimeException ex) {
+            permit.close();
+            throw ex;
         }
+
+        final boolean caching = credentialSource.isCaching();
+        if (!caching && !connectAdmission.isLimiting()) {
+            permit.close();
+            return tunnel;
+        }
+        // The permit is held until the remote desktop answers, so that a
+        // retried connect neither takes over a session still logging in
+        // nor reuses credentials it is about to reject.
+        return new AuthenticationFailureTunnel(tunnel, () -> {
+            if (caching) {
+                // Cached credentials may predate a password rotation.
+                LOGGER.info("VM rejected credentials, discarding cached copy");
+                credentialSource.invalidate(resourceId);
+            }
+        }, permit::close);
     }
 
-    private JSONObject getConnectionCredentialsFromProjectAPI(
-        final String resourceName) throws GuacamoleException {
-        final JSONObject credentials = new JSONObject();
-        String username = null;
-        String password = null;
+    private GuacamoleTunnel establish(
+        final GuacamoleClientInformation info,
+        final Map<String, String> tokens,
+        final String resourceId) throws GuacamoleException {
+        final CompletableFuture<VmCredentials> secret =
+            credentialSource.getCredentials(resourceId);
+        final DeferredCredentialsConfiguration config =
+            new DeferredCredentialsConfiguration(
+                filteredConfiguration(tokens),
+                secret);
 
+        final GuacamoleSocket guacd;
         try {
-            LOGGER.debug(
-                "Loading credentials from Azure Key Vault for secret {}",
-                resourceName);
-            final String keyVaultUri = System.getenv("KEYVAULT_URL");
-            final String managedIdentityClientId = System.getenv(
-                "MANAGED_IDENTITY_CLIENT_ID");
-
-            // Build an HTTP client explicitly for the credential builder.
-            final HttpClient httpClient = new NettyAsyncHttpClientBuilder()
-                .build();
-
-            final SecretClient secretClient = new SecretClientBuilder()
-                .vaultUrl(keyVaultUri)
-                .credential(new DefaultAzureCredentialBuilder()
-                    .managedIdentityClientId(managedIdentityClientId)
-                    .httpClient(httpClient)
-                    .build())
-                .httpClient(httpClient)
-                .buildClient();
-
-            final String secretName = String.format(
-                "%s-admin-credentials",
-                resourceName);
-            final String keyVaultResponse = secretClient
-                .getSecret(secretName)
-                .getValue();
-            final String[] resourceCredentials = keyVaultResponse.split("\\n");
-
-            if (resourceCredentials.length == 2) {
-                username = resourceCredentials[0];
-                password = resourceCredentials[1];
-            } else {
-                LOGGER.error("Invalid credential format from Key Vault");
-                throw new GuacamoleException(
-                    "Failed to retrieve valid credentials");
-            }
-        } catch (final GuacamoleException ex) {
+            guacd = openGuacdSocket();
+        } catch (final GuacamoleException | RuntimeException ex) {
+            secret.cancel(true);
+            config.release();
             throw ex;
-        } catch (final Exception ex) {
-            LOGGER.error(
-                "Key Vault credential fetch failed: {}",
-                ex.getClass().getSimpleName());
-            LOGGER.debug("Detailed error", ex);
-            throw new GuacamoleException(
-                "Failed to retrieve credentials from secure storage");
         }
 
-        credentials.put("username", username);
-        credentials.put("password", password);
-        return credentials;
+        try {
+            return new SimpleGuacamoleTunnel(
+                new ConfiguredGuacamoleSocket(guacd, config, info));
+        } catch (final DeferredCredentialsConfiguration
+            .CredentialsUnavailableException ex) {
+            guacd.close();
+            throw ex.getCause();
+        } catch (final GuacamoleException | RuntimeException ex) {
+            secret.cancel(true);
+            guacd.close();
+            throw ex;
+        } finally {
+            // Clear credentials from configuration after connection attempt.
+            config.release();
+        }
+    }
+
+    private GuacamoleConfiguration filteredConfiguration(
+        final Map<String, String> tokens) {
+        // A private copy; the shared configuration is never modified.
+        final GuacamoleConfiguration filtered =
+            new GuacamoleConfiguration(getFullConfiguration());
+        if (interpretTokens && tokens != null) {
+            final Map<String, String> parameters =
+                new HashMap<>(filtered.getParameters());
+            new TokenFilter(tokens).filterValues(parameters);
+            filtered.setParameters(parameters);
+        }
+        return filtered;
+    }
+
+    private GuacamoleSocket openGuacdSocket() throws GuacamoleException {
+        final GuacamoleProxyConfiguration proxy = proxyConfiguration != null
+            ? proxyConfiguration
+            : LocalEnvironment.getInstance()
+                .getDefaultGuacamoleProxyConfiguration();
+        switch (proxy.getEncryptionMethod()) {
+            case NONE:
+                return new InetGuacamoleSocket(
+                    proxy.getHostname(),
+                    proxy.getPort());
+            case SSL:
+                return new SSLGuacamoleSocket(
+                    proxy.getHostname(),
+                    proxy.getPort());
+            default:
+                throw new GuacamoleServerException(
+                    "Unimplemented encryption method.");
+        }
     }
 }
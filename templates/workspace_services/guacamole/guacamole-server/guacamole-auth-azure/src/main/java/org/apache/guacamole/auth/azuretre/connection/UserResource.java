@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.connection;
+
+/**
+ * Deployed user resource (VM) returned by the TRE API.
+ */
+public final class UserResource {
+
+    /** Azure resource identifier, used as the connection identifier. */
+    private final String azureResourceId;
+
+    /** Private IP address of the VM. */
+    private final String ip;
+
+    /** Display name shown to the user. */
+    private final String displayName;
+
+    /**
+     * Creates a user resource.
+     *
+     * @param resourceId  Azure resource identifier.
+     * @param ipAddress   private IP address of the VM.
+     * @param name        display name shown to the user.
+     */
+    public UserResource(
+        final String resourceId,
+        final String ipAddress,
+        final String name) {
+        this.azureResourceId = resourceId;
+        this.ip = ipAddress;
+        this.displayName = name;
+    }
+
+    /**
+     * Returns the Azure resource identifier.
+     *
+     * @return resource identifier.
+     */
+    public String getAzureResourceId() {
+        return azureResourceId;
+    }
+
+    /**
+     * Returns the private IP address of the VM.
+     *
+     * @return IP address.
+     */
+    public String getIp() {
+        return ip;
+    }
+
+    /**
+     * Returns the display name shown to the user.
+     *
+     * @return display name.
+     */
+    public String getDisplayName() {
+        return displayName;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.connection;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Short-lived cache of the user resources returned by the TRE API.
+ *
+ * <p>The API filters user resources by the roles in the caller's token, so
+ * a researcher only sees their own VMs while a workspace owner sees all of
+ * them. Entries are therefore keyed by a digest of the bearer token and are
+ * only served to requests carrying the same token. A zero time to live
+ * disables caching.</p>
+ */
+public final class UserResourceCache {
+
+    /** Maximum number of tokens whose resources are cached. */
+    private static final long MAXIMUM_SIZE = 10_000;
+
+    /** Cached resources keyed by token digest. */
+    private final Cache<String, List<UserResource>> cache;
+
+    /**
+     * Creates a cache whose entries live for the given duration.
+     *
+     * @param ttl time to live of an entry, or zero to disable caching.
+     */
+    public UserResourceCache(final Duration ttl) {
+        final CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+            .recordStats();
+        if (ttl.isZero() || ttl.isNegative()) {
+            // A zero-sized cache evicts immediately, so every get loads.
+            builder.maximumSize(0);
+        } else {
+            builder.maximumSize(MAXIMUM_SIZE).expireAfterWrite(ttl);
+        }
+        this.cache = builder.build();
+    }
+
+    /**
+     * Returns the cached resources for a token.
+     *
+     * @param tokenDigest digest of the caller's bearer token.
+     * @return immutable list of the caller's resources, or {@code null} if
+     *         none are cached.
+     */
+    public List<UserResource> getIfPresent(final String tokenDigest) {
+        return cache.getIfPresent(tokenDigest);
+    }
+
+    /**
+     * Caches the resources of a token, unless an unexpired entry already
+     * exists. Re-storing a cache hit therefore does not extend its life.
+     *
+     * @param tokenDigest  digest of the caller's bearer token.
+     * @param resources    immutable list of the caller's resources.
+     */
+    public void put(
+        final String tokenDigest,
+        final List<UserResource> resources) {
+        cache.asMap().putIfAbsent(tokenDigest, resources);
+    }
+
+    /**
+     * Caches the resources of a token, replacing any existing entry.
+     *
+     * @param tokenDigest  digest of the caller's bearer token.
+     * @param resources    immutable list of the caller's resources.
+     */
+    public void replace(
+        final String tokenDigest,
+        final List<UserResource> resources) {
+        cache.put(tokenDigest, resources);
+    }
+
+    /**
+     * Discards the cached resources of a token.
+     *
+     * @param tokenDigest digest of the caller's bearer token.
+     */
+    public void invalidate(final String tokenDigest) {
+        cache.invalidate(tokenDigest);
+    }
+
+    /**
+     * Discards every cached entry.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Returns hit and miss statistics for the cache.
+     *
+     * @return cache statistics.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+}
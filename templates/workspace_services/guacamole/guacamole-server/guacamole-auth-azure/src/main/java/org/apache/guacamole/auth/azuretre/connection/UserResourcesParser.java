@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.connection;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streaming parser for the TRE API user-resources response.
+ *
+ * <p>Only {@code hostname}, {@code ip} and {@code display_name} are read from
+ * each resource's {@code properties}; every other value, however large, is
+ * skipped at the token level without being materialised.</p>
+ */
+public final class UserResourcesParser {
+
+    /** Logger for skipped resources. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        UserResourcesParser.class);
+
+    /** Thread-safe parser factory. */
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private UserResourcesParser() {
+    }
+
+    /**
+     * Parses the deployed VMs out of a user-resources response. An empty
+     * body yields an empty list.
+     *
+     * @param body response body; not closed by this method.
+     * @return immutable list of VMs that have both a hostname and an IP.
+     * @throws IOException if the body cannot be read or is malformed.
+     */
+    public static List<UserResource> parse(final InputStream body)
+        throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+            final JsonToken first = parser.nextToken();
+            if (first == null) {
+                return Collections.emptyList();
+            }
+            expect(parser, first, JsonToken.START_OBJECT);
+
+            List<UserResource> resources = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if ("userResources".equals(field)) {
+                    expect(parser, value, JsonToken.START_ARRAY);
+                    resources = parseResources(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            if (resources == null) {
+                throw new JsonParseException(
+                    parser,
+                    "Response does not contain userResources");
+            }
+            return Collections.unmodifiableList(resources);
+        }
+    }
+
+    private static List<UserResource> parseResources(final JsonParser parser)
+        throws IOException {
+        final List<UserResource> resources = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            expect(parser, token, JsonToken.START_OBJECT);
+            final UserResource resource = parseResource(parser);
+            if (resource != null) {
+                resources.add(resource);
+            }
+        }
+        return resources;
+    }
+
+    private static UserResource parseResource(final JsonParser parser)
+        throws IOException {
+        UserResource resource = null;
+        boolean hasProperties = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            if ("properties".equals(field)) {
+                expect(parser, value, JsonToken.START_OBJECT);
+                hasProperties = true;
+                resource = parseProperties(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (!hasProperties) {
+            throw new JsonParseException(
+                parser,
+                "User resource does not contain properties");
+        }
+        return resource;
+    }
+
+    private static UserResource parseProperties(final JsonParser parser)
+        throws IOException {
+        String hostname = null;
+        String ip = null;
+        String displayName = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            switch (field) {
+                case "hostname":
+                    hostname = readString(parser, value);
+                    break;
+                case "ip":
+                    ip = readString(parser, value);
+                    break;
+                case "display_name":
+                    displayName = readString(parser, value);
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        if (hostname == null || ip == null) {
+            LOGGER.info("Missing ip or hostname, skipping VM");
+            return null;
+        }
+        if (displayName == null) {
+            throw new JsonParseException(
+                parser,
+                "User resource " + hostname + " has no display_name");
+        }
+
+        LOGGER.info(
+            "Adding VM id:{} ip:{} name:{}",
+            hostname,
+            ip,
+            displayName);
+        return new UserResource(hostname, ip, displayName);
+    }
+
+    private static String readString(
+        final JsonParser parser,
+        final JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        expect(parser, token, JsonToken.VALUE_STRING);
+        return parser.getText();
+    }
+
+    private static void expect(
+        final JsonParser parser,
+        final JsonToken actual,
+        final JsonToken expected) throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException(
+                parser,
+                "Expected " + expected + " but found " + actual);
+        }
+    }
+}
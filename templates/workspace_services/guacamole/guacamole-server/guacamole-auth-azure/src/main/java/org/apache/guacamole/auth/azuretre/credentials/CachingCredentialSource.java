@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.credentials;
+
+import com.google.common.cache.CacheStats;
+import org.apache.guacamole.GuacamoleException;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps the credentials read from another source for a short time in an
+ * encrypted {@link SecretCache}, so that reconnects skip the underlying
+ * store altogether. Every hit is decrypted into new credentials owned by
+ * the caller; the decrypted bytes are zeroed as soon as they are parsed.
+ */
+public final class CachingCredentialSource implements CredentialSource {
+
+    /** Source of credentials that are not cached. */
+    private final CredentialSource delegate;
+
+    /** Recently read credentials keyed by resource id. */
+    private final SecretCache cache;
+
+    /**
+     * Creates a caching source.
+     *
+     * @param source    source of credentials that are not cached.
+     * @param cacheTtl  how long read credentials are kept.
+     */
+    public CachingCredentialSource(
+        final CredentialSource source,
+        final Duration cacheTtl) {
+        this.delegate = source;
+        this.cache = new SecretCache(cacheTtl);
+    }
+
+    @Override
+    public CompletableFuture<VmCredentials> getCredentials(
+        final String resourceId) {
+        final byte[] cached = cache.getIfPresent(resourceId);
+        if (cached != null) {
+            try {
+                return CompletableFuture.completedFuture(
+                    VmCredentials.parse(cached));
+            } catch (final GuacamoleException ex) {
+                // The cache only holds encoded credentials; should one not
+                // parse, read the store instead.
+                cache.invalidate(resourceId);
+            } finally {
+                Arrays.fill(cached, (byte) 0);
+            }
+        }
+
+        final CompletableFuture<VmCredentials> read =
+            delegate.getCredentials(resourceId);
+        final CompletableFuture<VmCredentials> result =
+            read.thenApply(credentials -> {
+                final byte[] plain = credentials.toBytes();
+                try {
+                    cache.put(resourceId, plain);
+                } finally {
+                    Arrays.fill(plain, (byte) 0);
+                }
+                return credentials;
+            });
+        result.whenComplete((value, ex) -> {
+            if (result.isCancelled()) {
+                read.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Reads a VM's credentials into the cache unless they are already
+     * cached.
+     *
+     * @param resourceId Azure resource id of the VM.
+     * @throws GuacamoleException if the credentials cannot be read.
+     */
+    public void prefetch(final String resourceId) throws GuacamoleException {
+        if (!cache.contains(resourceId)) {
+            CredentialSource.await(getCredentials(resourceId)).wipe();
+        }
+    }
+
+    @Override
+    public boolean isCaching() {
+        return cache.isEnabled();
+    }
+
+    @Override
+    public void invalidate(final String resourceId) {
+        cache.invalidate(resourceId);
+        delegate.invalidate(resourceId);
+    }
+
+    @Override
+    public CompletableFuture<Void> warmUp() {
+        return delegate.warmUp();
+    }
+
+    /**
+     * Returns hit and miss statistics for the credential cache.
+     *
+     * @return cache statistics.
+     */
+    public CacheStats cacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Wipes the cached credentials and closes the underlying source.
+     */
+    @Override
+    public void close() {
+        cache.invalidateAll();
+        delegate.close();
+    }
+}
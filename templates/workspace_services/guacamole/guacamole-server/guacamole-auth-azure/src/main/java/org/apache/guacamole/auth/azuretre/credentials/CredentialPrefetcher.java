@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.credentials;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.auth.azuretre.IoExecutors;
+import org.apache.guacamole.auth.azuretre.TreConfiguration.ExecutionMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Warms the credential cache with the admin credentials of a user's VMs as
+ * soon as their connections are known, so that the first connect to a VM
+ * does not wait for Key Vault.
+ *
+ * <p>Reads run on a dedicated executor, which bounds the number of
+ * concurrent credential reads across every user. A prefetch
+ * can be cancelled when its user context is discarded; reads that have not
+ * started yet are then skipped.</p>
+ */
+public final class CredentialPrefetcher implements AutoCloseable {
+
+    /** Logger for prefetch outcomes. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        CredentialPrefetcher.class);
+
+    /** Credential source whose cache is warmed. */
+    private final CachingCredentialSource credentialSource;
+
+    /** Executor running the reads. */
+    private final ExecutorService executor;
+
+    /**
+     * Creates a prefetcher running on platform threads.
+     *
+     * @param source   credential source whose cache is warmed.
+     * @param threads  maximum number of concurrent reads.
+     */
+    public CredentialPrefetcher(
+        final CachingCredentialSource source,
+        final int threads) {
+        this(source, threads, ExecutionMode.PLATFORM);
+    }
+
+    /**
+     * Creates a prefetcher.
+     *
+     * @param source   credential source whose cache is warmed.
+     * @param threads  maximum number of concurrent reads.
+     * @param mode     threads that run the reads.
+     */
+    public CredentialPrefetcher(
+        final CachingCredentialSource source,
+        final int threads,
+        final ExecutionMode mode) {
+        this.credentialSource = source;
+        this.executor = IoExecutors.create(
+            mode,
+            "azuretre-prefetch",
+            threads);
+    }
+
+    /**
+     * Starts reading the admin credentials of the given VMs into the cache.
+     * Failures are logged and otherwise ignored; the connect retries them.
+     *
+     * @param resourceIds Azure resource ids of the VMs.
+     * @return future completed once every read has finished; cancelling it
+     *         skips the reads that have not started.
+     */
+    public CompletableFuture<Void> prefetch(
+        final Collection<String> resourceIds) {
+        final CompletableFuture<?>[] reads =
+            new CompletableFuture<?>[resourceIds.size()];
+        int i = 0;
+        for (final String resourceId : resourceIds) {
+            reads[i++] = CompletableFuture.runAsync(
+                () -> read(resourceId),
+                executor);
+        }
+
+        final CompletableFuture<Void> all = CompletableFuture.allOf(reads);
+        all.whenComplete((ignored, ex) -> {
+            if (all.isCancelled()) {
+                for (final CompletableFuture<?> read : reads) {
+                    read.cancel(false);
+                }
+            }
+        });
+        return all;
+    }
+
+    private void read(final String resourceId) {
+        try {
+            credentialSource.prefetch(resourceId);
+        } catch (final GuacamoleException ex) {
+            LOGGER.debug("Credential prefetch failed for {}", resourceId);
+        }
+    }
+
+    /**
+     * Stops the prefetch executor, abandoning queued reads.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.credentials;
+
+import org.apache.guacamole.GuacamoleException;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Source of the admin credentials of VMs.
+ *
+ * <p>Each read returns its own {@link VmCredentials}, owned by the caller,
+ * which wipes the password once it has been used. Sources parse secrets
+ * from byte or character arrays rather than strings, so that the password
+ * can be wiped. Reads are asynchronous so that they can overlap with the
+ * guacd handshake.</p>
+ */
+public interface CredentialSource extends AutoCloseable {
+
+    /**
+     * Starts reading the admin credentials of a VM without waiting for
+     * them. Cancelling the returned future abandons this caller's interest
+     * in the read.
+     *
+     * @param resourceId Azure resource id of the VM.
+     * @return future credentials, owned by the caller, failed with a
+     *         {@link GuacamoleException} if they cannot be read.
+     */
+    CompletableFuture<VmCredentials> getCredentials(String resourceId);
+
+    /**
+     * Returns whether credentials are kept after they are read, so that a
+     * stale copy may need to be discarded with {@link #invalidate(String)}.
+     *
+     * @return {@code true} if read credentials are cached.
+     */
+    default boolean isCaching() {
+        return false;
+    }
+
+    /**
+     * Discards any kept copy of a VM's credentials, so that the next read
+     * goes to the underlying store. Used when the credentials turn out to
+     * be stale.
+     *
+     * @param resourceId Azure resource id of the VM.
+     */
+    default void invalidate(final String resourceId) {
+    }
+
+    /**
+     * Opens connections and acquires tokens ahead of the first read, so that
+     * it does not pay for them. Failures are ignored; the read retries them.
+     *
+     * @return future completed once warm-up has finished.
+     */
+    default CompletableFuture<Void> warmUp() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Releases the resources held by this source.
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Waits for a read started by {@link #getCredentials(String)}.
+     *
+     * @param credentials pending or completed read.
+     * @return credentials, owned by the caller.
+     * @throws GuacamoleException if the credentials cannot be read.
+     */
+    static VmCredentials await(
+        final CompletableFuture<VmCredentials> credentials)
+        throws GuacamoleException {
+        try {
+            return credentials.join();
+        } catch (final CompletionException ex) {
+            if (ex.getCause() instanceof GuacamoleException) {
+                throw (GuacamoleException) ex.getCause();
+            }
+            throw new GuacamoleException(
+                "Failed to retrieve credentials from secure storage");
+        } catch (final CancellationException ex) {
+            throw new GuacamoleException(
+                "Credential retrieval was cancelled");
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.credentials;
+
+import org.apache.guacamole.auth.azuretre.TreConfiguration;
+
+import java.time.Duration;
+
+/**
+ * Builds the configured {@link CredentialSource}.
+ */
+public final class CredentialSources {
+
+    private CredentialSources() {
+    }
+
+    /**
+     * Builds the credential source selected by {@code CREDENTIAL_SOURCE},
+     * caching its reads if {@code VM_CREDENTIALS_CACHE_TTL_SECONDS} is set.
+     *
+     * @param configuration extension configuration.
+     * @return credential source owning its resources.
+     */
+    public static CredentialSource create(
+        final TreConfiguration configuration) {
+        final CredentialSource source;
+        switch (configuration.getCredentialSource()) {
+            case FILE:
+                source = new FileCredentialSource(
+                    configuration.getCredentialSourcePath());
+                break;
+            case KEYVAULT:
+            default:
+                source = KeyVaultCredentialSource.create(configuration);
+                break;
+        }
+
+        final Duration ttl = configuration.getVmCredentialsCacheTtl();
+        if (ttl.isZero() || ttl.isNegative()) {
+            return source;
+        }
+        return new CachingCredentialSource(source, ttl);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.credentials;
+
+import org.apache.guacamole.GuacamoleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reads VM credentials from local files instead of Key Vault, so that the
+ * connect path can be exercised and benchmarked without Azure.
+ *
+ * <p>If the configured path is a directory, the credentials of each VM are
+ * read from a file in it named like the VM's Key Vault secret, such as
+ * {@code <resource id>-admin-credentials}. If it is a regular file, every
+ * VM uses the credentials it holds. Files contain the username and
+ * password on separate lines, as the Key Vault secrets do.</p>
+ *
+ * <p>Files are read on the calling thread each time, so that changes are
+ * picked up without a restart.</p>
+ */
+public final class FileCredentialSource implements CredentialSource {
+
+    /** Logger for file reads. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        FileCredentialSource.class);
+
+    /** File or directory holding the credentials. */
+    private final Path path;
+
+    /**
+     * Creates a source reading from the given file or directory.
+     *
+     * @param credentialsPath file or directory holding the credentials.
+     */
+    public FileCredentialSource(final Path credentialsPath) {
+        this.path = credentialsPath.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public CompletableFuture<VmCredentials> getCredentials(
+        final String resourceId) {
+        final byte[] secret;
+        try {
+            secret = Files.readAllBytes(resolve(resourceId));
+        } catch (final IOException | InvalidPathException ex) {
+            LOGGER.error(
+                "Credential file read failed: {}",
+                ex.getClass().getSimpleName());
+            LOGGER.debug("Detailed error", ex);
+            return CompletableFuture.failedFuture(new GuacamoleException(
+                "Failed to retrieve credentials from secure storage"));
+        }
+
+        try {
+            return CompletableFuture.completedFuture(
+                VmCredentials.parse(secret));
+        } catch (final GuacamoleException ex) {
+            LOGGER.error("Invalid credential format in credential file");
+            return CompletableFuture.failedFuture(ex);
+        } finally {
+            Arrays.fill(secret, (byte) 0);
+        }
+    }
+
+    private Path resolve(final String resourceId) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return path;
+        }
+        final Path file = path.resolve(
+            KeyVaultCredentialSource.adminCredentialsName(resourceId))
+            .normalize();
+        // Resource ids come from the TRE API; never leave the directory.
+        if (!path.equals(file.getParent())) {
+            throw new IOException("Resource id is not a valid file name");
+        }
+        return file;
+    }
+}
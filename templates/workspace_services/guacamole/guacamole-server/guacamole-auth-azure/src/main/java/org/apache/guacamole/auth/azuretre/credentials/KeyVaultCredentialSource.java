@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.credentials;
+
+import com.azure.core.http.HttpClient;
+import com.azure.core.http.netty.NettyAsyncHttpClientBuilder;
+import com.azure.identity.DefaultAzureCredentialBuilder;
+import com.azure.security.keyvault.secrets.SecretAsyncClient;
+import com.azure.security.keyvault.secrets.SecretClientBuilder;
+import com.azure.security.keyvault.secrets.models.KeyVaultSecret;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleUpstreamTimeoutException;
+import org.apache.guacamole.auth.azuretre.SingleFlight;
+import org.apache.guacamole.auth.azuretre.TreConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads VM credentials from the workspace Key Vault.
+ *
+ * <p>The HTTP client, its event loops and connection pool, the managed
+ * identity credential and the {@link SecretAsyncClient} are built once and
+ * shared by every connection, so a connect reuses warm TLS sessions and an
+ * access token that is refreshed ahead of its expiry. Concurrent reads of
+ * the same secret share a single Key Vault call.</p>
+ *
+ * <p>Reads are non-blocking and bounded by a deadline: a read that does
+ * not complete in time fails with a
+ * {@link GuacamoleUpstreamTimeoutException}, and a read that every caller
+ * has abandoned cancels its Key Vault request.</p>
+ *
+ * <p>The Key Vault client returns secrets as strings, which cannot be
+ * wiped. Each caller parses the shared string into its own
+ * {@link VmCredentials}, and the string is not kept once the read has
+ * completed.</p>
+ */
+public final class KeyVaultCredentialSource implements CredentialSource {
+
+    /** Number of Netty event loop threads used for Key Vault calls. */
+    private static final int EVENT_LOOP_THREADS = 2;
+
+    /** Default deadline of a Key Vault read. */
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(10);
+
+    /** Seconds allowed for the event loops to shut down. */
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 2;
+
+    /** Suffix of the secret holding a VM's admin credentials. */
+    private static final String ADMIN_CREDENTIALS_SUFFIX =
+        "-admin-credentials";
+
+    /** Secret read during warm-up; it need not exist. */
+    private static final String WARMUP_SECRET_NAME = "azuretre-warmup";
+
+    /** Logger for secret reads. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        KeyVaultCredentialSource.class);
+
+    /** Shared Key Vault client. */
+    private final SecretAsyncClient secretClient;
+
+    /** Deadline of a single Key Vault read. */
+    private final Duration timeout;
+
+    /** Event loops owned by this instance, or {@code null}. */
+    private final EventLoopGroup eventLoopGroup;
+
+    /** Connection pool owned by this instance, or {@code null}. */
+    private final ConnectionProvider connectionProvider;
+
+    /** Token credential owned by this instance, or {@code null}. */
+    private final RefreshingTokenCredential tokenCredential;
+
+    /** In-flight secret reads keyed by secret name. */
+    private final SingleFlight<String, String> flights = new SingleFlight<>();
+
+    /**
+     * Creates a source over an existing client. The client is not closed by
+     * {@link #close()}.
+     *
+     * @param client Key Vault secret client.
+     */
+    public KeyVaultCredentialSource(final SecretAsyncClient client) {
+        this(client, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Creates a source over an existing client. The client is not closed by
+     * {@link #close()}.
+     *
+     * @param client       Key Vault secret client.
+     * @param readTimeout  deadline of a single Key Vault read.
+     */
+    public KeyVaultCredentialSource(
+        final SecretAsyncClient client,
+        final Duration readTimeout) {
+        this(client, readTimeout, null, null, null);
+    }
+
+    private KeyVaultCredentialSource(
+        final SecretAsyncClient client,
+        final Duration readTimeout,
+        final EventLoopGroup group,
+        final ConnectionProvider provider,
+        final RefreshingTokenCredential credential) {
+        this.secretClient = client;
+        this.timeout = readTimeout;
+        this.eventLoopGroup = group;
+        this.connectionProvider = provider;
+        this.tokenCredential = credential;
+    }
+
+    /**
+     * Builds a source for the configured Key Vault, authenticating with the
+     * configured managed identity.
+     *
+     * @param configuration extension configuration.
+     * @return source owning its HTTP resources.
+     */
+    public static KeyVaultCredentialSource create(
+        final TreConfiguration configuration) {
+        final EventLoopGroup group = new NioEventLoopGroup(
+            EVENT_LOOP_THREADS,
+            new DefaultThreadFactory("azuretre-keyvault", true));
+        final ConnectionProvider provider =
+            ConnectionProvider.create("azuretre-keyvault");
+        final HttpClient httpClient = new NettyAsyncHttpClientBuilder()
+            .eventLoopGroup(group)
+            .connectionProvider(provider)
+            .build();
+
+        final RefreshingTokenCredential credential =
+            new RefreshingTokenCredential(new DefaultAzureCredentialBuilder()
+                .managedIdentityClientId(
+                    configuration.getManagedIdentityClientId())
+                .httpClient(httpClient)
+                .build());
+        final SecretAsyncClient client = new SecretClientBuilder()
+            .vaultUrl(configuration.getKeyVaultUrl())
+            .credential(credential)
+            .httpClient(httpClient)
+            .buildAsyncClient();
+        return new KeyVaultCredentialSource(
+            client,
+            configuration.getKeyVaultTimeout(),
+            group,
+            provider,
+            credential);
+    }
+
+    /**
+     * Returns the name of the secret holding a VM's admin credentials.
+     *
+     * @param resourceId Azure resource id of the VM.
+     * @return secret name.
+     */
+    public static String adminCredentialsName(final String resourceId) {
+        return resourceId + ADMIN_CREDENTIALS_SUFFIX;
+    }
+
+    @Override
+    public CompletableFuture<VmCredentials> getCredentials(
+        final String resourceId) {
+        final String secretName = adminCredentialsName(resourceId);
+        final CompletableFuture<String> read =
+            flights.execute(secretName, () -> fetch(secretName));
+        final CompletableFuture<VmCredentials> result =
+            new CompletableFuture<>();
+        read.whenComplete((value, ex) -> {
+            if (ex == null) {
+                complete(result, value);
+            } else if (!read.isCancelled()) {
+                result.completeExceptionally(readFailure(ex));
+            }
+        });
+        result.whenComplete((value, ex) -> {
+            if (result.isCancelled()) {
+                read.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private static void complete(
+        final CompletableFuture<VmCredentials> result,
+        final String secret) {
+        final char[] chars = secret.toCharArray();
+        try {
+            final VmCredentials credentials = VmCredentials.parse(chars);
+            if (!result.complete(credentials)) {
+                // Abandoned while the secret was being read.
+                credentials.wipe();
+            }
+        } catch (final GuacamoleException ex) {
+            LOGGER.error("Invalid credential format from secure storage");
+            result.completeExceptionally(ex);
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    private CompletableFuture<String> fetch(final String secretName) {
+        LOGGER.debug(
+            "Loading credentials from Azure Key Vault for secret {}",
+            secretName);
+        // Cancelling the future disposes the subscription, which aborts
+        // the HTTP request.
+        return secretClient.getSecret(secretName)
+            .map(KeyVaultSecret::getValue)
+            .timeout(timeout)
+            .toFuture();
+    }
+
+    /**
+     * Reads a probe secret, which acquires the managed identity token and
+     * opens a TLS connection to the vault. The probe secret usually does not
+     * exist, so any response from the vault counts as success.
+     *
+     * @return future completed once the vault has responded or the read
+     *         has failed.
+     */
+    @Override
+    public CompletableFuture<Void> warmUp() {
+        return secretClient.getSecret(WARMUP_SECRET_NAME)
+            .timeout(timeout)
+            .then()
+            .onErrorResume(ex -> {
+                LOGGER.debug(
+                    "Key Vault warm-up read ended with {}",
+                    ex.getClass().getSimpleName());
+                return Mono.empty();
+            })
+            .toFuture();
+    }
+
+    private GuacamoleException readFailure(final Throwable failure) {
+        final Throwable cause = failure instanceof CompletionException
+            && failure.getCause() != null ? failure.getCause() : failure;
+        if (cause instanceof TimeoutException) {
+            LOGGER.error(
+                "Key Vault credential fetch timed out after {}",
+                timeout);
+            return new GuacamoleUpstreamTimeoutException(
+                "Timed out retrieving credentials from secure storage");
+        }
+        LOGGER.error(
+            "Key Vault credential fetch failed: {}",
+            cause.getClass().getSimpleName());
+        LOGGER.debug("Detailed error", cause);
+        return new GuacamoleException(
+            "Failed to retrieve credentials from secure storage");
+    }
+
+    /**
+     * Releases the token credential, HTTP connection pool and event loops,
+     * if owned.
+     */
+    @Override
+    public void close() {
+        if (tokenCredential != null) {
+            tokenCredential.close();
+        }
+        if (connectionProvider != null) {
+            connectionProvider.dispose();
+        }
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdownGracefully(
+                0,
+                SHUTDOWN_TIMEOUT_SECONDS,
+                TimeUnit.SECONDS);
+        }
+    }
+}
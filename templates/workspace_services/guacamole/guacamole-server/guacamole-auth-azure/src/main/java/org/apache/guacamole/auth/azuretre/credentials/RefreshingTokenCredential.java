@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.credentials;
+
+import com.azure.core.credential.AccessToken;
+import com.azure.core.credential.TokenCredential;
+import com.azure.core.credential.TokenRequestContext;
+import org.apache.guacamole.auth.azuretre.SingleFlight;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Token credential that keeps the access token for each scope fresh in the
+ * background, so that a Key Vault call never waits for the managed identity
+ * endpoint.
+ *
+ * <p>Once a token has been acquired it is refreshed when
+ * {@value #REFRESH_PERCENT}% of its lifetime has passed. Until the new token
+ * arrives, and if a refresh fails, the current token keeps being served
+ * while it is valid. Only the first request for a scope, or one made after
+ * every refresh has failed and the token has expired, waits for the
+ * underlying credential. Requests carrying claims, such as continuous
+ * access evaluation challenges, always go to the underlying credential.</p>
+ */
+public final class RefreshingTokenCredential
+    implements TokenCredential, AutoCloseable {
+
+    /** Percentage of a token's lifetime after which it is refreshed. */
+    static final int REFRESH_PERCENT = 80;
+
+    /** Shortest delay before retrying a failed refresh. */
+    private static final Duration MIN_RETRY_DELAY = Duration.ofSeconds(1);
+
+    /** Logger for refresh outcomes. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        RefreshingTokenCredential.class);
+
+    /** Credential that acquires tokens. */
+    private final TokenCredential delegate;
+
+    /** Current token for each request, keyed by {@link #key}. */
+    private final Map<String, AccessToken> tokens = new ConcurrentHashMap<>();
+
+    /** In-flight acquisitions keyed by {@link #key}. */
+    private final SingleFlight<String, AccessToken> acquisitions =
+        new SingleFlight<>();
+
+    /** Runs the scheduled refreshes. */
+    private final ScheduledExecutorService scheduler;
+
+    /** Source of the current time. */
+    private final Supplier<OffsetDateTime> clock;
+
+    /**
+     * Wraps a credential.
+     *
+     * @param credential credential that acquires tokens.
+     */
+    public RefreshingTokenCredential(final TokenCredential credential) {
+        this(
+            credential,
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(
+                    runnable,
+                    "azuretre-token-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }),
+            OffsetDateTime::now);
+    }
+
+    /**
+     * Wraps a credential, scheduling refreshes on the given scheduler and
+     * measuring token lifetimes with the given clock.
+     *
+     * @param credential     credential that acquires tokens.
+     * @param refreshes      runs the scheduled refreshes; shut down by
+     *                       {@link #close()}.
+     * @param now            source of the current time.
+     */
+    RefreshingTokenCredential(
+        final TokenCredential credential,
+        final ScheduledExecutorService refreshes,
+        final Supplier<OffsetDateTime> now) {
+        this.delegate = credential;
+        this.scheduler = refreshes;
+        this.clock = now;
+    }
+
+    @Override
+    public Mono<AccessToken> getToken(final TokenRequestContext request) {
+        if (request.getClaims() != null) {
+            return delegate.getToken(request);
+        }
+        final String key = key(request);
+        final AccessToken current = tokens.get(key);
+        if (current != null && !isExpired(current)) {
+            return Mono.just(current);
+        }
+        return Mono.fromFuture(() -> acquire(key, request), true);
+    }
+
+    @Override
+    public AccessToken getTokenSync(final TokenRequestContext request) {
+        if (request.getClaims() == null) {
+            final AccessToken current = tokens.get(key(request));
+            if (current != null && !isExpired(current)) {
+                return current;
+            }
+        }
+        return getToken(request).block();
+    }
+
+    private CompletableFuture<AccessToken> acquire(
+        final String key,
+        final TokenRequestContext request) {
+        return acquisitions.execute(key, () -> {
+            final OffsetDateTime requestedAt = clock.get();
+            return delegate.getToken(request)
+                .doOnNext(token -> {
+                    tokens.put(key, token);
+                    scheduleRefresh(key, request, requestedAt, token);
+                })
+                .toFuture();
+        });
+    }
+
+    private void scheduleRefresh(
+        final String key,
+        final TokenRequestContext request,
+        final OffsetDateTime acquiredAt,
+        final AccessToken token) {
+        final Duration lifetime =
+            Duration.between(acquiredAt, token.getExpiresAt());
+        if (lifetime.isNegative() || lifetime.isZero()) {
+            return;
+        }
+        schedule(
+            key,
+            request,
+            lifetime.multipliedBy(REFRESH_PERCENT).dividedBy(100));
+    }
+
+    private void schedule(
+        final String key,
+        final TokenRequestContext request,
+        final Duration delay) {
+        try {
+            scheduler.schedule(
+                () -> refresh(key, request),
+                delay.toMillis(),
+                TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException ex) {
+            LOGGER.debug("Token refresh not scheduled after close");
+        }
+    }
+
+    private void refresh(final String key, final TokenRequestContext request) {
+        acquire(key, request).whenComplete((token, ex) -> {
+            if (ex == null) {
+                LOGGER.debug("Refreshed access token");
+                return;
+            }
+            final AccessToken current = tokens.get(key);
+            LOGGER.warn("Access token refresh failed: {}", ex.getMessage());
+            if (current == null || isExpired(current)) {
+                // The next request acquires a token and reschedules.
+                tokens.remove(key, current);
+                return;
+            }
+            // Retry halfway to expiry while the current token is valid.
+            final Duration remaining =
+                Duration.between(clock.get(), current.getExpiresAt());
+            final Duration retry = remaining.dividedBy(2);
+            schedule(
+                key,
+                request,
+                retry.compareTo(MIN_RETRY_DELAY) < 0
+                    ? MIN_RETRY_DELAY : retry);
+        });
+    }
+
+    private boolean isExpired(final AccessToken token) {
+        return clock.get().isAfter(token.getExpiresAt());
+    }
+
+    private static String key(final TokenRequestContext request) {
+        return request.getTenantId() + '|' + request.isCaeEnabled() + '|'
+            + String.join(" ", request.getScopes());
+    }
+
+    /**
+     * Stops refreshing tokens.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.credentials;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Short-lived cache of secret values, used so that rapid reconnects to the
+ * same VM do not each read its credentials from Key Vault.
+ *
+ * <p>Values are never held in plain text by the cache: each entry is sealed
+ * with AES-GCM under a key generated for this instance, which never leaves
+ * memory, and its buffer is zeroed when the entry is evicted, expires, is
+ * replaced or is invalidated. Values go in and come out as byte arrays that
+ * the caller owns and zeroes, so that no plain-text copy outlives its use.
+ * A zero time to live disables caching.</p>
+ */
+public final class SecretCache {
+
+    /** Maximum number of cached secrets. */
+    private static final long MAXIMUM_SIZE = 1_000;
+
+    /** Cipher transformation used to seal entries. */
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    /** AES key size in bits. */
+    private static final int KEY_BITS = 256;
+
+    /** GCM initialisation vector length in bytes. */
+    private static final int IV_BYTES = 12;
+
+    /** GCM authentication tag length in bits. */
+    private static final int TAG_BITS = 128;
+
+    /** Source of initialisation vectors. */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** Sealed values keyed by secret name, or {@code null} if disabled. */
+    private final Cache<String, byte[]> cache;
+
+    /** Key sealing the cached values, or {@code null} if disabled. */
+    private final SecretKey key;
+
+    /**
+     * Creates a cache whose entries live for the given duration.
+     *
+     * @param ttl time to live of an entry, or zero to disable caching.
+     */
+    public SecretCache(final Duration ttl) {
+        if (ttl.isZero() || ttl.isNegative()) {
+            this.cache = null;
+            this.key = null;
+            return;
+        }
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .expireAfterWrite(ttl)
+            .removalListener(SecretCache::wipe)
+            .recordStats()
+            .build();
+        this.key = generateKey();
+    }
+
+    /**
+     * Returns whether values are cached at all.
+     *
+     * @return {@code false} if the time to live is zero.
+     */
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Returns the cached value of a secret in a new array, which the caller
+     * zeroes once it has been used.
+     *
+     * @param name name of the secret.
+     * @return secret value, or {@code null} if none is cached.
+     */
+    public byte[] getIfPresent(final String name) {
+        if (cache == null) {
+            return null;
+        }
+        final byte[] sealed = cache.getIfPresent(name);
+        if (sealed == null) {
+            return null;
+        }
+
+        try {
+            final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(
+                Cipher.DECRYPT_MODE,
+                key,
+                new GCMParameterSpec(TAG_BITS, sealed, 0, IV_BYTES));
+            return cipher.doFinal(
+                sealed,
+                IV_BYTES,
+                sealed.length - IV_BYTES);
+        } catch (final GeneralSecurityException ex) {
+            // Wiped concurrently by eviction; treat as a miss.
+            cache.asMap().remove(name, sealed);
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether a value is cached for a secret, without decrypting it
+     * or counting towards the hit statistics.
+     *
+     * @param name name of the secret.
+     * @return {@code true} if an unexpired value is cached.
+     */
+    public boolean contains(final String name) {
+        return cache != null && cache.asMap().containsKey(name);
+    }
+
+    /**
+     * Caches the value of a secret, replacing any existing entry. The value
+     * is not retained; the caller still zeroes it.
+     *
+     * @param name   name of the secret.
+     * @param plain  secret value.
+     */
+    public void put(final String name, final byte[] plain) {
+        if (cache == null) {
+            return;
+        }
+
+        try {
+            final byte[] iv = new byte[IV_BYTES];
+            RANDOM.nextBytes(iv);
+            final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(
+                Cipher.ENCRYPT_MODE,
+                key,
+                new GCMParameterSpec(TAG_BITS, iv));
+            final byte[] sealed =
+                new byte[IV_BYTES + cipher.getOutputSize(plain.length)];
+            System.arraycopy(iv, 0, sealed, 0, IV_BYTES);
+            cipher.doFinal(plain, 0, plain.length, sealed, IV_BYTES);
+            cache.put(name, sealed);
+        } catch (final GeneralSecurityException ex) {
+            throw new IllegalStateException("Unable to seal secret", ex);
+        }
+    }
+
+    /**
+     * Discards and wipes the cached value of a secret.
+     *
+     * @param name name of the secret.
+     */
+    public void invalidate(final String name) {
+        if (cache != null) {
+            cache.invalidate(name);
+        }
+    }
+
+    /**
+     * Discards and wipes every cached value.
+     */
+    public void invalidateAll() {
+        if (cache != null) {
+            cache.invalidateAll();
+            cache.cleanUp();
+        }
+    }
+
+    /**
+     * Returns hit and miss statistics for the cache.
+     *
+     * @return cache statistics, empty if caching is disabled.
+     */
+    public CacheStats stats() {
+        if (cache == null) {
+            return new CacheStats(0, 0, 0, 0, 0, 0);
+        }
+        return cache.stats();
+    }
+
+    private static void wipe(final RemovalNotification<String, byte[]> entry) {
+        final byte[] sealed = entry.getValue();
+        if (sealed != null) {
+            Arrays.fill(sealed, (byte) 0);
+        }
+    }
+
+    private static SecretKey generateKey() {
+        try {
+            final KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(KEY_BITS, RANDOM);
+            return generator.generateKey();
+        } catch (final GeneralSecurityException ex) {
+            throw new IllegalStateException("AES is not available", ex);
+        }
+    }
+}
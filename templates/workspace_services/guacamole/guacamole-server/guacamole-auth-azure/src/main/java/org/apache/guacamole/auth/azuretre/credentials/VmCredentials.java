@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.credentials;
+
+import org.apache.guacamole.GuacamoleException;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Admin username and password of a VM, parsed from a credential secret.
+ *
+ * <p>The password is held in a character array that is not copied when it
+ * is read, so that it can be wiped with {@link #wipe()} as soon as the
+ * connection no longer needs it. Secrets are parsed from byte or character
+ * arrays, which the caller zeroes afterwards. The guacd handshake still
+ * sends the password as a string, which cannot be wiped; see
+ * {@code DeferredCredentialsConfiguration}.</p>
+ */
+public final class VmCredentials {
+
+    /** Admin username. */
+    private final String username;
+
+    /** Admin password; zeroed once wiped. */
+    private final char[] password;
+
+    private VmCredentials(final String user, final char[] secretPassword) {
+        this.username = user;
+        this.password = secretPassword;
+    }
+
+    /**
+     * Parses a UTF-8 credential secret holding the username and the
+     * password on separate lines. The secret is not retained.
+     *
+     * @param secret credential secret.
+     * @return parsed credentials.
+     * @throws GuacamoleException if the secret is not valid UTF-8, or not a
+     *         username line followed by a non-empty password line.
+     */
+    public static VmCredentials parse(final byte[] secret)
+        throws GuacamoleException {
+        final CharBuffer chars;
+        try {
+            // UTF-8 never decodes to more characters than bytes, so the
+            // decoder fills a single buffer without reallocating.
+            chars = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(secret));
+        } catch (final CharacterCodingException ex) {
+            throw invalid();
+        }
+        try {
+            return parse(chars.array(), chars.limit());
+        } finally {
+            Arrays.fill(chars.array(), '\0');
+        }
+    }
+
+    /**
+     * Parses a credential secret holding the username and the password on
+     * separate lines. Lines may end with {@code \n} or {@code \r\n}, and
+     * trailing line breaks are ignored. The secret is not retained.
+     *
+     * @param secret credential secret.
+     * @return parsed credentials.
+     * @throws GuacamoleException if the secret is not a username line
+     *         followed by a non-empty password line.
+     */
+    public static VmCredentials parse(final char[] secret)
+        throws GuacamoleException {
+        return parse(secret, secret.length);
+    }
+
+    private static VmCredentials parse(final char[] secret, final int length)
+        throws GuacamoleException {
+        final int usernameEnd = indexOf(secret, 0, length);
+        if (usernameEnd < 0) {
+            throw invalid();
+        }
+        final int passwordStart = usernameEnd + 1;
+        int passwordEnd = indexOf(secret, passwordStart, length);
+        if (passwordEnd < 0) {
+            passwordEnd = length;
+        }
+        // Only line breaks may follow the password.
+        for (int i = passwordEnd; i < length; i++) {
+            final char c = secret[i];
+            if (c != '\n' && c != '\r') {
+                throw invalid();
+            }
+        }
+
+        final int passwordLength =
+            trimCarriageReturn(secret, passwordStart, passwordEnd)
+                - passwordStart;
+        if (passwordLength <= 0) {
+            throw invalid();
+        }
+        return new VmCredentials(
+            new String(
+                secret,
+                0,
+                trimCarriageReturn(secret, 0, usernameEnd)),
+            Arrays.copyOfRange(
+                secret,
+                passwordStart,
+                passwordStart + passwordLength));
+    }
+
+    private static int indexOf(
+        final char[] secret,
+        final int start,
+        final int end) {
+        for (int i = start; i < end; i++) {
+            if (secret[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int trimCarriageReturn(
+        final char[] secret,
+        final int start,
+        final int end) {
+        return end > start && secret[end - 1] == '\r' ? end - 1 : end;
+    }
+
+    private static GuacamoleException invalid() {
+        return new GuacamoleException("Failed to retrieve valid credentials");
+    }
+
+    /**
+     * Returns the admin username.
+     *
+     * @return username.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the admin password. The array is not copied; it is zeroed by
+     * {@link #wipe()}.
+     *
+     * @return password characters.
+     */
+    public char[] getPassword() {
+        return password;
+    }
+
+    /**
+     * Encodes the credentials back into a UTF-8 credential secret, which
+     * {@link #parse(byte[])} reads. The caller zeroes the returned array.
+     *
+     * @return credential secret.
+     */
+    public byte[] toBytes() {
+        final char[] secret = new char[username.length() + 1 + password.length];
+        username.getChars(0, username.length(), secret, 0);
+        secret[username.length()] = '\n';
+        System.arraycopy(
+            password,
+            0,
+            secret,
+            username.length() + 1,
+            password.length);
+
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        // Sized for the worst case, so that the encoder never reallocates.
+        final ByteBuffer encoded = ByteBuffer.allocate(
+            (int) Math.ceil(secret.length * encoder.maxBytesPerChar()));
+        try {
+            final CoderResult result =
+                encoder.encode(CharBuffer.wrap(secret), encoded, true);
+            if (result.isError()) {
+                throw new IllegalStateException(
+                    "Credentials are not valid UTF-16");
+            }
+            encoder.flush(encoded);
+            return Arrays.copyOf(encoded.array(), encoded.position());
+        } finally {
+            Arrays.fill(secret, '\0');
+            Arrays.fill(encoded.array(), (byte) 0);
+        }
+    }
+
+    /**
+     * Overwrites the password in memory. The credentials must not be used
+     * afterwards.
+     */
+    public void wipe() {
+        Arrays.fill(password, '\0');
+    }
+}
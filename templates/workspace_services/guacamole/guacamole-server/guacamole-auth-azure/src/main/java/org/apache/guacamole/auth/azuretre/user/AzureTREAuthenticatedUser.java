@@ -23,6 +23,9 @@ import org.apache.guacamole.net.auth.AbstractAuthenticatedUser;
 import org.apache.guacamole.net.auth.AuthenticationProvider;
 import org.apache.guacamole.net.auth.Credentials;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
 /**
  * Authenticated user implementation that retains TRE-specific context.
  */
@@ -81,6 +84,23 @@ public final class AzureTREAuthenticatedUser extends AbstractAuthenticatedUser {
         return accessToken;
     }
 
+    /**
+     * Returns whether this user holds the given access token. The tokens are
+     * compared in constant time, so the comparison does not reveal how much
+     * of a guessed token matches.
+     *
+     * @param token access token to compare, may be {@code null}.
+     * @return {@code true} if the tokens are identical.
+     */
+    public boolean hasAccessToken(final String token) {
+        if (token == null || accessToken == null) {
+            return false;
+        }
+        return MessageDigest.isEqual(
+            accessToken.getBytes(StandardCharsets.UTF_8),
+            token.getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
      * Returns the Azure AD object identifier associated with the user.
      *
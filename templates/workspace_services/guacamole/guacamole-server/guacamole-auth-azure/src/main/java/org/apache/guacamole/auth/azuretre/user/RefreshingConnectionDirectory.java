@@ -0,0 +1,362 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.auth.azuretre.user;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleSecurityException;
+import org.apache.guacamole.net.auth.Connection;
+import org.apache.guacamole.net.auth.Directory;
+import org.apache.guacamole.net.auth.permission.ObjectPermissionSet;
+import org.apache.guacamole.net.auth.simple.SimpleObjectPermissionSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Read-only connection directory that serves its current connections
+ * immediately and refreshes them in the background once they are older than
+ * a maximum age (stale-while-revalidate).
+ *
+ * <p>The connections and the matching permission set are held in a single
+ * immutable snapshot that is swapped atomically, so readers never observe a
+ * connection without its permission or vice versa. Callers never wait for a
+ * refresh; if a refresh fails the previous snapshot keeps being served and
+ * the refresh is retried after another maximum age.</p>
+ *
+ * <p>Connections that a refresh or a replacement adds are reported to a
+ * listener, so that work such as reading their credentials can start
+ * before they are first used.</p>
+ */
+public final class RefreshingConnectionDirectory
+    implements Directory<Connection> {
+
+    /** Logger for refresh outcomes. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        RefreshingConnectionDirectory.class);
+
+    /** Loads the current connections, or {@code null} for a fixed set. */
+    private final Supplier<CompletableFuture<Map<String, Connection>>> loader;
+
+    /** Age after which a refresh is started, in nanos. */
+    private final long maxAgeNanos;
+
+    /** Told the identifiers of connections added to the directory. */
+    private final Consumer<Set<String>> addedListener;
+
+    /** Source of the current time, in nanos. */
+    private final LongSupplier nanoClock;
+
+    /** Current immutable snapshot. */
+    private volatile Snapshot snapshot;
+
+    /** In-flight refresh, if any. Guarded by {@code this}. */
+    private CompletableFuture<Map<String, Connection>> pendingRefresh;
+
+    /** Whether the directory has been closed. Guarded by {@code this}. */
+    private boolean closed;
+
+    /**
+     * Creates a directory that refreshes its connections in the background.
+     *
+     * @param connections  initial connections keyed by identifier.
+     * @param maxAge       age after which a refresh is started; zero
+     *                     disables refreshing.
+     * @param connectionLoader  asynchronously loads the current connections.
+     */
+    public RefreshingConnectionDirectory(
+        final Map<String, Connection> connections,
+        final Duration maxAge,
+        final Supplier<CompletableFuture<Map<String, Connection>>>
+            connectionLoader) {
+        this(connections, maxAge, connectionLoader, added -> { });
+    }
+
+    /**
+     * Creates a directory that refreshes its connections in the background
+     * and reports the connections each refresh or replacement adds.
+     *
+     * @param connections       initial connections keyed by identifier.
+     * @param maxAge            age after which a refresh is started; zero
+     *                          disables refreshing.
+     * @param connectionLoader  asynchronously loads the current connections.
+     * @param onAdded           told the identifiers of added connections;
+     *                          called while the directory is locked, so it
+     *                          must not block.
+     */
+    public RefreshingConnectionDirectory(
+        final Map<String, Connection> connections,
+        final Duration maxAge,
+        final Supplier<CompletableFuture<Map<String, Connection>>>
+            connectionLoader,
+        final Consumer<Set<String>> onAdded) {
+        this(connections, maxAge, connectionLoader, onAdded, System::nanoTime);
+    }
+
+    /**
+     * Creates a directory that refreshes its connections in the background,
+     * measuring their age with the given clock.
+     *
+     * @param connections       initial connections keyed by identifier.
+     * @param maxAge            age after which a refresh is started; zero
+     *                          disables refreshing.
+     * @param connectionLoader  asynchronously loads the current connections.
+     * @param onAdded           told the identifiers of added connections.
+     * @param clock             source of the current time, in nanos.
+     */
+    RefreshingConnectionDirectory(
+        final Map<String, Connection> connections,
+        final Duration maxAge,
+        final Supplier<CompletableFuture<Map<String, Connection>>>
+            connectionLoader,
+        final Consumer<Set<String>> onAdded,
+        final LongSupplier clock) {
+        final boolean refreshing = !maxAge.isZero() && !maxAge.isNegative();
+        this.loader = refreshing ? connectionLoader : null;
+        this.maxAgeNanos = maxAge.toNanos();
+        this.addedListener = onAdded;
+        this.nanoClock = clock;
+        this.snapshot = Snapshot.of(connections, clock.getAsLong());
+    }
+
+    /**
+     * Creates a directory over a fixed set of connections.
+     *
+     * @param connections connections keyed by identifier.
+     * @return directory that never refreshes.
+     */
+    public static RefreshingConnectionDirectory fixed(
+        final Map<String, Connection> connections) {
+        return new RefreshingConnectionDirectory(
+            connections,
+            Duration.ZERO,
+            null);
+    }
+
+    /**
+     * Returns the connections of the current snapshot without starting a
+     * refresh. The map is unmodifiable and is the same instance until the
+     * snapshot changes.
+     *
+     * @return connections keyed by identifier.
+     */
+    public Map<String, Connection> getConnections() {
+        return snapshot.connections;
+    }
+
+    /**
+     * Replaces the connections with ones loaded by the caller, such as on
+     * re-authentication. Passing the map returned by
+     * {@link #getConnections()} marks the current connections as fresh
+     * without rebuilding the snapshot. Any in-flight refresh is abandoned,
+     * since it was started with the previous credentials.
+     *
+     * @param connections current connections keyed by identifier.
+     */
+    public synchronized void replace(
+        final Map<String, Connection> connections) {
+        if (pendingRefresh != null) {
+            pendingRefresh.cancel(true);
+            pendingRefresh = null;
+        }
+        final Snapshot current = snapshot;
+        if (connections == current.connections) {
+            snapshot = current.retainedAt(nanoClock.getAsLong());
+        } else {
+            swap(Snapshot.of(connections, nanoClock.getAsLong()));
+        }
+    }
+
+    /**
+     * Returns the permissions granted on the connections of the current
+     * snapshot.
+     *
+     * @return read permissions for every connection.
+     */
+    public ObjectPermissionSet getPermissions() {
+        return current().permissions;
+    }
+
+    @Override
+    public Connection get(final String identifier) {
+        return current().connections.get(identifier);
+    }
+
+    @Override
+    public Collection<Connection> getAll(
+        final Collection<String> identifiers) {
+        final Map<String, Connection> connections = current().connections;
+        final List<Connection> matches = new ArrayList<>(identifiers.size());
+        for (final String identifier : identifiers) {
+            final Connection connection = connections.get(identifier);
+            if (connection != null) {
+                matches.add(connection);
+            }
+        }
+        return matches;
+    }
+
+    @Override
+    public Set<String> getIdentifiers() {
+        return current().connections.keySet();
+    }
+
+    @Override
+    public void add(final Connection object) throws GuacamoleException {
+        throw new GuacamoleSecurityException("Permission denied.");
+    }
+
+    @Override
+    public void update(final Connection object) throws GuacamoleException {
+        throw new GuacamoleSecurityException("Permission denied.");
+    }
+
+    @Override
+    public void remove(final String identifier) throws GuacamoleException {
+        throw new GuacamoleSecurityException("Permission denied.");
+    }
+
+    /**
+     * Stops refreshing and abandons any in-flight refresh.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (pendingRefresh != null) {
+            pendingRefresh.cancel(true);
+            pendingRefresh = null;
+        }
+    }
+
+    private Snapshot current() {
+        final Snapshot current = snapshot;
+        if (loader != null
+            && nanoClock.getAsLong() - current.loadedAtNanos
+                > maxAgeNanos) {
+            startRefresh();
+        }
+        return current;
+    }
+
+    private synchronized void startRefresh() {
+        if (closed || pendingRefresh != null) {
+            return;
+        }
+
+        final CompletableFuture<Map<String, Connection>> refresh;
+        try {
+            refresh = loader.get();
+        } catch (final RuntimeException ex) {
+            LOGGER.warn("Unable to start connection refresh", ex);
+            snapshot = snapshot.retainedAt(nanoClock.getAsLong());
+            return;
+        }
+        pendingRefresh = refresh;
+        refresh.whenComplete((connections, ex) -> completeRefresh(
+            refresh,
+            connections,
+            ex));
+    }
+
+    private synchronized void completeRefresh(
+        final CompletableFuture<Map<String, Connection>> refresh,
+        final Map<String, Connection> connections,
+        final Throwable failure) {
+        if (pendingRefresh != refresh) {
+            return;
+        }
+        pendingRefresh = null;
+        if (closed) {
+            return;
+        }
+
+        if (failure == null) {
+            LOGGER.debug("Refreshed {} connections", connections.size());
+            swap(Snapshot.of(connections, nanoClock.getAsLong()));
+        } else {
+            LOGGER.warn(
+                "Connection refresh failed, serving previous connections: {}",
+                failure.getMessage());
+            snapshot = snapshot.retainedAt(nanoClock.getAsLong());
+        }
+    }
+
+    private void swap(final Snapshot next) {
+        final Map<String, Connection> previous = snapshot.connections;
+        snapshot = next;
+
+        final Set<String> added = new HashSet<>(next.connections.keySet());
+        added.removeAll(previous.keySet());
+        if (added.isEmpty()) {
+            return;
+        }
+        try {
+            addedListener.accept(Collections.unmodifiableSet(added));
+        } catch (final RuntimeException ex) {
+            LOGGER.warn("Added connections listener failed", ex);
+        }
+    }
+
+    /**
+     * Immutable set of connections and the permissions granted on them.
+     */
+    private static final class Snapshot {
+
+        /** Connections keyed by identifier. */
+        private final Map<String, Connection> connections;
+
+        /** Read permissions for every connection. */
+        private final ObjectPermissionSet permissions;
+
+        /** When the connections were loaded, in nanos. */
+        private final long loadedAtNanos;
+
+        private Snapshot(
+            final Map<String, Connection> immutableConnections,
+            final long loadedAt) {
+            this.connections = immutableConnections;
+            this.permissions = new SimpleObjectPermissionSet(
+                immutableConnections.keySet());
+            this.loadedAtNanos = loadedAt;
+        }
+
+        Snapshot retainedAt(final long loadedAt) {
+            return new Snapshot(connections, loadedAt);
+        }
+
+        static Snapshot of(
+            final Map<String, Connection> source,
+            final long loadedAt) {
+            return new Snapshot(
+                Collections.unmodifiableMap(new HashMap<>(source)),
+                loadedAt);
+        }
+    }
+}
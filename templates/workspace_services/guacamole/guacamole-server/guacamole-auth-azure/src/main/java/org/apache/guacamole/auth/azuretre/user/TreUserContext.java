@@ -24,10 +24,8 @@ import org.apache.guacamole.auth.azuretre.AzureTREAuthenticationProvider;
 import org.apache.guacamole.net.auth.AbstractUserContext;
 import org.apache.guacamole.net.auth.AuthenticationProvider;
 import org.apache.guacamole.net.auth.Connection;
-import org.apache.guacamole.net.auth.Directory;
 import org.apache.guacamole.net.auth.User;
 import org.apache.guacamole.net.auth.permission.ObjectPermissionSet;
-import org.apache.guacamole.net.auth.simple.SimpleDirectory;
 import org.apache.guacamole.net.auth.simple.SimpleObjectPermissionSet;
 import org.apache.guacamole.net.auth.simple.SimpleUser;
 import org.slf4j.Logger;
@@ -49,11 +47,17 @@ public final class TreUserContext extends AbstractUserContext {
     private final AuthenticationProvider authProvider;
 
     /** Directory containing connections available to the user. */
-    private final Directory<Connection> connectionDirectory;
+    private final RefreshingConnectionDirectory connectionDirectory;
+
+    /** Action run when the context is invalidated, e.g. on logout. */
+    private final Runnable invalidationHook;
 
     /** Representation of the authenticated user. */
     private User self;
 
+    /** User whose token currently backs this context. */
+    private volatile AzureTREAuthenticatedUser user;
+
     /**
      * Creates a new user context with the supplied connection directory.
      *
@@ -63,9 +67,42 @@ public final class TreUserContext extends AbstractUserContext {
     public TreUserContext(
         final AuthenticationProvider provider,
         final Map<String, Connection> connectionMap) {
+        this(provider, connectionMap, () -> { });
+    }
+
+    /**
+     * Creates a new user context that runs the given action when it is
+     * invalidated.
+     *
+     * @param provider       backing authentication provider.
+     * @param connectionMap  available connection map.
+     * @param onInvalidate   action run when the context is invalidated.
+     */
+    public TreUserContext(
+        final AuthenticationProvider provider,
+        final Map<String, Connection> connectionMap,
+        final Runnable onInvalidate) {
+        this(
+            provider,
+            RefreshingConnectionDirectory.fixed(connectionMap),
+            onInvalidate);
+    }
+
+    /**
+     * Creates a new user context backed by the given connection directory.
+     *
+     * @param provider      backing authentication provider.
+     * @param directory     directory of connections available to the user.
+     * @param onInvalidate  action run when the context is invalidated.
+     */
+    public TreUserContext(
+        final AuthenticationProvider provider,
+        final RefreshingConnectionDirectory directory,
+        final Runnable onInvalidate) {
         LOGGER.debug("Creating a new TRE user context");
         this.authProvider = provider;
-        this.connectionDirectory = new SimpleDirectory<>(connectionMap);
+        this.connectionDirectory = directory;
+        this.invalidationHook = onInvalidate;
     }
 
     /**
@@ -74,15 +111,14 @@ public final class TreUserContext extends AbstractUserContext {
      * @param user authenticated TRE user.
      * @throws GuacamoleException if permission calculations fail.
      */
-    public void init(final AzureTREAuthenticatedUser user)
+    public void init(final AzureTREAuthenticatedUser authenticatedUser)
         throws GuacamoleException {
-        self = new SimpleUser(user.getIdentifier()) {
+        this.user = authenticatedUser;
+        self = new SimpleUser(authenticatedUser.getIdentifier()) {
 
             @Override
-            public ObjectPermissionSet getConnectionPermissions()
-                throws GuacamoleException {
-                return new SimpleObjectPermissionSet(
-                    connectionDirectory.getIdentifiers());
+            public ObjectPermissionSet getConnectionPermissions() {
+                return connectionDirectory.getPermissions();
             }
 
             @Override
@@ -93,6 +129,38 @@ public final class TreUserContext extends AbstractUserContext {
         };
     }
 
+    /**
+     * Returns the user whose token currently backs this context.
+     *
+     * @return authenticated user, or {@code null} before {@link #init}.
+     */
+    public AzureTREAuthenticatedUser getUser() {
+        return user;
+    }
+
+    /**
+     * Moves the context to a newer authentication of the same user,
+     * replacing its connections. Passing the directory's own map when
+     * nothing changed keeps the current snapshot.
+     *
+     * @param authenticatedUser  the same user, authenticated again.
+     * @param connections        the user's current connections.
+     */
+    public void update(
+        final AzureTREAuthenticatedUser authenticatedUser,
+        final Map<String, Connection> connections) {
+        LOGGER.debug("Updating TRE user context");
+        connectionDirectory.replace(connections);
+        this.user = authenticatedUser;
+    }
+
+    @Override
+    public void invalidate() {
+        LOGGER.debug("Invalidating TRE user context");
+        connectionDirectory.close();
+        invalidationHook.run();
+    }
+
     @Override
     public User self() {
         return self;
@@ -110,7 +178,7 @@ public final class TreUserContext extends AbstractUserContext {
      * @return directory of connections.
      */
     @Override
-    public Directory<Connection> getConnectionDirectory() {
+    public RefreshingConnectionDirectory getConnectionDirectory() {
         LOGGER.debug("getConnectionDirectory");
         return connectionDirectory;
     }
@@ -19,14 +19,13 @@ package org.apache.guacamole.auth.azuretre;
  */
 
 import com.auth0.jwk.Jwk;
+import com.auth0.jwk.JwkProvider;
 import com.auth0.jwk.UrlJwkProvider;
 import com.auth0.jwt.JWT;
 import com.auth0.jwt.algorithms.Algorithm;
 import org.apache.guacamole.net.auth.credentials.GuacamoleInvalidCredentialsException;
 import org.hamcrest.CoreMatchers;
-import org.junit.Rule;
 import org.junit.Test;
-import org.junit.contrib.java.lang.system.EnvironmentVariables;
 import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 
@@ -49,11 +48,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class AuthenticationProviderServiceTest {
 
-    @Rule public final EnvironmentVariables environmentVariables = new EnvironmentVariables();
     String audience = "dummy_audience";
     String issuer = "dummy_issuer";
 
@@ -264,14 +264,12 @@ public class AuthenticationProviderServiceTest {
 
             when(jwk.getPublicKey()).thenReturn(publicKey);
             when(jwkProvider.get("dummy_keyid")).thenReturn(jwk);
-            environmentVariables.set("AUDIENCE", audience);
-            environmentVariables.set("ISSUER", issuer);
 
             final AuthenticationProviderService azureTREAuthenticationProviderService =
-                new AuthenticationProviderService();
+                new AuthenticationProviderService(TestConfigurations.create());
             final Method validateToken =
                 AuthenticationProviderService.class.getDeclaredMethod(
-                  "validateToken", String.class, UrlJwkProvider.class);
+                  "validateToken", String.class, JwkProvider.class);
             validateToken.setAccessible(true);
 
             try {
@@ -299,19 +297,69 @@ public class AuthenticationProviderServiceTest {
 
             when(jwk.getPublicKey()).thenReturn(publicKey);
             when(jwkProvider.get("dummy_keyid")).thenReturn(jwk);
-            environmentVariables.set("AUDIENCE", audience);
-            environmentVariables.set("ISSUER", issuer);
 
             final AuthenticationProviderService azureTREAuthenticationProviderService =
-                new AuthenticationProviderService();
+                new AuthenticationProviderService(TestConfigurations.create());
             final Method validateToken =
                 AuthenticationProviderService.class.getDeclaredMethod(
-                  "validateToken", String.class, UrlJwkProvider.class);
+                  "validateToken", String.class, JwkProvider.class);
             validateToken.setAccessible(true);
             validateToken.invoke(azureTREAuthenticationProviderService, jwtToken, jwkProvider);
         }
     }
 
+    @Test
+    public void validateTokenServesRepeatedTokenFromCache() throws Exception {
+        final String jwtToken = generateValidJWTToken();
+        final PublicKey publicKey = getPublicKey();
+
+        final Jwk jwk = mock(Jwk.class);
+        final UrlJwkProvider jwkProvider = mock(UrlJwkProvider.class);
+
+        when(jwk.getPublicKey()).thenReturn(publicKey);
+        when(jwkProvider.get("dummy_keyid")).thenReturn(jwk);
+
+        final AuthenticationProviderService azureTREAuthenticationProviderService =
+            new AuthenticationProviderService(TestConfigurations.create());
+        azureTREAuthenticationProviderService.validateToken(jwtToken, jwkProvider);
+        azureTREAuthenticationProviderService.validateToken(jwtToken, jwkProvider);
+
+        verify(jwkProvider, times(1)).get("dummy_keyid");
+        assertEquals(1, azureTREAuthenticationProviderService.getTokenCache().stats().hitCount());
+    }
+
+    @Test
+    public void validateTokenReusesVerifierForSameKey() throws Exception {
+        final String ownerToken = internalGenerateValidJWTToken("WorkspaceOwner");
+        final String researcherToken = internalGenerateValidJWTToken("WorkspaceResearcher");
+        final PublicKey publicKey = getPublicKey();
+        final Algorithm algorithm = Algorithm.RSA256((RSAPublicKey) publicKey, null);
+
+        try (MockedStatic<Algorithm> mockAlgorithm = Mockito.mockStatic(Algorithm.class)) {
+            mockAlgorithm
+              .when(() -> Algorithm.RSA256((RSAPublicKey) publicKey, null))
+                .thenReturn(algorithm);
+
+            final Jwk jwk = mock(Jwk.class);
+            final UrlJwkProvider jwkProvider = mock(UrlJwkProvider.class);
+
+            when(jwk.getPublicKey()).thenReturn(publicKey);
+            when(jwkProvider.get("dummy_keyid")).thenReturn(jwk);
+
+            final AuthenticationProviderService azureTREAuthenticationProviderService =
+                new AuthenticationProviderService(TestConfigurations.create());
+            azureTREAuthenticationProviderService.validateToken(ownerToken, jwkProvider);
+            azureTREAuthenticationProviderService.validateToken(researcherToken, jwkProvider);
+
+            mockAlgorithm.verify(() -> Algorithm.RSA256((RSAPublicKey) publicKey, null), times(1));
+        }
+    }
+
+    @Test
+    public void validateTokenMatchesRolesCaseInsensitively() throws Exception {
+        validateTokenSucceedWhenValidRole("AIRLOCKMANAGER");
+    }
+
     @Test
     public void validateTokenSucceedWhenResearcherRole() throws Exception {
         validateTokenSucceedWhenValidRole("WorkspaceResearcher");
@@ -340,14 +388,12 @@ public class AuthenticationProviderServiceTest {
 
             when(jwk.getPublicKey()).thenReturn(publicKey);
             when(jwkProvider.get("dummy_keyid")).thenReturn(jwk);
-            environmentVariables.set("AUDIENCE", audience);
-            environmentVariables.set("ISSUER", issuer);
 
             final AuthenticationProviderService azureTREAuthenticationProviderService =
-                new AuthenticationProviderService();
+                new AuthenticationProviderService(TestConfigurations.create());
             final Method validateToken =
                 AuthenticationProviderService.class.getDeclaredMethod(
-                    "validateToken", String.class, UrlJwkProvider.class);
+                    "validateToken", String.class, JwkProvider.class);
             validateToken.setAccessible(true);
 
             try {
@@ -377,14 +423,12 @@ public class AuthenticationProviderServiceTest {
 
             when(jwk.getPublicKey()).thenReturn(publicKey);
             when(jwkProvider.get("dummy_keyid")).thenReturn(jwk);
-            environmentVariables.set("AUDIENCE", audience);
-            environmentVariables.set("ISSUER", issuer);
 
             final AuthenticationProviderService azureTREAuthenticationProviderService =
-                new AuthenticationProviderService();
+                new AuthenticationProviderService(TestConfigurations.create());
             final Method validateToken =
                 AuthenticationProviderService.class.getDeclaredMethod(
-                    "validateToken", String.class, UrlJwkProvider.class);
+                    "validateToken", String.class, JwkProvider.class);
             validateToken.setAccessible(true);
 
             try {
@@ -414,14 +458,12 @@ public class AuthenticationProviderServiceTest {
 
             when(jwk.getPublicKey()).thenReturn(publicKey);
             when(jwkProvider.get("dummy_keyid")).thenReturn(jwk);
-            environmentVariables.set("AUDIENCE", audience);
-            environmentVariables.set("ISSUER", issuer);
 
             final AuthenticationProviderService azureTREAuthenticationProviderService =
-                new AuthenticationProviderService();
+                new AuthenticationProviderService(TestConfigurations.create());
             final Method validateToken =
                 AuthenticationProviderService.class.getDeclaredMethod(
-                    "validateToken", String.class, UrlJwkProvider.class);
+                    "validateToken", String.class, JwkProvider.class);
             validateToken.setAccessible(true);
 
             try {
@@ -453,14 +495,12 @@ public class AuthenticationProviderServiceTest {
             when(jwk.getPublicKey()).thenReturn(publicKey);
             // Simulate a null pointer or other error
             when(jwkProvider.get("dummy_keyid")).thenThrow(new NullPointerException("Internal key vault error"));
-            environmentVariables.set("AUDIENCE", audience);
-            environmentVariables.set("ISSUER", issuer);
 
             final AuthenticationProviderService azureTREAuthenticationProviderService =
-                new AuthenticationProviderService();
+                new AuthenticationProviderService(TestConfigurations.create());
             final Method validateToken =
                 AuthenticationProviderService.class.getDeclaredMethod(
-                    "validateToken", String.class, UrlJwkProvider.class);
+                    "validateToken", String.class, JwkProvider.class);
             validateToken.setAccessible(true);
 
             try {
@@ -1,8 +1,11 @@
 package org.apache.guacamole.auth.azuretre;
 
-import com.auth0.jwk.UrlJwkProvider;
+import com.auth0.jwk.JwkProvider;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.auth.azuretre.connection.ConnectionService;
+import org.apache.guacamole.auth.azuretre.connection.UserResource;
+import org.apache.guacamole.auth.azuretre.credentials.CachingCredentialSource;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialSource;
 import org.apache.guacamole.auth.azuretre.user.AzureTREAuthenticatedUser;
 import org.apache.guacamole.auth.azuretre.user.TreUserContext;
 import org.apache.guacamole.net.RequestDetails;
@@ -14,28 +17,36 @@ import org.apache.guacamole.net.auth.credentials.GuacamoleInvalidCredentialsExce
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.junitpioneer.jupiter.SetEnvironmentVariable;
+import org.mockito.InOrder;
 import org.mockito.Mock;
-import org.mockito.MockedStatic;
-import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 
 public class AzureTREAuthenticationProviderTest {
-    public static final String OAUTH_2_PROXY_JWKS_ENDPOINT = "OAUTH2_PROXY_JWKS_ENDPOINT";
-    public static final String JWKS_MOCK_ENDPOINT_URL = "https://mockedjwks.com";
     public static final String MOCKED_TOKEN = "dummy_token";
     public static final String MOCKED_USERNAME = "mocked@mail.com";
     @Mock
@@ -47,17 +58,32 @@ public class AzureTREAuthenticationProviderTest {
     AzureTREAuthenticationProvider azureTREAuthenticationProvider;
     @Mock
     AzureTREAuthenticatedUser authenticatedUser;
+    @Mock
+    ConnectionService connectionService;
+    @Mock
+    CredentialSource credentialSource;
 
 
     @BeforeEach
-    void setup() {
-        azureTREAuthenticationProvider = new AzureTREAuthenticationProvider(authenticationProviderService);
+    void setup() throws GuacamoleException {
+        azureTREAuthenticationProvider = new AzureTREAuthenticationProvider(
+            TestConfigurations.create(),
+            binder -> {
+                binder.bind(AuthenticationProviderService.class).toInstance(authenticationProviderService);
+                binder.bind(ConnectionService.class).toInstance(connectionService);
+                binder.bind(CredentialSource.class).toInstance(credentialSource);
+            });
     }
 
     private void stubCredentialRequest() {
         when(credentialsMock.getRequestDetails()).thenReturn(requestDetailsMock);
     }
 
+    @Test
+    public void isReadyWhenWarmupIsDisabled() {
+        assertTrue(azureTREAuthenticationProvider.isReady());
+    }
+
     @Test
     public void authenticateUserSucceed() {
         stubCredentialRequest();
@@ -85,19 +111,145 @@ public class AzureTREAuthenticationProviderTest {
     }
 
     @Test
-    @SetEnvironmentVariable(key = OAUTH_2_PROXY_JWKS_ENDPOINT, value = JWKS_MOCK_ENDPOINT_URL)
+    public void updateAuthenticatedUserKeepsUserForSameToken() throws GuacamoleException {
+        stubCredentialRequest();
+        when(requestDetailsMock.getHeader("X-Forwarded-Access-Token")).thenReturn(MOCKED_TOKEN);
+        final AzureTREAuthenticatedUser current = new AzureTREAuthenticatedUser(
+            credentialsMock, MOCKED_TOKEN, MOCKED_USERNAME, null, azureTREAuthenticationProvider);
+
+        assertSame(current, azureTREAuthenticationProvider.updateAuthenticatedUser(current, credentialsMock));
+    }
+
+    @Test
+    public void updateAuthenticatedUserRebuildsUserForNewToken() throws GuacamoleException {
+        stubCredentialRequest();
+        when(requestDetailsMock.getHeader("X-Forwarded-Access-Token")).thenReturn("renewed_token");
+        when(requestDetailsMock.getHeader("X-Forwarded-Preferred-Username")).thenReturn(MOCKED_USERNAME);
+        final AzureTREAuthenticatedUser current = new AzureTREAuthenticatedUser(
+            credentialsMock, MOCKED_TOKEN, MOCKED_USERNAME, null, azureTREAuthenticationProvider);
+
+        final AzureTREAuthenticatedUser updated = (AzureTREAuthenticatedUser)
+            azureTREAuthenticationProvider.updateAuthenticatedUser(current, credentialsMock);
+        assertNotSame(current, updated);
+        assertEquals("renewed_token", updated.getAccessToken());
+    }
+
+    @Test
     public void getUserContextSucceed() throws GuacamoleException {
-        try (MockedStatic<ConnectionService> connectionServiceMockedStatic =
-                 Mockito.mockStatic(ConnectionService.class)) {
-            connectionServiceMockedStatic.when(() -> ConnectionService.getConnections(authenticatedUser))
-                .thenReturn(new HashMap<String, Connection>());
-            when(authenticatedUser.getAccessToken()).thenReturn(MOCKED_TOKEN);
+        final CompletableFuture<List<UserResource>> resources = new CompletableFuture<>();
+        when(connectionService.fetchUserResources(authenticatedUser)).thenReturn(resources);
+        when(connectionService.getConnections(authenticatedUser, resources))
+            .thenReturn(new HashMap<String, Connection>());
+        when(authenticatedUser.getAccessToken()).thenReturn(MOCKED_TOKEN);
+
+        TreUserContext treUserContext =
+            (TreUserContext) azureTREAuthenticationProvider.getUserContext(authenticatedUser);
+        final InOrder inOrder = inOrder(connectionService, authenticationProviderService);
+        inOrder.verify(connectionService).fetchUserResources(authenticatedUser);
+        inOrder.verify(authenticationProviderService).validateToken(anyString(), any(JwkProvider.class));
+        inOrder.verify(connectionService).getConnections(authenticatedUser, resources);
+        assertNotNull(treUserContext);
+    }
+
+    @Test
+    public void updateUserContextKeepsContextWhenTokenIsUnchanged() throws GuacamoleException {
+        final TreUserContext context = new TreUserContext(azureTREAuthenticationProvider, new HashMap<>());
+        when(authenticatedUser.getIdentifier()).thenReturn(MOCKED_USERNAME);
+        when(authenticatedUser.hasAccessToken(MOCKED_TOKEN)).thenReturn(true);
+        context.init(authenticatedUser);
+        final AzureTREAuthenticatedUser sameToken = new AzureTREAuthenticatedUser(
+            credentialsMock, MOCKED_TOKEN, MOCKED_USERNAME, null, azureTREAuthenticationProvider);
+
+        assertSame(context, azureTREAuthenticationProvider.updateUserContext(context, sameToken, credentialsMock));
+        verify(authenticationProviderService).validateToken(anyString(), any(JwkProvider.class));
+        verifyNoInteractions(connectionService);
+        assertSame(authenticatedUser, context.getUser());
+    }
+
+    @Test
+    public void updateUserContextAppliesConnectionChangesForNewToken() throws GuacamoleException {
+        final Map<String, Connection> current = Map.of("vm-1", mock(Connection.class));
+        final TreUserContext context = new TreUserContext(azureTREAuthenticationProvider, current);
+        when(authenticatedUser.getIdentifier()).thenReturn(MOCKED_USERNAME);
+        context.init(authenticatedUser);
+        final AzureTREAuthenticatedUser renewed = new AzureTREAuthenticatedUser(
+            credentialsMock, "renewed_token", MOCKED_USERNAME, null, azureTREAuthenticationProvider);
+        final Map<String, Connection> updated = Map.of("vm-2", mock(Connection.class));
+        when(connectionService.updateConnections(renewed, context.getConnectionDirectory().getConnections()))
+            .thenReturn(updated);
+
+        assertSame(context, azureTREAuthenticationProvider.updateUserContext(context, renewed, credentialsMock));
+        assertSame(renewed, context.getUser());
+        assertEquals(Set.of("vm-2"), context.getConnectionDirectory().getIdentifiers());
+    }
+
+    @Test
+    public void invalidateDiscardsResourcesOfTheLatestToken() throws GuacamoleException {
+        final TreUserContext context = createUserContext(azureTREAuthenticationProvider, new HashMap<>());
+        final AzureTREAuthenticatedUser renewed = new AzureTREAuthenticatedUser(
+            credentialsMock, "renewed_token", MOCKED_USERNAME, null, azureTREAuthenticationProvider);
+        when(connectionService.updateConnections(renewed, context.getConnectionDirectory().getConnections()))
+            .thenReturn(Map.of());
+
+        assertSame(context, azureTREAuthenticationProvider.updateUserContext(context, renewed, credentialsMock));
+        context.invalidate();
+
+        verify(connectionService).invalidate(renewed);
+        verify(connectionService, never()).invalidate(authenticatedUser);
+    }
+
+    @Test
+    public void connectionsAddedOnReauthenticationArePrefetched() throws GuacamoleException {
+        final CachingCredentialSource cachingSource = mock(CachingCredentialSource.class);
+        final AzureTREAuthenticationProvider provider = new AzureTREAuthenticationProvider(
+            TestConfigurations.create(
+                "VM_CREDENTIALS_CACHE_TTL_SECONDS", "60",
+                "VM_CREDENTIALS_PREFETCH_THREADS", "1"),
+            binder -> {
+                binder.bind(AuthenticationProviderService.class).toInstance(authenticationProviderService);
+                binder.bind(ConnectionService.class).toInstance(connectionService);
+                binder.bind(CredentialSource.class).toInstance(cachingSource);
+            });
+        final Connection vmOne = mock(Connection.class);
+        final TreUserContext context = createUserContext(provider, Map.of("vm-1", vmOne));
+        verify(cachingSource, timeout(5000)).prefetch("vm-1");
+
+        final AzureTREAuthenticatedUser renewed = new AzureTREAuthenticatedUser(
+            credentialsMock, "renewed_token", MOCKED_USERNAME, null, provider);
+        when(connectionService.updateConnections(renewed, context.getConnectionDirectory().getConnections()))
+            .thenReturn(Map.of("vm-1", vmOne, "vm-2", mock(Connection.class)));
+        provider.updateUserContext(context, renewed, credentialsMock);
+
+        verify(cachingSource, timeout(5000)).prefetch("vm-2");
+        verify(cachingSource).prefetch("vm-1");
+        context.invalidate();
+    }
+
+    private TreUserContext createUserContext(
+        final AzureTREAuthenticationProvider provider,
+        final Map<String, Connection> connections) throws GuacamoleException {
+        final CompletableFuture<List<UserResource>> resources = new CompletableFuture<>();
+        when(connectionService.fetchUserResources(authenticatedUser)).thenReturn(resources);
+        when(connectionService.getConnections(authenticatedUser, resources)).thenReturn(connections);
+        when(authenticatedUser.getAccessToken()).thenReturn(MOCKED_TOKEN);
+        when(authenticatedUser.getIdentifier()).thenReturn(MOCKED_USERNAME);
+        return (TreUserContext) provider.getUserContext(authenticatedUser);
+    }
+
+    @Test
+    public void updateUserContextFailsWhenNewTokenIsInvalid() throws GuacamoleException {
+        final TreUserContext context = new TreUserContext(azureTREAuthenticationProvider, new HashMap<>());
+        when(authenticatedUser.getIdentifier()).thenReturn(MOCKED_USERNAME);
+        context.init(authenticatedUser);
+        final AzureTREAuthenticatedUser renewed = new AzureTREAuthenticatedUser(
+            credentialsMock, "renewed_token", MOCKED_USERNAME, null, azureTREAuthenticationProvider);
+        doThrow(new GuacamoleInvalidCredentialsException(
+            "Could not validate token",
+            CredentialsInfo.USERNAME_PASSWORD))
+            .when(authenticationProviderService).validateToken(anyString(), any(JwkProvider.class));
 
-            TreUserContext treUserContext =
-                (TreUserContext) azureTREAuthenticationProvider.getUserContext(authenticatedUser);
-            verify(authenticationProviderService).validateToken(anyString(), any(UrlJwkProvider.class));
-            assertNotNull(treUserContext);
-        }
+        assertNull(azureTREAuthenticationProvider.updateUserContext(context, renewed, credentialsMock));
+        verifyNoInteractions(connectionService);
     }
 
     @Test
@@ -107,18 +259,16 @@ public class AzureTREAuthenticationProviderTest {
     }
 
     @Test
-    @SetEnvironmentVariable(key = OAUTH_2_PROXY_JWKS_ENDPOINT, value = JWKS_MOCK_ENDPOINT_URL)
     public void getUserContextFailsWhenTokenValidation() throws GuacamoleException {
-        try (MockedStatic<ConnectionService> connectionServiceMockedStatic =
-                 Mockito.mockStatic(ConnectionService.class)) {
-            connectionServiceMockedStatic.when(() -> ConnectionService.getConnections(authenticatedUser))
-                .thenReturn(new HashMap<String, Connection>());
-            when(authenticatedUser.getAccessToken()).thenReturn(MOCKED_TOKEN);
-            doThrow(new GuacamoleInvalidCredentialsException(
-                "Could not validate token",
-                CredentialsInfo.USERNAME_PASSWORD))
-                .when(authenticationProviderService).validateToken(anyString(), any(UrlJwkProvider.class));
-            assertNull(azureTREAuthenticationProvider.getUserContext(authenticatedUser));
-        }
+        final CompletableFuture<List<UserResource>> resources = new CompletableFuture<>();
+        when(connectionService.fetchUserResources(authenticatedUser)).thenReturn(resources);
+        when(authenticatedUser.getAccessToken()).thenReturn(MOCKED_TOKEN);
+        doThrow(new GuacamoleInvalidCredentialsException(
+            "Could not validate token",
+            CredentialsInfo.USERNAME_PASSWORD))
+            .when(authenticationProviderService).validateToken(anyString(), any(JwkProvider.class));
+        assertNull(azureTREAuthenticationProvider.getUserContext(authenticatedUser));
+        verify(connectionService, never()).getConnections(any(), any());
+        assertTrue(resources.isCancelled());
     }
 }
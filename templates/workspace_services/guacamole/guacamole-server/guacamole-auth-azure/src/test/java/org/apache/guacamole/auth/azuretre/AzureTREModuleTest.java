@@ -0,0 +1,115 @@
+package org.apache.guacamole.auth.azuretre;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import com.google.inject.util.Modules;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.auth.azuretre.connection.ApiHttpClient;
+import org.apache.guacamole.auth.azuretre.connection.ConnectionService;
+import org.apache.guacamole.auth.azuretre.credentials.CachingCredentialSource;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialPrefetcher;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.http.HttpClient;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+public class AzureTREModuleTest {
+
+    private static final Key<Optional<CredentialPrefetcher>> PREFETCHER =
+        Key.get(new TypeLiteral<Optional<CredentialPrefetcher>>() { });
+
+    @TempDir
+    Path credentialsDir;
+
+    private TreConfiguration fileConfiguration(final String... overrides) throws GuacamoleException {
+        final String[] variables = new String[overrides.length + 4];
+        variables[0] = "CREDENTIAL_SOURCE";
+        variables[1] = "file";
+        variables[2] = "CREDENTIAL_SOURCE_PATH";
+        variables[3] = credentialsDir.toString();
+        System.arraycopy(overrides, 0, variables, 4, overrides.length);
+        return TestConfigurations.create(variables);
+    }
+
+    @Test
+    public void servicesAreSharedSingletons() throws GuacamoleException {
+        try (AzureTREModule module = new AzureTREModule(fileConfiguration())) {
+            final Injector injector = Guice.createInjector(module);
+
+            assertSame(
+                injector.getInstance(ConnectionService.class),
+                injector.getInstance(ConnectionService.class));
+            assertSame(
+                injector.getInstance(CredentialSource.class),
+                injector.getInstance(CredentialSource.class));
+            assertSame(
+                injector.getInstance(ApiHttpClient.class).get(),
+                injector.getInstance(HttpClient.class));
+            assertFalse(injector.getInstance(PREFETCHER).isPresent());
+        }
+    }
+
+    @Test
+    public void prefetcherIsProvidedWhenEnabled() throws GuacamoleException {
+        try (AzureTREModule module = new AzureTREModule(
+            fileConfiguration(
+                "VM_CREDENTIALS_CACHE_TTL_SECONDS", "60",
+                "VM_CREDENTIALS_PREFETCH_THREADS", "2"))) {
+            final Injector injector = Guice.createInjector(module);
+
+            assertTrue(injector.getInstance(PREFETCHER).isPresent());
+            assertInstanceOf(
+                CachingCredentialSource.class,
+                injector.getInstance(CredentialSource.class));
+        }
+    }
+
+    @Test
+    public void closeStopsOwnedResourcesButNotOverrides() throws GuacamoleException {
+        final CredentialSource credentialSource = mock(CredentialSource.class);
+        final AzureTREModule module = new AzureTREModule(fileConfiguration());
+        final Injector injector = Guice.createInjector(
+            Modules.override(module).with(binder -> binder
+                .bind(CredentialSource.class)
+                .toInstance(credentialSource)));
+        injector.getInstance(ConnectionService.class);
+        final ExecutorService executor = (ExecutorService) injector
+            .getInstance(HttpClient.class).executor().orElseThrow();
+
+        module.close();
+
+        assertTrue(executor.isShutdown());
+        verifyNoInteractions(credentialSource);
+    }
+}
@@ -0,0 +1,196 @@
+package org.apache.guacamole.auth.azuretre;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.auth0.jwk.Jwk;
+import com.auth0.jwk.SigningKeyNotFoundException;
+import com.auth0.jwk.UrlJwkProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class CachingJwkProviderTest {
+
+    @Mock
+    private UrlJwkProvider urlJwkProvider;
+
+    private CachingJwkProvider jwkProvider;
+
+    @AfterEach
+    public void teardown() {
+        if (jwkProvider != null) {
+            jwkProvider.close();
+        }
+    }
+
+    private static Jwk jwk(final String keyId) {
+        final Jwk jwk = mock(Jwk.class);
+        when(jwk.getId()).thenReturn(keyId);
+        return jwk;
+    }
+
+    @Test
+    public void getFetchesOnceForKnownKeys() throws Exception {
+        final Jwk first = jwk("kid1");
+        final Jwk second = jwk("kid2");
+        when(urlJwkProvider.getAll()).thenReturn(List.of(first, second));
+        jwkProvider = new CachingJwkProvider(urlJwkProvider, Duration.ofHours(1), Duration.ofSeconds(30));
+
+        assertSame(first, jwkProvider.get("kid1"));
+        assertSame(second, jwkProvider.get("kid2"));
+        assertSame(first, jwkProvider.get("kid1"));
+        verify(urlJwkProvider, times(1)).getAll();
+    }
+
+    @Test
+    public void getForcesRefreshForUnknownKey() throws Exception {
+        final Jwk first = jwk("kid1");
+        final Jwk rotated = jwk("kid2");
+        when(urlJwkProvider.getAll())
+            .thenReturn(List.of(first))
+            .thenReturn(List.of(first, rotated));
+        jwkProvider = new CachingJwkProvider(urlJwkProvider, Duration.ofHours(1), Duration.ZERO);
+
+        assertSame(first, jwkProvider.get("kid1"));
+        assertSame(rotated, jwkProvider.get("kid2"));
+        verify(urlJwkProvider, times(2)).getAll();
+    }
+
+    @Test
+    public void forcedRefreshIsBoundedByCooldown() throws Exception {
+        final Jwk first = jwk("kid1");
+        when(urlJwkProvider.getAll()).thenReturn(List.of(first));
+        jwkProvider = new CachingJwkProvider(urlJwkProvider, Duration.ofHours(1), Duration.ofMinutes(5));
+
+        jwkProvider.get("kid1");
+        assertThrows(SigningKeyNotFoundException.class, () -> jwkProvider.get("unknown"));
+        assertThrows(SigningKeyNotFoundException.class, () -> jwkProvider.get("unknown"));
+        verify(urlJwkProvider, times(1)).getAll();
+    }
+
+    @Test
+    public void backgroundRefreshRunsAheadOfExpiry() throws Exception {
+        final Jwk first = jwk("kid1");
+        when(urlJwkProvider.getAll()).thenReturn(List.of(first));
+        jwkProvider = new CachingJwkProvider(urlJwkProvider, Duration.ofMillis(250), Duration.ofMinutes(5));
+
+        jwkProvider.get("kid1");
+        verify(urlJwkProvider, timeout(3000).atLeast(2)).getAll();
+    }
+
+    @Test
+    public void zeroTtlDoesNotRefreshInATightLoop() throws Exception {
+        final Jwk first = jwk("kid1");
+        when(urlJwkProvider.getAll()).thenReturn(List.of(first));
+        jwkProvider = new CachingJwkProvider(urlJwkProvider, Duration.ZERO, Duration.ZERO);
+
+        jwkProvider.get("kid1");
+        verify(urlJwkProvider, after(500).times(1)).getAll();
+    }
+
+    @Test
+    public void failingEndpointIsNotRetriedInATightLoop() throws Exception {
+        when(urlJwkProvider.getAll()).thenThrow(new SigningKeyNotFoundException("unreachable", null));
+        jwkProvider = new CachingJwkProvider(urlJwkProvider, Duration.ofHours(1), Duration.ZERO);
+
+        assertThrows(SigningKeyNotFoundException.class, () -> jwkProvider.get("kid1"));
+        verify(urlJwkProvider, after(500).times(1)).getAll();
+    }
+
+    @Test
+    public void expiredKeysAreServedWhileRefreshFails() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        final Jwk first = jwk("kid1");
+        when(urlJwkProvider.getAll())
+            .thenReturn(List.of(first))
+            .thenThrow(new SigningKeyNotFoundException("unreachable", null));
+        jwkProvider = new CachingJwkProvider(
+            urlJwkProvider, Duration.ofHours(1), Duration.ofSeconds(30), clock::get);
+
+        jwkProvider.get("kid1");
+        clock.addAndGet(Duration.ofMinutes(61).toNanos());
+
+        assertSame(first, jwkProvider.get("kid1"));
+        assertSame(first, jwkProvider.get("kid1"));
+        verify(urlJwkProvider, times(2)).getAll();
+    }
+
+    @Test
+    public void expiredKeysAreRefreshedOncePerCooldown() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        final Jwk first = jwk("kid1");
+        final Jwk second = jwk("kid1");
+        when(urlJwkProvider.getAll())
+            .thenReturn(List.of(first))
+            .thenThrow(new SigningKeyNotFoundException("unreachable", null))
+            .thenReturn(List.of(second));
+        jwkProvider = new CachingJwkProvider(
+            urlJwkProvider, Duration.ofHours(1), Duration.ofSeconds(30), clock::get);
+
+        jwkProvider.get("kid1");
+        clock.addAndGet(Duration.ofMinutes(61).toNanos());
+        assertSame(first, jwkProvider.get("kid1"));
+
+        clock.addAndGet(Duration.ofSeconds(31).toNanos());
+        assertSame(second, jwkProvider.get("kid1"));
+        verify(urlJwkProvider, times(3)).getAll();
+    }
+
+    @Test
+    public void keysPastStaleGraceAreNotServed() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        final Jwk first = jwk("kid1");
+        when(urlJwkProvider.getAll())
+            .thenReturn(List.of(first))
+            .thenThrow(new SigningKeyNotFoundException("unreachable", null));
+        jwkProvider = new CachingJwkProvider(
+            urlJwkProvider, Duration.ofHours(1), Duration.ofSeconds(30), clock::get);
+
+        jwkProvider.get("kid1");
+        clock.addAndGet(Duration.ofHours(2).toNanos());
+
+        assertThrows(SigningKeyNotFoundException.class, () -> jwkProvider.get("kid1"));
+        assertThrows(SigningKeyNotFoundException.class, () -> jwkProvider.get("kid1"));
+        verify(urlJwkProvider, times(2)).getAll();
+    }
+
+    @Test
+    public void getPropagatesFetchFailure() throws Exception {
+        when(urlJwkProvider.getAll()).thenThrow(new SigningKeyNotFoundException("unreachable", null));
+        jwkProvider = new CachingJwkProvider(urlJwkProvider, Duration.ofHours(1), Duration.ofSeconds(30));
+
+        assertThrows(SigningKeyNotFoundException.class, () -> jwkProvider.get("kid1"));
+    }
+}
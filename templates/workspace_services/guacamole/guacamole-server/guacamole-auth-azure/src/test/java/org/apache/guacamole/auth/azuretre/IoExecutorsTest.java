@@ -0,0 +1,106 @@
+package org.apache.guacamole.auth.azuretre;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.guacamole.auth.azuretre.TreConfiguration.ExecutionMode;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IoExecutorsTest {
+
+    @Test
+    public void threadPerTaskBoundsConcurrentTasks() throws Exception {
+        final ExecutorService executor = IoExecutors.threadPerTask(Thread::new, 2);
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final CountDownLatch thirdStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 2; i++) {
+            executor.execute(() -> {
+                bothStarted.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        assertTrue(bothStarted.await(5, TimeUnit.SECONDS));
+
+        executor.execute(() -> {
+            thirdStarted.countDown();
+            done.countDown();
+        });
+
+        // Both permits are held, so the third task cannot start.
+        assertFalse(thirdStarted.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(thirdStarted.await(5, TimeUnit.SECONDS));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> { }));
+    }
+
+    @Test
+    public void threadPerTaskShutdownNowDropsWaitingTasks() throws Exception {
+        final ExecutorService executor = IoExecutors.threadPerTask(Thread::new, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        // Submit the second task only once the first holds the only permit.
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.execute(ran::incrementAndGet);
+
+        executor.shutdownNow();
+
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, ran.get());
+    }
+
+    @Test
+    public void virtualModeRunsTasksOnEveryJdk() throws Exception {
+        final ExecutorService executor = IoExecutors.create(ExecutionMode.VIRTUAL, "azuretre-test", 1);
+        try {
+            final String name = executor.submit(() -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS);
+            assertTrue(name.startsWith("azuretre-test-"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
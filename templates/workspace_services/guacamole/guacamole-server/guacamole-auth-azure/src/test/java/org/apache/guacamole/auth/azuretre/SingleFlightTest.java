@@ -0,0 +1,119 @@
+package org.apache.guacamole.auth.azuretre;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SingleFlightTest {
+
+    private final SingleFlight<String, String> flights = new SingleFlight<>();
+
+    @Test
+    public void concurrentCallersShareOneCall() throws Exception {
+        final CompletableFuture<String> call = new CompletableFuture<>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        final CompletableFuture<String> first = flights.execute("key", () -> {
+            calls.incrementAndGet();
+            return call;
+        });
+        final CompletableFuture<String> second = flights.execute("key", () -> {
+            calls.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        call.complete("value");
+
+        assertEquals("value", first.get());
+        assertEquals("value", second.get());
+        assertEquals(1, calls.get());
+        assertEquals(0, flights.inFlight());
+    }
+
+    @Test
+    public void differentKeysDoNotShareCalls() {
+        final AtomicInteger calls = new AtomicInteger();
+        flights.execute("a", () -> {
+            calls.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        flights.execute("b", () -> {
+            calls.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+
+        assertEquals(2, calls.get());
+        assertEquals(2, flights.inFlight());
+    }
+
+    @Test
+    public void completedCallsAreNotReused() throws Exception {
+        assertEquals("one", flights.execute("key", () -> CompletableFuture.completedFuture("one")).get());
+        assertEquals("two", flights.execute("key", () -> CompletableFuture.completedFuture("two")).get());
+    }
+
+    @Test
+    public void failuresAreSharedWithTheOriginalCause() {
+        final CompletableFuture<String> call = new CompletableFuture<>();
+        final CompletableFuture<String> first = flights.execute("key", () -> call);
+        final CompletableFuture<String> second = flights.execute("key", () -> call);
+        final IllegalStateException failure = new IllegalStateException("boom");
+        call.completeExceptionally(failure);
+
+        assertSame(failure, assertThrows(ExecutionException.class, first::get).getCause());
+        assertSame(failure, assertThrows(ExecutionException.class, second::get).getCause());
+    }
+
+    @Test
+    public void callIsCancelledOnlyWhenEveryCallerAbandonsIt() throws Exception {
+        final CompletableFuture<String> call = new CompletableFuture<>();
+        final CompletableFuture<String> first = flights.execute("key", () -> call);
+        final CompletableFuture<String> second = flights.execute("key", () -> call);
+
+        first.cancel(true);
+        assertFalse(call.isCancelled());
+
+        second.cancel(true);
+        assertTrue(call.isCancelled());
+        assertEquals(0, flights.inFlight());
+
+        final CompletableFuture<String> fresh = flights.execute(
+            "key", () -> CompletableFuture.completedFuture("again"));
+        assertEquals("again", fresh.get());
+    }
+
+    @Test
+    public void supplierExceptionsFailTheCall() {
+        final CompletableFuture<String> result = flights.execute("key", () -> {
+            throw new IllegalArgumentException("bad");
+        });
+
+        assertTrue(result.isCompletedExceptionally());
+        assertEquals(0, flights.inFlight());
+    }
+}
@@ -0,0 +1,57 @@
+package org.apache.guacamole.auth.azuretre;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.guacamole.GuacamoleServerException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds configurations for tests without touching the environment.
+ */
+public final class TestConfigurations {
+
+    private TestConfigurations() {
+    }
+
+    public static Map<String, String> requiredVariables() {
+        final Map<String, String> variables = new HashMap<>();
+        variables.put("AUDIENCE", "dummy_audience");
+        variables.put("ISSUER", "dummy_issuer");
+        variables.put("OAUTH2_PROXY_JWKS_ENDPOINT", "https://mockedjwks.com");
+        variables.put("API_URL", "http://localhost:8080");
+        variables.put("WORKSPACE_ID", "test-workspace-123");
+        variables.put("SERVICE_ID", "test-service-456");
+        variables.put("KEYVAULT_URL", "https://mocked.vault.azure.net/");
+        return variables;
+    }
+
+    /**
+     * Creates a configuration from the required variables plus overrides
+     * given as alternating names and values.
+     */
+    public static TreConfiguration create(final String... overrides) throws GuacamoleServerException {
+        final Map<String, String> variables = requiredVariables();
+        for (int i = 0; i + 1 < overrides.length; i += 2) {
+            variables.put(overrides[i], overrides[i + 1]);
+        }
+        return TreConfiguration.fromMap(variables);
+    }
+}
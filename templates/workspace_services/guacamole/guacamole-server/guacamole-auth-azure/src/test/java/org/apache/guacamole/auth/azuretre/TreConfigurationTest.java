@@ -0,0 +1,168 @@
+package org.apache.guacamole.auth.azuretre;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.guacamole.GuacamoleServerException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TreConfigurationTest {
+
+    @Test
+    public void fromMapReadsRequiredValues() throws GuacamoleServerException {
+        final TreConfiguration configuration = TestConfigurations.create();
+
+        assertEquals("dummy_audience", configuration.getAudience());
+        assertEquals("dummy_issuer", configuration.getIssuer());
+        assertEquals("https://mockedjwks.com", configuration.getJwksEndpoint().toString());
+        assertEquals(
+            "http://localhost:8080/api/workspaces/test-workspace-123/workspace-services/test-service-456/user-resources",
+            configuration.getUserResourcesUrl());
+        assertEquals("https://mocked.vault.azure.net/", configuration.getKeyVaultUrl());
+        assertNull(configuration.getManagedIdentityClientId());
+    }
+
+    @Test
+    public void fromMapAppliesDefaults() throws GuacamoleServerException {
+        final TreConfiguration configuration = TestConfigurations.create();
+
+        assertEquals(Duration.ofHours(1), configuration.getJwksCacheTtl());
+        assertEquals(Duration.ofSeconds(30), configuration.getJwksRefreshCooldown());
+        assertEquals(10_000, configuration.getTokenCacheSize());
+        assertEquals(Duration.ZERO, configuration.getVmCredentialsCacheTtl());
+        assertEquals(0, configuration.getVmCredentialsPrefetchThreads());
+        assertEquals(Duration.ofSeconds(10), configuration.getKeyVaultTimeout());
+        assertEquals(TreConfiguration.CredentialSourceType.KEYVAULT, configuration.getCredentialSource());
+        assertNull(configuration.getCredentialSourcePath());
+        assertEquals(TreConfiguration.ConnectAdmissionPolicy.NONE, configuration.getConnectAdmission());
+        assertEquals(Duration.ofSeconds(30), configuration.getConnectAdmissionTimeout());
+        assertEquals(TreConfiguration.ExecutionMode.PLATFORM, configuration.getExecutionMode());
+        assertFalse(configuration.isWarmupEnabled());
+        assertTrue(configuration.getRdpParameters().isEmpty());
+    }
+
+    @Test
+    public void fromMapReadsRdpParameters() throws GuacamoleServerException {
+        final TreConfiguration configuration = TestConfigurations.create(
+            "GUAC_DISABLE_COPY", "true",
+            "GUAC_DRIVE_NAME", "transfer",
+            "GUAC_SERVER_LAYOUT", "en-us-qwerty",
+            "GUAC_DISABLE_UPLOAD", "");
+
+        final Map<String, String> parameters = configuration.getRdpParameters();
+        assertEquals("true", parameters.get("disable-copy"));
+        assertEquals("transfer", parameters.get("drive-name"));
+        assertEquals("en-us-qwerty", parameters.get("server-layout"));
+        assertEquals(3, parameters.size());
+    }
+
+    @Test
+    public void fromMapReadsFileCredentialSourceWithoutKeyVault() throws GuacamoleServerException {
+        final Map<String, String> variables = TestConfigurations.requiredVariables();
+        variables.remove("KEYVAULT_URL");
+        variables.put("CREDENTIAL_SOURCE", "File");
+        variables.put("CREDENTIAL_SOURCE_PATH", "/tmp/credentials");
+
+        final TreConfiguration configuration = TreConfiguration.fromMap(variables);
+        assertEquals(TreConfiguration.CredentialSourceType.FILE, configuration.getCredentialSource());
+        assertEquals(Paths.get("/tmp/credentials"), configuration.getCredentialSourcePath());
+        assertNull(configuration.getKeyVaultUrl());
+    }
+
+    @Test
+    public void fromMapReadsExecutionMode() throws GuacamoleServerException {
+        assertEquals(
+            TreConfiguration.ExecutionMode.VIRTUAL,
+            TestConfigurations.create("EXECUTION_MODE", "virtual").getExecutionMode());
+        final GuacamoleServerException ex = assertThrows(
+            GuacamoleServerException.class,
+            () -> TestConfigurations.create("EXECUTION_MODE", "loom"));
+        assertThat(ex.getMessage(), containsString("EXECUTION_MODE must be one of platform, virtual"));
+    }
+
+    @Test
+    public void fromMapReadsWarmupFlag() throws GuacamoleServerException {
+        assertTrue(TestConfigurations.create("WARMUP_ENABLED", "TRUE").isWarmupEnabled());
+        assertFalse(TestConfigurations.create("WARMUP_ENABLED", "false").isWarmupEnabled());
+        final GuacamoleServerException ex = assertThrows(
+            GuacamoleServerException.class,
+            () -> TestConfigurations.create("WARMUP_ENABLED", "yes"));
+        assertThat(ex.getMessage(), containsString("WARMUP_ENABLED must be true or false"));
+    }
+
+    @Test
+    public void fromMapFailsFastListingEveryMissingValue() {
+        final Map<String, String> variables = TestConfigurations.requiredVariables();
+        variables.remove("AUDIENCE");
+        variables.put("ISSUER", "");
+
+        final GuacamoleServerException ex = assertThrows(
+            GuacamoleServerException.class,
+            () -> TreConfiguration.fromMap(variables));
+        assertThat(ex.getMessage(), containsString("AUDIENCE is not provided"));
+        assertThat(ex.getMessage(), containsString("ISSUER is not provided"));
+    }
+
+    @Test
+    public void fromMapRejectsInvalidValues() {
+        assertThrows(
+            GuacamoleServerException.class,
+            () -> TestConfigurations.create("OAUTH2_PROXY_JWKS_ENDPOINT", "not a url"));
+        assertThrows(
+            GuacamoleServerException.class,
+            () -> TestConfigurations.create("JWKS_CACHE_TTL_SECONDS", "-1"));
+        final GuacamoleServerException zeroTtl = assertThrows(
+            GuacamoleServerException.class,
+            () -> TestConfigurations.create("JWKS_CACHE_TTL_SECONDS", "0"));
+        assertThat(zeroTtl.getMessage(), containsString("JWKS_CACHE_TTL_SECONDS must be at least 1"));
+        final GuacamoleServerException zeroCooldown = assertThrows(
+            GuacamoleServerException.class,
+            () -> TestConfigurations.create("JWKS_REFRESH_COOLDOWN_SECONDS", "0"));
+        assertThat(zeroCooldown.getMessage(), containsString("JWKS_REFRESH_COOLDOWN_SECONDS must be at least 1"));
+        final GuacamoleServerException zeroKeyVaultTimeout = assertThrows(
+            GuacamoleServerException.class,
+            () -> TestConfigurations.create("KEYVAULT_TIMEOUT_SECONDS", "0"));
+        assertThat(zeroKeyVaultTimeout.getMessage(), containsString("KEYVAULT_TIMEOUT_SECONDS must be at least 1"));
+        final GuacamoleServerException zeroAdmissionTimeout = assertThrows(
+            GuacamoleServerException.class,
+            () -> TestConfigurations.create("CONNECT_ADMISSION_TIMEOUT_SECONDS", "0"));
+        assertThat(zeroAdmissionTimeout.getMessage(), containsString("CONNECT_ADMISSION_TIMEOUT_SECONDS must be at least 1"));
+        assertThrows(
+            GuacamoleServerException.class,
+            () -> TestConfigurations.create("TOKEN_CACHE_MAX_SIZE", "many"));
+        final GuacamoleServerException ex = assertThrows(
+            GuacamoleServerException.class,
+            () -> TestConfigurations.create("CREDENTIAL_SOURCE", "vault"));
+        assertThat(ex.getMessage(), containsString("CREDENTIAL_SOURCE must be one of keyvault, file"));
+        assertThrows(
+            GuacamoleServerException.class,
+            () -> TestConfigurations.create("CREDENTIAL_SOURCE", "file"));
+    }
+}
@@ -0,0 +1,92 @@
+package org.apache.guacamole.auth.azuretre;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ValidatedTokenCacheTest {
+
+    private static final String TOKEN = "header.payload.signature";
+
+    @Test
+    public void containsReturnsTrueForUnexpiredToken() {
+        final ValidatedTokenCache cache = new ValidatedTokenCache(10);
+        cache.put(TOKEN, Instant.now().plus(1, ChronoUnit.HOURS));
+
+        assertTrue(cache.contains(TOKEN));
+        assertFalse(cache.contains("another.token.value"));
+    }
+
+    @Test
+    public void containsReturnsFalseAfterExpiry() throws InterruptedException {
+        final ValidatedTokenCache cache = new ValidatedTokenCache(10);
+        cache.put(TOKEN, Instant.now().plusMillis(50));
+        Thread.sleep(100);
+
+        assertFalse(cache.contains(TOKEN));
+    }
+
+    @Test
+    public void putIgnoresTokensWithoutFutureExpiry() {
+        final ValidatedTokenCache cache = new ValidatedTokenCache(10);
+        cache.put(TOKEN, null);
+        cache.put("expired.token.value", Instant.now().minusSeconds(1));
+
+        assertFalse(cache.contains(TOKEN));
+        assertFalse(cache.contains("expired.token.value"));
+    }
+
+    @Test
+    public void cacheIsBoundedBySize() {
+        final ValidatedTokenCache cache = new ValidatedTokenCache(1);
+        final Instant expiry = Instant.now().plus(1, ChronoUnit.HOURS);
+        cache.put(TOKEN, expiry);
+        cache.put("another.token.value", expiry);
+
+        assertFalse(cache.contains(TOKEN));
+        assertTrue(cache.contains("another.token.value"));
+    }
+
+    @Test
+    public void statsRecordHitsAndMisses() {
+        final ValidatedTokenCache cache = new ValidatedTokenCache(10);
+        cache.put(TOKEN, Instant.now().plus(1, ChronoUnit.HOURS));
+        cache.contains(TOKEN);
+        cache.contains("another.token.value");
+
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(1, cache.stats().missCount());
+        assertEquals(0.5, cache.stats().hitRate());
+    }
+
+    @Test
+    public void digestDoesNotExposeToken() {
+        final String digest = ValidatedTokenCache.digest(TOKEN);
+        assertNotEquals(TOKEN, digest);
+        assertEquals(digest, ValidatedTokenCache.digest(TOKEN));
+    }
+}
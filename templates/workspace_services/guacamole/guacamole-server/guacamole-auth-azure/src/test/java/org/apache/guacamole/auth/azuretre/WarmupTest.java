@@ -0,0 +1,101 @@
+package org.apache.guacamole.auth.azuretre;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.auth0.jwk.SigningKeyNotFoundException;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class WarmupTest {
+
+    @Mock
+    private CachingJwkProvider jwkProvider;
+
+    @Mock
+    private CredentialSource credentialSource;
+
+    private MockWebServer mockApiServer;
+
+    private Warmup warmup;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        mockApiServer = new MockWebServer();
+        mockApiServer.start();
+        warmup = new Warmup(
+            jwkProvider,
+            HttpClient.newHttpClient(),
+            mockApiServer.url("/api/user-resources").uri(),
+            Duration.ofSeconds(5),
+            credentialSource);
+    }
+
+    @AfterEach
+    public void teardown() throws IOException {
+        warmup.close();
+        mockApiServer.shutdown();
+    }
+
+    @Test
+    public void startWarmsEveryDependency() throws Exception {
+        mockApiServer.enqueue(new MockResponse().setResponseCode(401));
+        when(credentialSource.warmUp()).thenReturn(CompletableFuture.completedFuture(null));
+
+        warmup.start().get(5, TimeUnit.SECONDS);
+
+        verify(jwkProvider).refresh();
+        verify(credentialSource).warmUp();
+        final RecordedRequest request = mockApiServer.takeRequest(5, TimeUnit.SECONDS);
+        assertNotNull(request);
+        assertEquals("HEAD", request.getMethod());
+        assertEquals("/api/user-resources", request.getPath());
+    }
+
+    @Test
+    public void startCompletesWhenStepsFail() throws Exception {
+        mockApiServer.shutdown();
+        doThrow(new SigningKeyNotFoundException("unreachable", null)).when(jwkProvider).refresh();
+        when(credentialSource.warmUp()).thenReturn(CompletableFuture.failedFuture(new IllegalStateException("vault")));
+
+        warmup.start().get(10, TimeUnit.SECONDS);
+
+        verify(jwkProvider).refresh();
+    }
+}
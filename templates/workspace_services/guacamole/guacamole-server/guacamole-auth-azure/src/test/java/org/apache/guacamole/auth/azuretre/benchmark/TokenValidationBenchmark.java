@@ -0,0 +1,149 @@
+package org.apache.guacamole.auth.azuretre.benchmark;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.auth0.jwk.Jwk;
+import com.auth0.jwk.JwkProvider;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTVerifier;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.interfaces.Claim;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import org.apache.guacamole.auth.azuretre.AuthenticationProviderService;
+import org.apache.guacamole.auth.azuretre.TestConfigurations;
+import org.apache.guacamole.auth.azuretre.ValidatedTokenCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the original per-call verifier construction with the current
+ * validation pipeline. The token cache is disabled so that every invocation
+ * performs full signature and claim validation.
+ *
+ * <p>Run with {@code -prof gc} to compare allocation rates.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenValidationBenchmark {
+
+    private static final String KEY_ID = "benchmark-key";
+
+    private String token;
+
+    private JwkProvider jwkProvider;
+
+    private AuthenticationProviderService service;
+
+    @Setup
+    public void setUp() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        final KeyPair keyPair = generator.generateKeyPair();
+        final RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+
+        final Map<String, Object> values = new HashMap<>();
+        values.put("kid", KEY_ID);
+        values.put("kty", "RSA");
+        values.put("alg", "RS256");
+        values.put("use", "sig");
+        values.put("n", base64Url(publicKey.getModulus()));
+        values.put("e", base64Url(publicKey.getPublicExponent()));
+        final Jwk jwk = Jwk.fromValues(values);
+        jwkProvider = keyId -> jwk;
+
+        token = JWT.create()
+            .withKeyId(KEY_ID)
+            .withAudience("dummy_audience")
+            .withIssuer("dummy_issuer")
+            .withArrayClaim("roles", new String[]{"WorkspaceResearcher"})
+            .withExpiresAt(Instant.now().plus(1, ChronoUnit.DAYS))
+            .sign(Algorithm.RSA256(
+                publicKey,
+                (RSAPrivateKey) keyPair.getPrivate()));
+
+        service = new AuthenticationProviderService(
+            TestConfigurations.create(),
+            new ValidatedTokenCache(0));
+    }
+
+    @Benchmark
+    public DecodedJWT perCallVerifier() throws Exception {
+        final Jwk jwk = jwkProvider.get(JWT.decode(token).getKeyId());
+        final Algorithm algorithm = Algorithm.RSA256(
+            (RSAPublicKey) jwk.getPublicKey(),
+            null);
+        final JWTVerifier verifier = JWT.require(algorithm)
+            .withAudience("dummy_audience")
+            .withClaimPresence("roles")
+            .withIssuer("dummy_issuer")
+            .build();
+
+        final DecodedJWT jwt = verifier.verify(token);
+        final Claim roles = jwt.getClaim("roles");
+        if (roles.isNull() || roles.asArray(Object.class).length == 0) {
+            throw new IllegalStateException("roles missing");
+        }
+        final List<String> rolesList = roles.asList(String.class);
+        if (rolesList.stream().noneMatch(
+            role -> role.equalsIgnoreCase("WorkspaceResearcher"))) {
+            throw new IllegalStateException("role missing");
+        }
+        return jwt;
+    }
+
+    @Benchmark
+    public void reusedVerifier() throws Exception {
+        service.validateToken(token, jwkProvider);
+    }
+
+    private static String base64Url(final BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            final byte[] unsigned = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, unsigned, 0, unsigned.length);
+            bytes = unsigned;
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
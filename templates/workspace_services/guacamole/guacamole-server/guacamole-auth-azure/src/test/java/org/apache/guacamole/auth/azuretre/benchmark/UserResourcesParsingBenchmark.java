@@ -0,0 +1,122 @@
+package org.apache.guacamole.auth.azuretre.benchmark;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.guacamole.auth.azuretre.connection.UserResource;
+import org.apache.guacamole.auth.azuretre.connection.UserResourcesParser;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the original org.json tree parsing of the user-resources response
+ * with the streaming parser, on a synthetic payload whose resources carry
+ * large property bags.
+ *
+ * <p>Run with {@code -prof gc} to compare allocation rates.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserResourcesParsingBenchmark {
+
+    @Param({"10", "500"})
+    private int resourceCount;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder json = new StringBuilder("{\"userResources\": [");
+        for (int i = 0; i < resourceCount; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\": \"").append(i).append("\", \"properties\": {")
+                .append("\"hostname\": \"vm-").append(i).append("\", ")
+                .append("\"ip\": \"10.0.").append(i / 256).append('.')
+                .append(i % 256).append("\", ")
+                .append("\"display_name\": \"VM ").append(i).append("\", ")
+                .append("\"tags\": {");
+            for (int t = 0; t < 40; t++) {
+                if (t > 0) {
+                    json.append(',');
+                }
+                json.append("\"tag").append(t).append("\": \"")
+                    .append("value-".repeat(8)).append(t).append('"');
+            }
+            json.append("}, \"history\": [");
+            for (int h = 0; h < 20; h++) {
+                if (h > 0) {
+                    json.append(',');
+                }
+                json.append("{\"version\": ").append(h)
+                    .append(", \"updatedBy\": {\"name\": \"user\", \"roles\": [")
+                    .append("\"WorkspaceOwner\", \"WorkspaceResearcher\"]}}");
+            }
+            json.append("]}}");
+        }
+        payload = json.append("]}").toString()
+            .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public List<UserResource> jsonTree() {
+        final JSONArray vms = new JSONObject(
+            new String(payload, StandardCharsets.UTF_8))
+            .getJSONArray("userResources");
+        final List<UserResource> resources = new ArrayList<>();
+        for (int i = 0; i < vms.length(); i++) {
+            final JSONObject properties = (JSONObject) vms.getJSONObject(i)
+                .get("properties");
+            if (properties.has("hostname") && properties.has("ip")) {
+                resources.add(new UserResource(
+                    properties.getString("hostname"),
+                    properties.getString("ip"),
+                    properties.getString("display_name")));
+            }
+        }
+        return resources;
+    }
+
+    @Benchmark
+    public List<UserResource> streaming() throws IOException {
+        return UserResourcesParser.parse(new ByteArrayInputStream(payload));
+    }
+}
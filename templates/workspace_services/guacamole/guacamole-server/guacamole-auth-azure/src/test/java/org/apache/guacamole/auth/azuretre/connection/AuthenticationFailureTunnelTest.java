@@ -0,0 +1,125 @@
+package org.apache.guacamole.auth.azuretre.connection;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class AuthenticationFailureTunnelTest {
+
+    private static final GuacamoleInstruction UNAUTHORIZED =
+        new GuacamoleInstruction("error", "Authentication failure", "769");
+
+    @Mock
+    private GuacamoleTunnel tunnel;
+
+    @Mock
+    private GuacamoleReader reader;
+
+    private final AtomicInteger rejections = new AtomicInteger();
+
+    private final AtomicInteger settlements = new AtomicInteger();
+
+    private AuthenticationFailureTunnel wrap() {
+        return new AuthenticationFailureTunnel(tunnel, rejections::incrementAndGet, settlements::incrementAndGet);
+    }
+
+    @Test
+    public void unauthorizedErrorReportsRejection() throws GuacamoleException {
+        when(tunnel.acquireReader()).thenReturn(reader);
+        when(reader.readInstruction()).thenReturn(UNAUTHORIZED);
+
+        final char[] read = wrap().acquireReader().read();
+
+        assertArrayEquals(UNAUTHORIZED.toString().toCharArray(), read);
+        assertEquals(1, rejections.get());
+        assertEquals(1, settlements.get());
+    }
+
+    @Test
+    public void otherErrorsAreNotRejections() throws GuacamoleException {
+        when(tunnel.acquireReader()).thenReturn(reader);
+        when(reader.readInstruction()).thenReturn(
+            new GuacamoleInstruction("error", "Upstream unavailable", "512"));
+
+        wrap().acquireReader().readInstruction();
+
+        assertEquals(0, rejections.get());
+    }
+
+    @Test
+    public void syncSettlesTunnel() throws GuacamoleException {
+        final char[] frame = "4.sync,1.0;".toCharArray();
+        when(tunnel.acquireReader()).thenReturn(reader);
+        when(reader.readInstruction()).thenReturn(
+            new GuacamoleInstruction("sync", "0"));
+        when(reader.read()).thenReturn(frame);
+
+        final AuthenticationFailureTunnel wrapped = wrap();
+        final GuacamoleReader inspecting = wrapped.acquireReader();
+        inspecting.read();
+
+        // Once settled, reads bypass instruction parsing.
+        assertSame(frame, inspecting.read());
+        assertSame(reader, wrapped.acquireReader());
+        assertEquals(0, rejections.get());
+        assertEquals(1, settlements.get());
+
+        wrapped.close();
+        assertEquals(1, settlements.get());
+    }
+
+    @Test
+    public void closeSettlesTunnelOnce() throws GuacamoleException {
+        final AuthenticationFailureTunnel wrapped = wrap();
+        wrapped.close();
+        wrapped.close();
+
+        verify(tunnel, times(2)).close();
+        assertEquals(1, settlements.get());
+        assertEquals(0, rejections.get());
+    }
+
+    @Test
+    public void endOfStreamIsPassedThrough() throws GuacamoleException {
+        when(tunnel.acquireReader()).thenReturn(reader);
+
+        assertNull(wrap().acquireReader().read());
+        verify(reader, never()).read();
+        assertEquals(0, settlements.get());
+    }
+}
@@ -0,0 +1,85 @@
+package org.apache.guacamole.auth.azuretre.connection;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleResourceConflictException;
+import org.apache.guacamole.auth.azuretre.TreConfiguration.ConnectAdmissionPolicy;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ConnectAdmissionTest {
+
+    @Test
+    public void noneAdmitsConcurrentConnects() throws GuacamoleException {
+        final ConnectAdmission.Permit first = ConnectAdmission.NONE.admit("vm-1");
+        final ConnectAdmission.Permit second = ConnectAdmission.NONE.admit("vm-1");
+
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void serializeWaitsForConnectInProgress() throws Exception {
+        final ConnectAdmission admission = new ConnectAdmission(ConnectAdmissionPolicy.SERIALIZE, Duration.ofSeconds(30));
+        final ConnectAdmission.Permit first = admission.admit("vm-1");
+
+        final CompletableFuture<ConnectAdmission.Permit> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return admission.admit("vm-1");
+            } catch (final GuacamoleException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(second.isDone());
+
+        first.close();
+        second.get(5, TimeUnit.SECONDS).close();
+    }
+
+    @Test
+    public void serializeFailsAfterTimeout() throws GuacamoleException {
+        final ConnectAdmission admission = new ConnectAdmission(ConnectAdmissionPolicy.SERIALIZE, Duration.ofMillis(50));
+        final ConnectAdmission.Permit first = admission.admit("vm-1");
+
+        assertThrows(GuacamoleResourceConflictException.class, () -> admission.admit("vm-1"));
+        first.close();
+        assertDoesNotThrow(() -> admission.admit("vm-1").close());
+    }
+
+    @Test
+    public void rejectRefusesOnlyTheSameVm() throws GuacamoleException {
+        final ConnectAdmission admission = new ConnectAdmission(ConnectAdmissionPolicy.REJECT, Duration.ofSeconds(30));
+        final ConnectAdmission.Permit first = admission.admit("vm-1");
+
+        assertThrows(GuacamoleResourceConflictException.class, () -> admission.admit("vm-1"));
+        assertDoesNotThrow(() -> admission.admit("vm-2").close());
+
+        first.close();
+        assertDoesNotThrow(() -> admission.admit("vm-1").close());
+    }
+}
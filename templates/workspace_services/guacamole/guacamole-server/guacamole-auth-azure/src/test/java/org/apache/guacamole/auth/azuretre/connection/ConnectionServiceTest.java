@@ -1,77 +1,322 @@
 package org.apache.guacamole.auth.azuretre.connection;
 
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.auth.azuretre.TestConfigurations;
+import org.apache.guacamole.auth.azuretre.ValidatedTokenCache;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialSource;
 import org.apache.guacamole.auth.azuretre.user.AzureTREAuthenticatedUser;
-import org.apache.guacamole.net.auth.AuthenticatedUser;
 import org.apache.guacamole.net.auth.Connection;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
-import org.mockito.MockedStatic;
-import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+@ExtendWith(MockitoExtension.class)
 class ConnectionServiceTest {
+    private static final String VMS_RESPONSE = "{\"userResources\": ["
+        + "{\"properties\": {\"hostname\": \"vm-1\", \"ip\": \"10.0.0.1\", \"display_name\": \"VM One\"}},"
+        + "{\"properties\": {\"hostname\": \"vm-2\", \"ip\": \"10.0.0.2\", \"display_name\": \"VM Two\"}},"
+        + "{\"properties\": {\"display_name\": \"Not deployed\"}}"
+        + "]}";
+
+    private static final String DUMMY_TOKEN_KEY = ValidatedTokenCache.digest("dummy_token");
+
     @Mock
-    AuthenticatedUser authenticatedUser;
+    AzureTREAuthenticatedUser authenticatedUser;
+
+    @Mock
+    CredentialSource credentialSource;
+
+    private MockWebServer mockApiServer;
+    private ApiHttpClient apiHttpClient;
+    private ConnectionService connectionService;
+
+    @BeforeEach
+    public void setup() throws IOException, GuacamoleException {
+        mockApiServer = new MockWebServer();
+        mockApiServer.start();
+        apiHttpClient = new ApiHttpClient(2, Duration.ofSeconds(5));
+        connectionService = new ConnectionService(TestConfigurations.create(
+            "API_URL", mockApiServer.url("/").toString().replaceAll("/$", ""),
+            "GUAC_DISABLE_COPY", "true"), apiHttpClient.get(), credentialSource);
+    }
+
+    @AfterEach
+    public void teardown() throws IOException {
+        apiHttpClient.close();
+        mockApiServer.shutdown();
+    }
 
     @Test
-    public void getConnectionsWhenEmpty() {
-        final Map<String, Connection> connectionList = Collections.emptyMap();
-        testGetConnections(connectionList);
+    public void getConnectionsWhenEmpty() throws GuacamoleException {
+        when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+        mockApiServer.enqueue(new MockResponse().setBody("{\"userResources\": []}"));
+
+        assertTrue(connectionService.getConnections(authenticatedUser).isEmpty());
     }
 
     @Test
-    public void getConnectionsWhenMany() {
-        final Map<String, Connection> connectionList  = new HashMap<>() {{
-                put("dummy_connection", null);
-            }};
-        testGetConnections(connectionList);
+    public void getConnectionsWhenMany() throws Exception {
+        when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+        mockApiServer.enqueue(new MockResponse().setBody(VMS_RESPONSE));
+
+        final Map<String, Connection> connections = connectionService.getConnections(authenticatedUser);
+        assertEquals(2, connections.size());
+
+        final Connection connection = connections.get("vm-1");
+        assertEquals("VM One", connection.getName());
+        assertEquals("ROOT", connection.getParentIdentifier());
+
+        final GuacamoleConfiguration config = connection.getConfiguration();
+        assertEquals("rdp", config.getProtocol());
+        assertEquals("10.0.0.1", config.getParameter("hostname"));
+        assertEquals("vm-1", config.getParameter("azure-resource-id"));
+        assertEquals("3389", config.getParameter("port"));
+        assertEquals("true", config.getParameter("disable-copy"));
+        assertNull(config.getParameter("disable-paste"));
+
+        final RecordedRequest request = mockApiServer.takeRequest();
+        assertEquals(
+            "/api/workspaces/test-workspace-123/workspace-services/test-service-456/user-resources",
+            request.getPath());
+        assertEquals("Bearer dummy_token", request.getHeader("Authorization"));
     }
 
     @Test
-    public void getConnectionsThrowsExceptionWhenUserIsNull() {
-        try (MockedStatic<ConnectionService> connectionServiceMockedStatic = Mockito.mockStatic(
-            ConnectionService.class)) {
-            connectionServiceMockedStatic.when(() -> ConnectionService.getConnections(null))
-                .thenCallRealMethod();
-            
-            Map<String, Connection> result = ConnectionService.getConnections(null);
-            // Should return empty map when user is null
-            assertEquals(0, result.size());
-        } catch (final GuacamoleException e) {
-            e.printStackTrace();
-        }
+    public void getConnectionsSendsEveryCallThroughSharedClient() throws Exception {
+        // When a pooled connection becomes free again is up to the JDK
+        // client and not observable, so the test checks that every call goes
+        // through the one pooled client rather than counting connections.
+        final HttpClient sharedClient = mock(HttpClient.class, delegatesTo(apiHttpClient.get()));
+        final ConnectionService service = new ConnectionService(TestConfigurations.create(
+            "API_URL", mockApiServer.url("/").toString().replaceAll("/$", "")), sharedClient, credentialSource);
+        when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+        mockApiServer.enqueue(new MockResponse().setBody(VMS_RESPONSE));
+        mockApiServer.enqueue(new MockResponse().setBody(VMS_RESPONSE));
+
+        service.getConnections(authenticatedUser);
+        service.invalidateAll();
+        service.getConnections(authenticatedUser);
+
+        verify(sharedClient, times(2)).sendAsync(any(), any());
+        assertEquals(2, mockApiServer.getRequestCount());
     }
 
     @Test
-    public void getConnectionsHandlesGuacamoleException() {
-        try (MockedStatic<ConnectionService> connectionServiceMockedStatic = Mockito.mockStatic(
-            ConnectionService.class)) {
-            connectionServiceMockedStatic.when(() -> ConnectionService.getConnections(
-              (AzureTREAuthenticatedUser) authenticatedUser))
-                .thenThrow(new GuacamoleException("API connection failed"));
-            
-            assertThrows(GuacamoleException.class, () -> 
-                ConnectionService.getConnections((AzureTREAuthenticatedUser) authenticatedUser));
+    public void stalledResponseBodyTimesOutAndReleasesClientThread() throws Exception {
+        try (ApiHttpClient singleThreadClient = new ApiHttpClient(1, Duration.ofSeconds(5))) {
+            final ConnectionService service = new ConnectionService(TestConfigurations.create(
+                "API_URL", mockApiServer.url("/").toString().replaceAll("/$", "")),
+                singleThreadClient.get(), credentialSource, ConnectAdmission.NONE, Duration.ofMillis(500));
+            mockApiServer.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(final RecordedRequest request) {
+                    final MockResponse response = new MockResponse().setBody(VMS_RESPONSE);
+                    return "Bearer stalled_token".equals(request.getHeader("Authorization"))
+                        ? response.throttleBody(1, 1, TimeUnit.SECONDS)
+                        : response;
+                }
+            });
+            final AzureTREAuthenticatedUser stalledUser = mock(AzureTREAuthenticatedUser.class);
+            when(stalledUser.getAccessToken()).thenReturn("stalled_token");
+            when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+
+            final GuacamoleException ex = assertThrows(GuacamoleException.class,
+                () -> service.getConnections(stalledUser));
+            assertTrue(ex.getMessage().contains("timed out"));
+
+            // The only client thread is free again for the next request.
+            assertEquals(2, service.getConnections(authenticatedUser).size());
         }
     }
 
-    private void testGetConnections(final Map<String, Connection> connectionList) {
-        try (MockedStatic<ConnectionService> connectionServiceMockedStatic = Mockito.mockStatic(
-            ConnectionService.class)) {
-            connectionServiceMockedStatic.when(() -> ConnectionService.getConnections(
-              (AzureTREAuthenticatedUser) authenticatedUser))
-                .thenReturn(connectionList);
-            assertEquals(connectionList, ConnectionService.getConnections(
-                (AzureTREAuthenticatedUser) authenticatedUser));
-        } catch (final GuacamoleException e) {
-            e.printStackTrace();
-        }
+    @Test
+    public void getConnectionsServesRepeatedLoginsFromCache() throws Exception {
+        when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+        mockApiServer.enqueue(new MockResponse().setBody(VMS_RESPONSE));
+
+        final Map<String, Connection> first = connectionService.getConnections(authenticatedUser);
+        final Map<String, Connection> second = connectionService.getConnections(authenticatedUser);
+
+        assertEquals(1, mockApiServer.getRequestCount());
+        assertEquals(first.keySet(), second.keySet());
+        assertNotSame(first.get("vm-1"), second.get("vm-1"));
+        assertNotSame(first.get("vm-1").getConfiguration(), second.get("vm-1").getConfiguration());
+    }
+
+    @Test
+    public void updateConnectionsReusesUnchangedConnections() throws Exception {
+        when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+        mockApiServer.enqueue(new MockResponse().setBody(VMS_RESPONSE));
+        mockApiServer.enqueue(new MockResponse().setBody("{\"userResources\": ["
+            + "{\"properties\": {\"hostname\": \"vm-1\", \"ip\": \"10.0.0.1\", \"display_name\": \"VM One\"}},"
+            + "{\"properties\": {\"hostname\": \"vm-2\", \"ip\": \"10.0.0.22\", \"display_name\": \"VM Two\"}},"
+            + "{\"properties\": {\"hostname\": \"vm-3\", \"ip\": \"10.0.0.3\", \"display_name\": \"VM Three\"}}"
+            + "]}"));
+
+        final Map<String, Connection> current = connectionService.getConnections(authenticatedUser);
+
+        // Served from the user's cached resources.
+        assertSame(current, connectionService.updateConnections(authenticatedUser, current));
+        assertEquals(1, mockApiServer.getRequestCount());
+
+        connectionService.invalidateAll();
+        final Map<String, Connection> updated = connectionService.updateConnections(authenticatedUser, current);
+        assertEquals(List.of("vm-1", "vm-2", "vm-3"), List.copyOf(updated.keySet()));
+        assertSame(current.get("vm-1"), updated.get("vm-1"));
+        assertNotSame(current.get("vm-2"), updated.get("vm-2"));
+        assertEquals("10.0.0.22", updated.get("vm-2").getConfiguration().getParameter("hostname"));
+    }
+
+    @Test
+    public void getConnectionsCachesPerToken() throws Exception {
+        final AzureTREAuthenticatedUser otherUser = mock(AzureTREAuthenticatedUser.class);
+        when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+        when(otherUser.getAccessToken()).thenReturn("other_token");
+        mockApiServer.enqueue(new MockResponse().setBody(VMS_RESPONSE));
+        mockApiServer.enqueue(new MockResponse().setBody("{\"userResources\": []}"));
+
+        assertEquals(2, connectionService.getConnections(authenticatedUser).size());
+        assertTrue(connectionService.getConnections(otherUser).isEmpty());
+        assertEquals("Bearer dummy_token", mockApiServer.takeRequest().getHeader("Authorization"));
+        assertEquals("Bearer other_token", mockApiServer.takeRequest().getHeader("Authorization"));
+    }
+
+    @Test
+    public void getConnectionsDoesNotShareCacheBetweenTokensWithSameUsername() throws Exception {
+        // The username comes from an unverified header; the roles in each
+        // token decide which VMs the API returns.
+        final AzureTREAuthenticatedUser lessPrivileged = mock(AzureTREAuthenticatedUser.class);
+        lenient().when(authenticatedUser.getIdentifier()).thenReturn("user@example.com");
+        lenient().when(lessPrivileged.getIdentifier()).thenReturn("user@example.com");
+        when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+        when(lessPrivileged.getAccessToken()).thenReturn("researcher_token");
+        mockApiServer.enqueue(new MockResponse().setBody(VMS_RESPONSE));
+        mockApiServer.enqueue(new MockResponse().setBody("{\"userResources\": ["
+            + "{\"properties\": {\"hostname\": \"vm-2\", \"ip\": \"10.0.0.2\", \"display_name\": \"VM Two\"}}"
+            + "]}"));
+
+        assertEquals(Set.of("vm-1", "vm-2"), connectionService.getConnections(authenticatedUser).keySet());
+        assertEquals(Set.of("vm-2"), connectionService.getConnections(lessPrivileged).keySet());
+        assertEquals(Set.of("vm-1", "vm-2"), connectionService.getConnections(authenticatedUser).keySet());
+        assertEquals(2, mockApiServer.getRequestCount());
+    }
+
+    @Test
+    public void invalidateForcesRefetch() throws Exception {
+        when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+        mockApiServer.enqueue(new MockResponse().setBody(VMS_RESPONSE));
+        mockApiServer.enqueue(new MockResponse().setBody("{\"userResources\": []}"));
+
+        assertEquals(2, connectionService.getConnections(authenticatedUser).size());
+        connectionService.invalidate(authenticatedUser);
+        assertTrue(connectionService.getConnections(authenticatedUser).isEmpty());
+        assertEquals(2, mockApiServer.getRequestCount());
+    }
+
+    @Test
+    public void fetchUserResourcesIsCachedOnlyOnceConsumed() throws Exception {
+        when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+        mockApiServer.enqueue(new MockResponse().setBody(VMS_RESPONSE));
+        mockApiServer.enqueue(new MockResponse().setBody(VMS_RESPONSE));
+
+        final CompletableFuture<List<UserResource>> abandoned =
+            connectionService.fetchUserResources(authenticatedUser);
+        assertEquals(2, abandoned.get(5, TimeUnit.SECONDS).size());
+        assertNull(connectionService.getResourceCache().getIfPresent(DUMMY_TOKEN_KEY));
+
+        final CompletableFuture<List<UserResource>> used =
+            connectionService.fetchUserResources(authenticatedUser);
+        assertEquals(2, connectionService.getConnections(authenticatedUser, used).size());
+        assertSame(used.get(), connectionService.getResourceCache().getIfPresent(DUMMY_TOKEN_KEY));
+        assertEquals(2, mockApiServer.getRequestCount());
+    }
+
+    @Test
+    public void fetchUserResourcesCanBeCancelled() throws Exception {
+        when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+        mockApiServer.enqueue(new MockResponse().setBody(VMS_RESPONSE).setHeadersDelay(1, TimeUnit.SECONDS));
+
+        final CompletableFuture<List<UserResource>> resources =
+            connectionService.fetchUserResources(authenticatedUser);
+        resources.cancel(true);
+
+        assertThrows(GuacamoleException.class,
+            () -> connectionService.getConnections(authenticatedUser, resources));
+        assertNull(connectionService.getResourceCache().getIfPresent(DUMMY_TOKEN_KEY));
+    }
+
+    @Test
+    public void refreshConnectionsBypassesAndReplacesCache() throws Exception {
+        when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+        mockApiServer.enqueue(new MockResponse().setBody("{\"userResources\": []}"));
+        mockApiServer.enqueue(new MockResponse().setBody(VMS_RESPONSE));
+
+        assertTrue(connectionService.getConnections(authenticatedUser).isEmpty());
+        final Map<String, Connection> refreshed =
+            connectionService.refreshConnections(authenticatedUser).get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, refreshed.size());
+        assertEquals(2, connectionService.getResourceCache().getIfPresent(DUMMY_TOKEN_KEY).size());
+        assertEquals(2, mockApiServer.getRequestCount());
+    }
+
+    @Test
+    public void concurrentFetchesForSameTokenShareOneRequest() throws Exception {
+        when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+        mockApiServer.enqueue(new MockResponse().setBody(VMS_RESPONSE).setHeadersDelay(200, TimeUnit.MILLISECONDS));
+
+        final CompletableFuture<List<UserResource>> first =
+            connectionService.fetchUserResources(authenticatedUser);
+        final CompletableFuture<List<UserResource>> second =
+            connectionService.fetchUserResources(authenticatedUser);
+
+        assertEquals(2, first.get(5, TimeUnit.SECONDS).size());
+        assertSame(first.get(), second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, mockApiServer.getRequestCount());
+    }
+
+    @Test
+    public void getConnectionsThrowsExceptionWhenUserIsNull() throws GuacamoleException {
+        // Should return empty map when user is null
+        assertEquals(0, connectionService.getConnections(null).size());
+    }
+
+    @Test
+    public void getConnectionsHandlesGuacamoleException() {
+        when(authenticatedUser.getAccessToken()).thenReturn("dummy_token");
+        mockApiServer.enqueue(new MockResponse().setResponseCode(500).setBody("API connection failed"));
+
+        assertThrows(GuacamoleException.class, () -> connectionService.getConnections(authenticatedUser));
     }
 }
@@ -0,0 +1,100 @@
+package org.apache.guacamole.auth.azuretre.connection;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.auth.azuretre.credentials.VmCredentials;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class DeferredCredentialsConfigurationTest {
+
+    private GuacamoleConfiguration base;
+
+    @BeforeEach
+    public void setup() {
+        base = new GuacamoleConfiguration();
+        base.setProtocol("rdp");
+        base.setParameter("hostname", "10.0.0.1");
+    }
+
+    @Test
+    public void credentialsAreJoinedOnLookup() throws GuacamoleException {
+        final VmCredentials credentials = VmCredentials.parse("admin\nsecret".toCharArray());
+        final DeferredCredentialsConfiguration config = new DeferredCredentialsConfiguration(
+            base, CompletableFuture.completedFuture(credentials));
+
+        assertEquals("rdp", config.getProtocol());
+        assertEquals("10.0.0.1", config.getParameter("hostname"));
+        assertEquals("admin", config.getParameter("username"));
+        assertEquals("secret", config.getParameter("password"));
+
+        config.release();
+        assertNull(config.getParameter("password"));
+        assertArrayEquals(new char[6], credentials.getPassword());
+    }
+
+    @Test
+    public void releaseWipesCredentialsThatArriveLater() throws GuacamoleException {
+        final CompletableFuture<VmCredentials> pending = new CompletableFuture<>();
+        final DeferredCredentialsConfiguration config = new DeferredCredentialsConfiguration(base, pending);
+
+        config.release();
+        final VmCredentials credentials = VmCredentials.parse("admin\nsecret".toCharArray());
+        pending.complete(credentials);
+
+        assertArrayEquals(new char[6], credentials.getPassword());
+    }
+
+    @Test
+    public void configurationIsImmutable() {
+        final DeferredCredentialsConfiguration config = new DeferredCredentialsConfiguration(
+            base, new CompletableFuture<>());
+        base.setParameter("hostname", "10.0.0.2");
+
+        assertEquals("10.0.0.1", config.getParameter("hostname"));
+        assertThrows(UnsupportedOperationException.class, () -> config.setParameter("hostname", "x"));
+        assertThrows(UnsupportedOperationException.class, () -> config.unsetParameter("hostname"));
+        assertThrows(UnsupportedOperationException.class, () -> config.setParameters(Map.of()));
+        assertThrows(UnsupportedOperationException.class, () -> config.setProtocol("vnc"));
+        assertThrows(UnsupportedOperationException.class, () -> config.getParameters().clear());
+    }
+
+    @Test
+    public void failedCredentialsCarryTheirCause() {
+        final GuacamoleException failure = new GuacamoleException("unavailable");
+        final DeferredCredentialsConfiguration config = new DeferredCredentialsConfiguration(
+            base, CompletableFuture.failedFuture(failure));
+
+        final DeferredCredentialsConfiguration.CredentialsUnavailableException ex = assertThrows(
+            DeferredCredentialsConfiguration.CredentialsUnavailableException.class,
+            () -> config.getParameter("username"));
+        assertSame(failure, ex.getCause());
+    }
+}
@@ -18,21 +18,72 @@ package org.apache.guacamole.auth.azuretre.connection;
  * under the License.
  */
 
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleResourceConflictException;
+import org.apache.guacamole.auth.azuretre.TreConfiguration;
+import org.apache.guacamole.auth.azuretre.credentials.CredentialSource;
+import org.apache.guacamole.auth.azuretre.credentials.VmCredentials;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.io.ReaderGuacamoleReader;
+import org.apache.guacamole.io.WriterGuacamoleWriter;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.auth.GuacamoleProxyConfiguration;
+import org.apache.guacamole.protocol.GuacamoleClientInformation;
 import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 public class TokenInjectingConnectionTest {
 
     private GuacamoleConfiguration config;
+    @Mock
+    private CredentialSource credentialSource;
     private TokenInjectingConnection connection;
+    private FakeGuacd guacd;
+
+    private static VmCredentials credentials(final String username, final String password) throws GuacamoleException {
+        return VmCredentials.parse((username + "\n" + password).toCharArray());
+    }
 
     @BeforeEach
     public void setup() {
@@ -43,9 +94,16 @@ public class TokenInjectingConnectionTest {
         config.setParameter("azure-resource-id", "test-resource-id");
     }
 
+    @AfterEach
+    public void tearDown() throws IOException {
+        if (guacd != null) {
+            guacd.close();
+        }
+    }
+
     @Test
     public void testTokenInjectingConnectionCreation() {
-        connection = new TokenInjectingConnection("Test Connection", "conn-id", config, true);
+        connection = new TokenInjectingConnection("Test Connection", "conn-id", config, true, credentialSource);
 
         assertNotNull(connection);
         assertEquals("Test Connection", connection.getName());
@@ -55,7 +113,7 @@ public class TokenInjectingConnectionTest {
 
     @Test
     public void testTokenInjectingConnectionWithInterpretTokensFalse() {
-        connection = new TokenInjectingConnection("Test Connection", "conn-id", config, false);
+        connection = new TokenInjectingConnection("Test Connection", "conn-id", config, false, credentialSource);
 
         assertNotNull(connection);
         assertEquals("Test Connection", connection.getName());
@@ -63,7 +121,7 @@ public class TokenInjectingConnectionTest {
 
     @Test
     public void testGetConfiguration() {
-        connection = new TokenInjectingConnection("Test Connection", "conn-id", config, true);
+        connection = new TokenInjectingConnection("Test Connection", "conn-id", config, true, credentialSource);
 
         GuacamoleConfiguration retrievedConfig = connection.getConfiguration();
         assertNotNull(retrievedConfig);
@@ -74,19 +132,19 @@ public class TokenInjectingConnectionTest {
 
     @Test
     public void testGetName() {
-        connection = new TokenInjectingConnection("My Test VM", "conn-id", config, true);
+        connection = new TokenInjectingConnection("My Test VM", "conn-id", config, true, credentialSource);
         assertEquals("My Test VM", connection.getName());
     }
 
     @Test
     public void testGetIdentifier() {
-        connection = new TokenInjectingConnection("Test Connection", "unique-id-123", config, true);
+        connection = new TokenInjectingConnection("Test Connection", "unique-id-123", config, true, credentialSource);
         assertEquals("unique-id-123", connection.getIdentifier());
     }
 
     @Test
     public void testSetAndGetParentIdentifier() {
-        connection = new TokenInjectingConnection("Test Connection", "conn-id", config, true);
+        connection = new TokenInjectingConnection("Test Connection", "conn-id", config, true, credentialSource);
         connection.setParentIdentifier("ROOT");
         assertEquals("ROOT", connection.getParentIdentifier());
     }
@@ -94,7 +152,7 @@ public class TokenInjectingConnectionTest {
     @Test
     public void testConfigurationWithAzureResourceId() {
         config.setParameter("azure-resource-id", "resource-123");
-        connection = new TokenInjectingConnection("Test Connection", "conn-id", config, true);
+        connection = new TokenInjectingConnection("Test Connection", "conn-id", config, true, credentialSource);
 
         assertEquals("resource-123", connection.getConfiguration().getParameter("azure-resource-id"));
     }
@@ -105,7 +163,7 @@ public class TokenInjectingConnectionTest {
         config.setParameter("ignore-cert", "true");
         config.setParameter("resize-method", "display-update");
 
-        connection = new TokenInjectingConnection("Test Connection", "conn-id", config, true);
+        connection = new TokenInjectingConnection("Test Connection", "conn-id", config, true, credentialSource);
 
         GuacamoleConfiguration retrievedConfig = connection.getConfiguration();
         assertEquals("3389", retrievedConfig.getParameter("port"));
@@ -115,14 +173,14 @@ public class TokenInjectingConnectionTest {
 
     @Test
     public void testConnectionWithNullName() {
-        connection = new TokenInjectingConnection(null, "conn-id", config, true);
+        connection = new TokenInjectingConnection(null, "conn-id", config, true, credentialSource);
         assertNull(connection.getName());
         assertEquals("conn-id", connection.getIdentifier());
     }
 
     @Test
     public void testConnectionWithEmptyName() {
-        connection = new TokenInjectingConnection("", "conn-id", config, true);
+        connection = new TokenInjectingConnection("", "conn-id", config, true, credentialSource);
         assertEquals("", connection.getName());
     }
 
@@ -131,8 +189,213 @@ public class TokenInjectingConnectionTest {
         GuacamoleConfiguration minimalConfig = new GuacamoleConfiguration();
         minimalConfig.setProtocol("rdp");
 
-        connection = new TokenInjectingConnection("Minimal", "min-id", minimalConfig, true);
+        connection = new TokenInjectingConnection("Minimal", "min-id", minimalConfig, true, credentialSource);
         assertNotNull(connection);
         assertEquals("rdp", connection.getConfiguration().getProtocol());
     }
+
+    @Test
+    public void connectOpensGuacdWhileCredentialsAreRead() throws Exception {
+        guacd = new FakeGuacd();
+        final CompletableFuture<VmCredentials> secret = new CompletableFuture<>();
+        when(credentialSource.getCredentials("test-resource-id")).thenReturn(secret);
+        connection = new TokenInjectingConnection("Test Connection", "conn-id", guacd.proxy(), config, true, credentialSource);
+
+        final CompletableFuture<GuacamoleTunnel> tunnel = CompletableFuture.supplyAsync(() -> {
+            try {
+                return connection.connect(new GuacamoleClientInformation(), Collections.emptyMap());
+            } catch (final GuacamoleException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+
+        // guacd is asked for the protocol before Key Vault has answered.
+        assertTrue(guacd.selected.await(5, TimeUnit.SECONDS));
+        final VmCredentials credentials = credentials("admin", "password");
+        secret.complete(credentials);
+
+        assertNotNull(tunnel.get(5, TimeUnit.SECONDS));
+        tunnel.get().close();
+        assertEquals(List.of("10.0.0.1", "admin", "password"), guacd.connectArgs.poll());
+        assertNull(connection.getConfiguration().getParameter("password"));
+        assertArrayEquals(new char[8], credentials.getPassword());
+    }
+
+    @Test
+    public void concurrentConnectsUseTheirOwnCredentials() throws Exception {
+        final int attempts = 8;
+        guacd = new FakeGuacd(attempts);
+        final List<CompletableFuture<VmCredentials>> secrets = new ArrayList<>();
+        for (int i = 0; i < attempts; i++) {
+            secrets.add(new CompletableFuture<>());
+        }
+        final Queue<CompletableFuture<VmCredentials>> pending = new ConcurrentLinkedQueue<>(secrets);
+        when(credentialSource.getCredentials("test-resource-id"))
+            .thenAnswer(invocation -> pending.remove());
+        connection = new TokenInjectingConnection("Test Connection", "conn-id", guacd.proxy(), config, true, credentialSource);
+        final Map<String, String> sharedParameters = new HashMap<>(connection.getConfiguration().getParameters());
+
+        final ExecutorService pool = Executors.newFixedThreadPool(attempts);
+        final List<CompletableFuture<GuacamoleTunnel>> tunnels = new ArrayList<>();
+        for (int i = 0; i < attempts; i++) {
+            tunnels.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return connection.connect(new GuacamoleClientInformation(), Collections.emptyMap());
+                } catch (final GuacamoleException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }, pool));
+        }
+
+        // Every handshake is in progress before any credentials arrive;
+        // complete them in reverse order to interleave the attempts.
+        assertTrue(guacd.selected.await(5, TimeUnit.SECONDS));
+        for (int i = attempts - 1; i >= 0; i--) {
+            secrets.get(i).complete(credentials("user" + i, "password" + i));
+        }
+        for (final CompletableFuture<GuacamoleTunnel> tunnel : tunnels) {
+            tunnel.get(5, TimeUnit.SECONDS).close();
+        }
+        pool.shutdown();
+
+        final Set<List<String>> received = new HashSet<>(guacd.connectArgs);
+        for (int i = 0; i < attempts; i++) {
+            assertTrue(received.contains(List.of("10.0.0.1", "user" + i, "password" + i)));
+        }
+        assertEquals(sharedParameters, connection.getConfiguration().getParameters());
+    }
+
+    @Test
+    public void connectRejectsConcurrentConnectToSameVm() throws Exception {
+        guacd = new FakeGuacd();
+        final CompletableFuture<VmCredentials> secret = new CompletableFuture<>();
+        when(credentialSource.getCredentials("test-resource-id")).thenReturn(secret);
+        connection = new TokenInjectingConnection("Test Connection", "conn-id", guacd.proxy(), config, true, credentialSource,
+            new ConnectAdmission(TreConfiguration.ConnectAdmissionPolicy.REJECT, Duration.ofSeconds(30)));
+
+        final CompletableFuture<GuacamoleTunnel> tunnel = CompletableFuture.supplyAsync(() -> {
+            try {
+                return connection.connect(new GuacamoleClientInformation(), Collections.emptyMap());
+            } catch (final GuacamoleException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        assertTrue(guacd.selected.await(5, TimeUnit.SECONDS));
+
+        assertThrows(
+            GuacamoleResourceConflictException.class,
+            () -> connection.connect(new GuacamoleClientInformation(), Collections.emptyMap()));
+        secret.complete(credentials("admin", "password"));
+        tunnel.get(5, TimeUnit.SECONDS).close();
+        verify(credentialSource, times(1)).getCredentials("test-resource-id");
+    }
+
+    @Test
+    public void admissionIsHeldUntilTheTunnelCloses() throws Exception {
+        guacd = new FakeGuacd();
+        when(credentialSource.getCredentials("test-resource-id"))
+            .thenAnswer(invocation -> CompletableFuture.completedFuture(credentials("admin", "password")));
+        connection = new TokenInjectingConnection("Test Connection", "conn-id", guacd.proxy(), config, true, credentialSource,
+            new ConnectAdmission(TreConfiguration.ConnectAdmissionPolicy.REJECT, Duration.ofSeconds(30)));
+
+        // The handshake has completed, but the remote desktop has not sent
+        // its first frame.
+        final GuacamoleTunnel tunnel = connection.connect(new GuacamoleClientInformation(), Collections.emptyMap());
+        assertThrows(
+            GuacamoleResourceConflictException.class,
+            () -> connection.connect(new GuacamoleClientInformation(), Collections.emptyMap()));
+
+        tunnel.close();
+        connection.connect(new GuacamoleClientInformation(), Collections.emptyMap()).close();
+        verify(credentialSource, times(2)).getCredentials("test-resource-id");
+    }
+
+    @Test
+    public void connectReportsCredentialFailure() throws Exception {
+        guacd = new FakeGuacd();
+        when(credentialSource.getCredentials("test-resource-id"))
+            .thenReturn(CompletableFuture.failedFuture(new GuacamoleException("Failed to retrieve valid credentials")));
+        connection = new TokenInjectingConnection("Test Connection", "conn-id", guacd.proxy(), config, true, credentialSource);
+
+        final GuacamoleException ex = assertThrows(
+            GuacamoleException.class,
+            () -> connection.connect(new GuacamoleClientInformation(), Collections.emptyMap()));
+        assertEquals("Failed to retrieve valid credentials", ex.getMessage());
+    }
+
+    /**
+     * Minimal guacd that completes handshakes and records the arguments of
+     * each connect instruction.
+     */
+    private static final class FakeGuacd implements AutoCloseable {
+
+        private final ServerSocket server;
+        private final CountDownLatch selected;
+        private final Queue<List<String>> connectArgs = new ConcurrentLinkedQueue<>();
+
+        FakeGuacd() throws IOException {
+            this(1);
+        }
+
+        FakeGuacd(final int expectedSessions) throws IOException {
+            selected = new CountDownLatch(expectedSessions);
+            server = new ServerSocket(0, expectedSessions, InetAddress.getLoopbackAddress());
+            final Thread thread = new Thread(this::acceptAll, "fake-guacd");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        GuacamoleProxyConfiguration proxy() {
+            return new GuacamoleProxyConfiguration(
+                server.getInetAddress().getHostAddress(),
+                server.getLocalPort(),
+                GuacamoleProxyConfiguration.EncryptionMethod.NONE);
+        }
+
+        private void acceptAll() {
+            while (!server.isClosed()) {
+                try {
+                    final Socket socket = server.accept();
+                    final Thread session = new Thread(() -> serve(socket), "fake-guacd-session");
+                    session.setDaemon(true);
+                    session.start();
+                } catch (final IOException ex) {
+                    // Server closed.
+                }
+            }
+        }
+
+        private void serve(final Socket connection) {
+            try (Socket socket = connection) {
+                final GuacamoleReader reader = new ReaderGuacamoleReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                final GuacamoleWriter writer = new WriterGuacamoleWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                GuacamoleInstruction instruction;
+                while ((instruction = reader.readInstruction()) != null) {
+                    switch (instruction.getOpcode()) {
+                        case "select":
+                            selected.countDown();
+                            writer.writeInstruction(new GuacamoleInstruction(
+                                "args", "VERSION_1_5_0", "hostname", "username", "password"));
+                            break;
+                        case "connect":
+                            connectArgs.add(new ArrayList<>(
+                                instruction.getArgs().subList(1, instruction.getArgs().size())));
+                            writer.writeInstruction(new GuacamoleInstruction("ready", "$fake"));
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } catch (final IOException | GuacamoleException ex) {
+                // Client went away.
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
 }
@@ -0,0 +1,68 @@
+package org.apache.guacamole.auth.azuretre.connection;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class UserResourceCacheTest {
+
+    private static final List<UserResource> RESOURCES = List.of(
+        new UserResource("vm-1", "10.0.0.1", "VM One"));
+
+    @Test
+    public void getIfPresentReturnsStoredResources() {
+        final UserResourceCache cache = new UserResourceCache(Duration.ofMinutes(1));
+
+        assertNull(cache.getIfPresent("user"));
+        cache.put("user", RESOURCES);
+
+        assertSame(RESOURCES, cache.getIfPresent("user"));
+        assertNull(cache.getIfPresent("other"));
+        assertEquals(1, cache.stats().hitCount());
+    }
+
+    @Test
+    public void putKeepsExistingEntry() {
+        final UserResourceCache cache = new UserResourceCache(Duration.ofMinutes(1));
+        cache.put("user", RESOURCES);
+        cache.put("user", List.of());
+
+        assertSame(RESOURCES, cache.getIfPresent("user"));
+
+        cache.invalidate("user");
+        cache.put("user", List.of());
+        assertTrue(cache.getIfPresent("user").isEmpty());
+    }
+
+    @Test
+    public void zeroTtlDisablesCaching() {
+        final UserResourceCache cache = new UserResourceCache(Duration.ZERO);
+        cache.put("user", RESOURCES);
+
+        assertNull(cache.getIfPresent("user"));
+    }
+}
@@ -0,0 +1,69 @@
+package org.apache.guacamole.auth.azuretre.connection;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class UserResourcesParserTest {
+
+    private static List<UserResource> parse(final String json) throws IOException {
+        return UserResourcesParser.parse(
+            new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void parseExtractsDeployedVms() throws IOException {
+        final List<UserResource> resources = parse("{\"id\": \"x\", \"userResources\": ["
+            + "{\"id\": \"1\", \"properties\": {\"tags\": {\"a\": [1, 2, {\"b\": null}]},"
+            + " \"hostname\": \"vm-1\", \"ip\": \"10.0.0.1\", \"display_name\": \"VM One\", \"os\": \"win\"},"
+            + " \"history\": [{\"properties\": {\"hostname\": \"old\"}}]},"
+            + "{\"properties\": {\"display_name\": \"Not deployed\", \"ip\": null}}"
+            + "], \"trailing\": {\"userResources\": 1}}");
+
+        assertEquals(1, resources.size());
+        assertEquals("vm-1", resources.get(0).getAzureResourceId());
+        assertEquals("10.0.0.1", resources.get(0).getIp());
+        assertEquals("VM One", resources.get(0).getDisplayName());
+    }
+
+    @Test
+    public void parseReturnsEmptyListForEmptyBody() throws IOException {
+        assertTrue(parse("").isEmpty());
+        assertTrue(parse("{\"userResources\": []}").isEmpty());
+    }
+
+    @Test
+    public void parseRejectsMalformedResponses() {
+        assertThrows(IOException.class, () -> parse("{\"items\": []}"));
+        assertThrows(IOException.class, () -> parse("[]"));
+        assertThrows(IOException.class, () -> parse("{\"userResources\": [{\"id\": \"1\"}]}"));
+        assertThrows(IOException.class, () -> parse("{\"userResources\": ["));
+        assertThrows(IOException.class, () -> parse(
+            "{\"userResources\": [{\"properties\": {\"hostname\": \"vm\", \"ip\": \"10.0.0.1\"}}]}"));
+    }
+}
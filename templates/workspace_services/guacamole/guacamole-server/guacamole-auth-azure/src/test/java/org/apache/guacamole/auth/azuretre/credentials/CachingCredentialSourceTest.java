@@ -0,0 +1,134 @@
+package org.apache.guacamole.auth.azuretre.credentials;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.guacamole.GuacamoleException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class CachingCredentialSourceTest {
+
+    private static final String RESOURCE_ID = "vm-1";
+
+    @Mock
+    private CredentialSource delegate;
+
+    private static VmCredentials credentials() throws GuacamoleException {
+        return VmCredentials.parse("admin\npassword".toCharArray());
+    }
+
+    private static void assertCredentials(final String username, final String password, final VmCredentials credentials) {
+        assertEquals(username, credentials.getUsername());
+        assertArrayEquals(password.toCharArray(), credentials.getPassword());
+    }
+
+    @Test
+    public void getCredentialsCachesValueUntilInvalidated() throws GuacamoleException {
+        when(delegate.getCredentials(RESOURCE_ID)).thenReturn(CompletableFuture.completedFuture(credentials()));
+        final CachingCredentialSource source = new CachingCredentialSource(delegate, Duration.ofMinutes(1));
+
+        assertTrue(source.isCaching());
+        assertCredentials("admin", "password", CredentialSource.await(source.getCredentials(RESOURCE_ID)));
+        assertCredentials("admin", "password", CredentialSource.await(source.getCredentials(RESOURCE_ID)));
+        verify(delegate, times(1)).getCredentials(RESOURCE_ID);
+        assertEquals(1, source.cacheStats().hitCount());
+
+        source.invalidate(RESOURCE_ID);
+        assertCredentials("admin", "password", CredentialSource.await(source.getCredentials(RESOURCE_ID)));
+        verify(delegate, times(2)).getCredentials(RESOURCE_ID);
+        verify(delegate).invalidate(RESOURCE_ID);
+    }
+
+    @Test
+    public void everyHitReturnsCredentialsOwnedByTheCaller() throws GuacamoleException {
+        final VmCredentials read = credentials();
+        when(delegate.getCredentials(RESOURCE_ID)).thenReturn(CompletableFuture.completedFuture(read));
+        final CachingCredentialSource source = new CachingCredentialSource(delegate, Duration.ofMinutes(1));
+
+        assertSame(read, CredentialSource.await(source.getCredentials(RESOURCE_ID)));
+        read.wipe();
+
+        final VmCredentials first = CredentialSource.await(source.getCredentials(RESOURCE_ID));
+        assertCredentials("admin", "password", first);
+        first.wipe();
+        final VmCredentials second = CredentialSource.await(source.getCredentials(RESOURCE_ID));
+        assertNotSame(first, second);
+        assertCredentials("admin", "password", second);
+    }
+
+    @Test
+    public void prefetchSkipsCachedCredentials() throws GuacamoleException {
+        when(delegate.getCredentials(RESOURCE_ID)).thenReturn(CompletableFuture.completedFuture(credentials()));
+        final CachingCredentialSource source = new CachingCredentialSource(delegate, Duration.ofMinutes(1));
+
+        source.prefetch(RESOURCE_ID);
+        source.prefetch(RESOURCE_ID);
+        verify(delegate, times(1)).getCredentials(RESOURCE_ID);
+
+        assertCredentials("admin", "password", CredentialSource.await(source.getCredentials(RESOURCE_ID)));
+        assertEquals(1, source.cacheStats().hitCount());
+    }
+
+    @Test
+    public void failedReadsAreNotCached() {
+        when(delegate.getCredentials(RESOURCE_ID)).thenReturn(
+            CompletableFuture.failedFuture(new GuacamoleException("unavailable")));
+        final CachingCredentialSource source = new CachingCredentialSource(delegate, Duration.ofMinutes(1));
+
+        assertThrows(GuacamoleException.class, () -> CredentialSource.await(source.getCredentials(RESOURCE_ID)));
+        assertThrows(GuacamoleException.class, () -> CredentialSource.await(source.getCredentials(RESOURCE_ID)));
+        verify(delegate, times(2)).getCredentials(RESOURCE_ID);
+    }
+
+    @Test
+    public void abandonedReadCancelsDelegateRead() {
+        final CompletableFuture<VmCredentials> read = new CompletableFuture<>();
+        when(delegate.getCredentials(RESOURCE_ID)).thenReturn(read);
+        final CachingCredentialSource source = new CachingCredentialSource(delegate, Duration.ofMinutes(1));
+
+        source.getCredentials(RESOURCE_ID).cancel(true);
+
+        assertTrue(read.isCancelled());
+    }
+
+    @Test
+    public void closeClosesDelegate() {
+        final CachingCredentialSource source = new CachingCredentialSource(delegate, Duration.ofMinutes(1));
+
+        source.close();
+
+        verify(delegate).close();
+    }
+}
@@ -0,0 +1,99 @@
+package org.apache.guacamole.auth.azuretre.credentials;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.guacamole.GuacamoleException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+public class CredentialPrefetcherTest {
+
+    @Mock
+    private CachingCredentialSource credentialSource;
+
+    private CredentialPrefetcher prefetcher;
+
+    @AfterEach
+    public void tearDown() {
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+    }
+
+    @Test
+    public void prefetchReadsEveryVmCredential() throws Exception {
+        prefetcher = new CredentialPrefetcher(credentialSource, 2);
+
+        prefetcher.prefetch(List.of("vm-1", "vm-2")).get(5, TimeUnit.SECONDS);
+
+        verify(credentialSource).prefetch("vm-1");
+        verify(credentialSource).prefetch("vm-2");
+    }
+
+    @Test
+    public void prefetchIgnoresFailures() throws Exception {
+        doThrow(new GuacamoleException("unavailable")).when(credentialSource).prefetch("vm-1");
+        prefetcher = new CredentialPrefetcher(credentialSource, 1);
+
+        prefetcher.prefetch(List.of("vm-1", "vm-2")).get(5, TimeUnit.SECONDS);
+
+        verify(credentialSource).prefetch("vm-2");
+    }
+
+    @Test
+    public void cancelSkipsQueuedReads() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(credentialSource).prefetch("vm-1");
+        prefetcher = new CredentialPrefetcher(credentialSource, 1);
+
+        final CompletableFuture<Void> prefetch = prefetcher.prefetch(List.of("vm-1", "vm-2"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        prefetch.cancel(false);
+        release.countDown();
+
+        assertThrows(CancellationException.class, prefetch::join);
+        verify(credentialSource, timeout(5000)).prefetch("vm-1");
+        // Drain the single thread before checking the queued read was skipped.
+        prefetcher.prefetch(List.of("vm-3")).get(5, TimeUnit.SECONDS);
+        verify(credentialSource, never()).prefetch("vm-2");
+    }
+}
@@ -0,0 +1,89 @@
+package org.apache.guacamole.auth.azuretre.credentials;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.guacamole.GuacamoleException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class FileCredentialSourceTest {
+
+    @TempDir
+    Path directory;
+
+    private static void assertCredentials(final String username, final String password, final VmCredentials credentials) {
+        assertEquals(username, credentials.getUsername());
+        assertArrayEquals(password.toCharArray(), credentials.getPassword());
+    }
+
+    @Test
+    public void directoryHoldsOneFilePerVm() throws IOException, GuacamoleException {
+        Files.writeString(directory.resolve("vm-1-admin-credentials"), "admin\npassword-1");
+        Files.writeString(directory.resolve("vm-2-admin-credentials"), "admin\npassword-2");
+        final FileCredentialSource source = new FileCredentialSource(directory);
+
+        assertCredentials("admin", "password-1", CredentialSource.await(source.getCredentials("vm-1")));
+        assertCredentials("admin", "password-2", CredentialSource.await(source.getCredentials("vm-2")));
+    }
+
+    @Test
+    public void singleFileIsUsedForEveryVm() throws IOException, GuacamoleException {
+        final Path file = Files.writeString(directory.resolve("credentials"), "admin\npassword");
+        final FileCredentialSource source = new FileCredentialSource(file);
+
+        assertCredentials("admin", "password", CredentialSource.await(source.getCredentials("vm-1")));
+        assertCredentials("admin", "password", CredentialSource.await(source.getCredentials("vm-2")));
+    }
+
+    @Test
+    public void missingFileFails() {
+        final FileCredentialSource source = new FileCredentialSource(directory);
+
+        final GuacamoleException ex = assertThrows(
+            GuacamoleException.class, () -> CredentialSource.await(source.getCredentials("vm-1")));
+        assertEquals("Failed to retrieve credentials from secure storage", ex.getMessage());
+    }
+
+    @Test
+    public void malformedFileFails() throws IOException {
+        final Path file = Files.writeString(directory.resolve("credentials"), "admin");
+        final FileCredentialSource source = new FileCredentialSource(file);
+
+        final GuacamoleException ex = assertThrows(
+            GuacamoleException.class, () -> CredentialSource.await(source.getCredentials("vm-1")));
+        assertEquals("Failed to retrieve valid credentials", ex.getMessage());
+    }
+
+    @Test
+    public void resourceIdCannotLeaveDirectory() throws IOException {
+        final Path vms = Files.createDirectory(directory.resolve("vms"));
+        Files.writeString(directory.resolve("other-admin-credentials"), "admin\npassword");
+        final FileCredentialSource source = new FileCredentialSource(vms);
+
+        assertThrows(GuacamoleException.class, () -> CredentialSource.await(source.getCredentials("../other")));
+    }
+}
@@ -0,0 +1,135 @@
+package org.apache.guacamole.auth.azuretre.credentials;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.azure.core.exception.ResourceNotFoundException;
+import com.azure.security.keyvault.secrets.SecretAsyncClient;
+import com.azure.security.keyvault.secrets.models.KeyVaultSecret;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleUpstreamTimeoutException;
+import org.apache.guacamole.auth.azuretre.TestConfigurations;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class KeyVaultCredentialSourceTest {
+
+    private static final String RESOURCE_ID = "vm-1";
+
+    private static final String SECRET_NAME = "vm-1-admin-credentials";
+
+    @Mock
+    private SecretAsyncClient secretClient;
+
+    private static void assertCredentials(final String username, final String password, final VmCredentials credentials) {
+        assertEquals(username, credentials.getUsername());
+        assertArrayEquals(password.toCharArray(), credentials.getPassword());
+    }
+
+    @Test
+    public void getCredentialsReadsAdminCredentialsSecret() throws GuacamoleException {
+        when(secretClient.getSecret(SECRET_NAME)).thenReturn(Mono.just(new KeyVaultSecret(SECRET_NAME, "admin\npassword")));
+        final KeyVaultCredentialSource source = new KeyVaultCredentialSource(secretClient);
+
+        assertFalse(source.isCaching());
+        assertCredentials("admin", "password", CredentialSource.await(source.getCredentials(RESOURCE_ID)));
+        assertCredentials("admin", "password", CredentialSource.await(source.getCredentials(RESOURCE_ID)));
+        verify(secretClient, times(2)).getSecret(SECRET_NAME);
+    }
+
+    @Test
+    public void getCredentialsRejectsMalformedSecret() {
+        when(secretClient.getSecret(SECRET_NAME)).thenReturn(Mono.just(new KeyVaultSecret(SECRET_NAME, "malformed")));
+        final KeyVaultCredentialSource source = new KeyVaultCredentialSource(secretClient);
+
+        final GuacamoleException ex = assertThrows(
+            GuacamoleException.class, () -> CredentialSource.await(source.getCredentials(RESOURCE_ID)));
+        assertEquals("Failed to retrieve valid credentials", ex.getMessage());
+    }
+
+    @Test
+    public void warmUpIgnoresMissingProbeSecret() {
+        when(secretClient.getSecret("azuretre-warmup")).thenReturn(Mono.error(new ResourceNotFoundException("missing", null)));
+        final KeyVaultCredentialSource source = new KeyVaultCredentialSource(secretClient);
+
+        assertDoesNotThrow(() -> source.warmUp().get(5, TimeUnit.SECONDS));
+        verify(secretClient).getSecret("azuretre-warmup");
+    }
+
+    @Test
+    public void adminCredentialsNameAppendsSuffix() {
+        assertEquals(SECRET_NAME, KeyVaultCredentialSource.adminCredentialsName(RESOURCE_ID));
+    }
+
+    @Test
+    public void getCredentialsHidesClientFailures() {
+        when(secretClient.getSecret(SECRET_NAME)).thenReturn(Mono.error(new ResourceNotFoundException("missing", null)));
+        final KeyVaultCredentialSource source = new KeyVaultCredentialSource(secretClient);
+
+        final GuacamoleException ex = assertThrows(
+            GuacamoleException.class, () -> CredentialSource.await(source.getCredentials(RESOURCE_ID)));
+        assertEquals("Failed to retrieve credentials from secure storage", ex.getMessage());
+    }
+
+    @Test
+    public void getCredentialsFailsAfterDeadline() {
+        when(secretClient.getSecret(SECRET_NAME)).thenReturn(Mono.never());
+        final KeyVaultCredentialSource source = new KeyVaultCredentialSource(secretClient, Duration.ofMillis(50));
+
+        final GuacamoleException ex = assertThrows(
+            GuacamoleUpstreamTimeoutException.class, () -> CredentialSource.await(source.getCredentials(RESOURCE_ID)));
+        assertEquals("Timed out retrieving credentials from secure storage", ex.getMessage());
+    }
+
+    @Test
+    public void abandonedReadCancelsRequest() throws InterruptedException {
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        when(secretClient.getSecret(SECRET_NAME)).thenReturn(Mono.<KeyVaultSecret>never().doOnCancel(cancelled::countDown));
+        final KeyVaultCredentialSource source = new KeyVaultCredentialSource(secretClient);
+
+        final CompletableFuture<VmCredentials> read = source.getCredentials(RESOURCE_ID);
+        read.cancel(true);
+
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void createdInstanceReleasesItsResources() throws GuacamoleException {
+        final KeyVaultCredentialSource source = KeyVaultCredentialSource.create(TestConfigurations.create());
+        assertDoesNotThrow(source::close);
+    }
+}
@@ -0,0 +1,189 @@
+package org.apache.guacamole.auth.azuretre.credentials;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.azure.core.credential.AccessToken;
+import com.azure.core.credential.TokenCredential;
+import com.azure.core.credential.TokenRequestContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import reactor.core.publisher.Mono;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class RefreshingTokenCredentialTest {
+
+    private static final TokenRequestContext KEY_VAULT =
+        new TokenRequestContext().addScopes("https://vault.azure.net/.default");
+
+    private final AtomicReference<OffsetDateTime> now =
+        new AtomicReference<>(OffsetDateTime.of(2026, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC));
+
+    private QueuedCredential tokenEndpoint;
+    private ScheduledExecutorService scheduler;
+    private RefreshingTokenCredential credential;
+
+    @BeforeEach
+    public void setup() {
+        tokenEndpoint = new QueuedCredential();
+        scheduler = mock(ScheduledExecutorService.class);
+        credential = new RefreshingTokenCredential(tokenEndpoint, scheduler, now::get);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        credential.close();
+    }
+
+    @Test
+    public void tokenIsRefreshedAtEightyPercentOfItsLifetime() {
+        tokenEndpoint.enqueue(token("first", 10_000));
+        tokenEndpoint.enqueue(token("second", 60_000));
+
+        assertEquals("first", credential.getTokenSync(KEY_VAULT).getToken());
+        final Runnable refresh = scheduled(8_000);
+        assertEquals(1, tokenEndpoint.requests);
+
+        refresh.run();
+        assertEquals(2, tokenEndpoint.requests);
+        assertEquals("second", credential.getTokenSync(KEY_VAULT).getToken());
+        scheduled(48_000);
+        assertEquals(2, tokenEndpoint.requests);
+    }
+
+    @Test
+    public void currentTokenIsServedWhileRefreshing() {
+        final AccessToken first = token("first", 10_000).block();
+        final CompletableFuture<AccessToken> refreshed = new CompletableFuture<>();
+        tokenEndpoint.enqueue(Mono.just(first));
+        tokenEndpoint.enqueue(Mono.fromFuture(refreshed));
+
+        assertSame(first, credential.getTokenSync(KEY_VAULT));
+        scheduled(8_000).run();
+
+        // The refresh is now pending at the endpoint.
+        assertEquals(2, tokenEndpoint.requests);
+        assertSame(first, credential.getTokenSync(KEY_VAULT));
+        assertSame(first, credential.getToken(KEY_VAULT).block());
+        assertEquals(2, tokenEndpoint.requests);
+
+        refreshed.complete(token("second", 60_000).block());
+        assertEquals("second", credential.getTokenSync(KEY_VAULT).getToken());
+    }
+
+    @Test
+    public void failedRefreshKeepsServingValidToken() {
+        tokenEndpoint.enqueue(token("first", 10_000));
+        tokenEndpoint.enqueue(Mono.error(new IllegalStateException("status 500")));
+        tokenEndpoint.enqueue(token("second", 60_000));
+
+        assertEquals("first", credential.getTokenSync(KEY_VAULT).getToken());
+        final Runnable refresh = scheduled(8_000);
+        advance(8_000);
+        refresh.run();
+
+        // Retried halfway to expiry, serving the current token until then.
+        assertEquals("first", credential.getTokenSync(KEY_VAULT).getToken());
+        final Runnable retry = scheduled(1_000);
+        retry.run();
+        assertEquals("second", credential.getTokenSync(KEY_VAULT).getToken());
+    }
+
+    @Test
+    public void expiredTokenIsReacquiredAfterFailedRefresh() {
+        tokenEndpoint.enqueue(token("first", 10_000));
+        tokenEndpoint.enqueue(Mono.error(new IllegalStateException("status 500")));
+        tokenEndpoint.enqueue(token("second", 60_000));
+
+        assertEquals("first", credential.getTokenSync(KEY_VAULT).getToken());
+        final Runnable refresh = scheduled(8_000);
+        advance(10_001);
+        refresh.run();
+        // No retry is scheduled; the next request acquires a new token.
+        verify(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+        assertEquals("second", credential.getTokenSync(KEY_VAULT).getToken());
+        assertEquals(3, tokenEndpoint.requests);
+    }
+
+    @Test
+    public void requestsWithClaimsBypassTheCache() {
+        tokenEndpoint.enqueue(token("first", 60_000));
+        tokenEndpoint.enqueue(token("challenge", 60_000));
+        assertEquals("first", credential.getTokenSync(KEY_VAULT).getToken());
+
+        final TokenRequestContext challenge = new TokenRequestContext()
+            .addScopes("https://vault.azure.net/.default")
+            .setClaims("{\"access_token\":{}}");
+        assertEquals("challenge", credential.getTokenSync(challenge).getToken());
+        assertEquals("first", credential.getTokenSync(KEY_VAULT).getToken());
+        assertEquals(2, tokenEndpoint.requests);
+    }
+
+    private Runnable scheduled(final long delayMillis) {
+        final ArgumentCaptor<Runnable> refresh = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(refresh.capture(), eq(delayMillis), eq(TimeUnit.MILLISECONDS));
+        return refresh.getValue();
+    }
+
+    private void advance(final long millis) {
+        now.set(now.get().plusNanos(TimeUnit.MILLISECONDS.toNanos(millis)));
+    }
+
+    private Mono<AccessToken> token(final String value, final long lifetimeMillis) {
+        return Mono.just(new AccessToken(
+            value, now.get().plusNanos(TimeUnit.MILLISECONDS.toNanos(lifetimeMillis))));
+    }
+
+    /**
+     * Stand-in for the managed identity endpoint, answering requests in order.
+     */
+    private static final class QueuedCredential implements TokenCredential {
+
+        private final Deque<Mono<AccessToken>> responses = new ArrayDeque<>();
+        private int requests;
+
+        void enqueue(final Mono<AccessToken> response) {
+            responses.add(response);
+        }
+
+        @Override
+        public Mono<AccessToken> getToken(final TokenRequestContext request) {
+            requests++;
+            return responses.remove();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.apache.guacamole.auth.azuretre.credentials;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SecretCacheTest {
+
+    private static byte[] bytes(final String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void getIfPresentReturnsStoredValue() {
+        final SecretCache cache = new SecretCache(Duration.ofMinutes(1));
+
+        assertTrue(cache.isEnabled());
+        assertNull(cache.getIfPresent("vm-1"));
+        cache.put("vm-1", bytes("admin\npässword"));
+
+        assertArrayEquals(bytes("admin\npässword"), cache.getIfPresent("vm-1"));
+        assertArrayEquals(bytes("admin\npässword"), cache.getIfPresent("vm-1"));
+        assertNull(cache.getIfPresent("vm-2"));
+        assertEquals(2, cache.stats().hitCount());
+    }
+
+    @Test
+    public void callerOwnsTheArraysPassedInAndOut() {
+        final SecretCache cache = new SecretCache(Duration.ofMinutes(1));
+        final byte[] value = bytes("admin\npassword");
+        cache.put("vm-1", value);
+        Arrays.fill(value, (byte) 0);
+
+        final byte[] first = cache.getIfPresent("vm-1");
+        assertArrayEquals(bytes("admin\npassword"), first);
+        Arrays.fill(first, (byte) 0);
+
+        final byte[] second = cache.getIfPresent("vm-1");
+        assertNotSame(first, second);
+        assertArrayEquals(bytes("admin\npassword"), second);
+    }
+
+    @Test
+    public void putReplacesExistingValue() {
+        final SecretCache cache = new SecretCache(Duration.ofMinutes(1));
+        cache.put("vm-1", bytes("admin\nold"));
+        cache.put("vm-1", bytes("admin\nnew"));
+
+        assertArrayEquals(bytes("admin\nnew"), cache.getIfPresent("vm-1"));
+    }
+
+    @Test
+    public void invalidateDiscardsValue() {
+        final SecretCache cache = new SecretCache(Duration.ofMinutes(1));
+        cache.put("vm-1", bytes("admin\npassword"));
+        cache.put("vm-2", bytes("admin\npassword"));
+
+        cache.invalidate("vm-1");
+        assertNull(cache.getIfPresent("vm-1"));
+        assertArrayEquals(bytes("admin\npassword"), cache.getIfPresent("vm-2"));
+
+        cache.invalidateAll();
+        assertNull(cache.getIfPresent("vm-2"));
+    }
+
+    @Test
+    public void zeroTtlDisablesCaching() {
+        final SecretCache cache = new SecretCache(Duration.ZERO);
+        cache.put("vm-1", bytes("admin\npassword"));
+
+        assertFalse(cache.isEnabled());
+        assertNull(cache.getIfPresent("vm-1"));
+        assertEquals(0, cache.stats().requestCount());
+    }
+}
@@ -0,0 +1,79 @@
+package org.apache.guacamole.auth.azuretre.credentials;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.guacamole.GuacamoleException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class VmCredentialsTest {
+
+    @Test
+    public void parseReadsUsernameAndPassword() throws GuacamoleException {
+        for (final String secret : List.of(
+            "admin\npassword", "admin\r\npassword", "admin\npassword\n", "admin\r\npassword\r\n\r\n")) {
+            final VmCredentials credentials = VmCredentials.parse(secret.toCharArray());
+
+            assertEquals("admin", credentials.getUsername(), secret);
+            assertArrayEquals("password".toCharArray(), credentials.getPassword(), secret);
+        }
+    }
+
+    @Test
+    public void parseRejectsMalformedSecrets() {
+        for (final String secret : List.of("", "admin", "admin\n", "admin\r\n\r\n", "admin\npassword\nextra")) {
+            final GuacamoleException ex = assertThrows(GuacamoleException.class, () -> VmCredentials.parse(secret.toCharArray()));
+            assertEquals("Failed to retrieve valid credentials", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void parseDecodesUtf8Bytes() throws GuacamoleException {
+        final byte[] secret = "admin\np\u00e4ssword".getBytes(StandardCharsets.UTF_8);
+        final VmCredentials credentials = VmCredentials.parse(secret);
+
+        assertEquals("admin", credentials.getUsername());
+        assertArrayEquals("p\u00e4ssword".toCharArray(), credentials.getPassword());
+        assertArrayEquals(secret, credentials.toBytes());
+    }
+
+    @Test
+    public void parseRejectsInvalidUtf8() {
+        final byte[] secret = {'a', '\n', 'p', (byte) 0xc3, '\n'};
+
+        final GuacamoleException ex = assertThrows(GuacamoleException.class, () -> VmCredentials.parse(secret));
+        assertEquals("Failed to retrieve valid credentials", ex.getMessage());
+    }
+
+    @Test
+    public void wipeOverwritesPassword() throws GuacamoleException {
+        final VmCredentials credentials = VmCredentials.parse("admin\npassword".toCharArray());
+
+        credentials.wipe();
+
+        assertArrayEquals(new char[8], credentials.getPassword());
+        assertEquals("admin", credentials.getUsername());
+    }
+}
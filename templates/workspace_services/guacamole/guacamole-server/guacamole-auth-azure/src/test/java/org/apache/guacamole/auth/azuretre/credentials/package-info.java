@@ -0,0 +1,4 @@
+/**
+ *
+ */
+package org.apache.guacamole.auth.azuretre.credentials;
@@ -4,6 +4,7 @@ import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.auth.azuretre.AzureTREAuthenticationProvider;
+import org.apache.guacamole.auth.azuretre.TestConfigurations;
 import org.apache.guacamole.auth.azuretre.user.AzureTREAuthenticatedUser;
 import org.apache.guacamole.net.RequestDetails;
 import org.apache.guacamole.net.auth.Credentials;
@@ -49,13 +50,14 @@ public class LocalIntegrationTest {
     private static final String TEST_TOKEN = "test.jwt.token";
 
     @BeforeEach
-    public void setup() throws IOException {
+    public void setup() throws IOException, GuacamoleException {
         // Start mock API server
         mockApiServer = new MockWebServer();
         mockApiServer.start();
         mockApiUrl = mockApiServer.url("/").toString().replaceAll("/$", "");
 
-        authProvider = new AzureTREAuthenticationProvider();
+        authProvider = new AzureTREAuthenticationProvider(
+            TestConfigurations.create("API_URL", mockApiUrl));
     }
 
     private void stubCredentialRequest() {
@@ -67,6 +69,9 @@ public class LocalIntegrationTest {
         if (mockApiServer != null) {
             mockApiServer.shutdown();
         }
+        if (authProvider != null) {
+            authProvider.shutdown();
+        }
     }
 
     @Test
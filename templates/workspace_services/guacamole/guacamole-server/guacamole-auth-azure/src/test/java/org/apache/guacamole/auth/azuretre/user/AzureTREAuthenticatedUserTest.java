@@ -26,9 +26,11 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @ExtendWith(MockitoExtension.class)
 public class AzureTREAuthenticatedUserTest {
@@ -79,6 +81,17 @@ public class AzureTREAuthenticatedUserTest {
         assertEquals(authProviderMock, authenticatedUser.getAuthenticationProvider());
     }
 
+    @Test
+    public void hasAccessTokenMatchesOnlyIdenticalTokens() {
+        final AzureTREAuthenticatedUser authenticatedUser =
+            new AzureTREAuthenticatedUser(credentialsMock, dummyAccessToken, "test_user", "test_oid", null);
+
+        assertTrue(authenticatedUser.hasAccessToken(new String(dummyAccessToken)));
+        assertFalse(authenticatedUser.hasAccessToken(dummyAccessToken + "x"));
+        assertFalse(authenticatedUser.hasAccessToken(dummyAccessToken.substring(1)));
+        assertFalse(authenticatedUser.hasAccessToken(null));
+    }
+
     @Test
     public void authenticatedUserConvertsUsernameToLowercase() {
         final AzureTREAuthenticatedUser authenticatedUser =
@@ -0,0 +1,182 @@
+package org.apache.guacamole.auth.azuretre.user;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleSecurityException;
+import org.apache.guacamole.net.auth.Connection;
+import org.apache.guacamole.net.auth.permission.ObjectPermission;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(MockitoExtension.class)
+public class RefreshingConnectionDirectoryTest {
+
+    private static final Duration MAX_AGE = Duration.ofSeconds(30);
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Mock
+    private Connection vmOne;
+
+    @Mock
+    private Connection vmTwo;
+
+    private void advancePastMaxAge() {
+        clock.addAndGet(MAX_AGE.toNanos() + 1);
+    }
+
+    @Test
+    public void fixedDirectoryServesConnections() throws GuacamoleException {
+        final RefreshingConnectionDirectory directory =
+            RefreshingConnectionDirectory.fixed(Map.of("vm-1", vmOne));
+
+        assertEquals(Set.of("vm-1"), directory.getIdentifiers());
+        assertSame(vmOne, directory.get("vm-1"));
+        assertEquals(List.of(vmOne), directory.getAll(List.of("vm-1", "missing")));
+        assertTrue(directory.getPermissions().hasPermission(ObjectPermission.Type.READ, "vm-1"));
+        assertThrows(GuacamoleSecurityException.class, () -> directory.remove("vm-1"));
+    }
+
+    @Test
+    public void replaceKeepsSnapshotWhenConnectionsAreUnchanged() throws GuacamoleException {
+        final RefreshingConnectionDirectory directory =
+            RefreshingConnectionDirectory.fixed(Map.of("vm-1", vmOne));
+        final Map<String, Connection> current = directory.getConnections();
+
+        directory.replace(current);
+        assertSame(current, directory.getConnections());
+
+        directory.replace(Map.of("vm-2", vmTwo));
+        assertEquals(Set.of("vm-2"), directory.getIdentifiers());
+        assertTrue(directory.getPermissions().hasPermission(ObjectPermission.Type.READ, "vm-2"));
+        assertFalse(directory.getPermissions().hasPermission(ObjectPermission.Type.READ, "vm-1"));
+    }
+
+    @Test
+    public void replaceAbandonsRefreshStartedBeforeIt() throws Exception {
+        final CompletableFuture<Map<String, Connection>> refresh = new CompletableFuture<>();
+        final RefreshingConnectionDirectory directory = new RefreshingConnectionDirectory(
+            Map.of("vm-1", vmOne), MAX_AGE, () -> refresh, added -> { }, clock::get);
+        advancePastMaxAge();
+        directory.getIdentifiers();
+
+        directory.replace(Map.of("vm-2", vmTwo));
+        refresh.complete(Map.of("vm-1", vmOne));
+
+        assertEquals(Set.of("vm-2"), directory.getIdentifiers());
+        assertTrue(directory.getPermissions().hasPermission(ObjectPermission.Type.READ, "vm-2"));
+    }
+
+    @Test
+    public void staleDirectoryServesCurrentSetAndSwapsAfterRefresh() throws Exception {
+        final CompletableFuture<Map<String, Connection>> refresh = new CompletableFuture<>();
+        final AtomicInteger loads = new AtomicInteger();
+        final RefreshingConnectionDirectory directory = new RefreshingConnectionDirectory(
+            Map.of("vm-1", vmOne), MAX_AGE, () -> {
+                loads.incrementAndGet();
+                return refresh;
+            }, added -> { }, clock::get);
+        assertEquals(Set.of("vm-1"), directory.getIdentifiers());
+        assertEquals(0, loads.get());
+        advancePastMaxAge();
+
+        assertEquals(Set.of("vm-1"), directory.getIdentifiers());
+        assertEquals(Set.of("vm-1"), directory.getIdentifiers());
+        assertEquals(1, loads.get());
+
+        refresh.complete(Map.of("vm-1", vmOne, "vm-2", vmTwo));
+
+        assertEquals(Set.of("vm-1", "vm-2"), directory.getIdentifiers());
+        assertSame(vmTwo, directory.get("vm-2"));
+        assertTrue(directory.getPermissions().hasPermission(ObjectPermission.Type.READ, "vm-2"));
+    }
+
+    @Test
+    public void addedConnectionsAreReported() throws Exception {
+        final CompletableFuture<Map<String, Connection>> refresh = new CompletableFuture<>();
+        final List<Set<String>> reported = new ArrayList<>();
+        final RefreshingConnectionDirectory directory = new RefreshingConnectionDirectory(
+            Map.of("vm-1", vmOne), MAX_AGE, () -> refresh, reported::add, clock::get);
+        advancePastMaxAge();
+        directory.getIdentifiers();
+
+        refresh.complete(Map.of("vm-1", vmOne, "vm-2", vmTwo));
+        assertEquals(List.of(Set.of("vm-2")), reported);
+
+        directory.replace(Map.of("vm-2", vmTwo));
+        directory.replace(Map.of("vm-1", vmOne, "vm-2", vmTwo));
+        directory.replace(directory.getConnections());
+        assertEquals(List.of(Set.of("vm-2"), Set.of("vm-1")), reported);
+    }
+
+    @Test
+    public void failedRefreshKeepsPreviousConnections() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final RefreshingConnectionDirectory directory = new RefreshingConnectionDirectory(
+            Map.of("vm-1", vmOne), MAX_AGE, () -> {
+                loads.incrementAndGet();
+                return CompletableFuture.failedFuture(new GuacamoleException("API down"));
+            }, added -> { }, clock::get);
+        advancePastMaxAge();
+
+        assertSame(vmOne, directory.get("vm-1"));
+        assertEquals(1, loads.get());
+
+        // The failure is retried only after another maximum age.
+        assertSame(vmOne, directory.get("vm-1"));
+        assertEquals(1, loads.get());
+        advancePastMaxAge();
+        assertSame(vmOne, directory.get("vm-1"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void closeCancelsPendingRefresh() throws Exception {
+        final CompletableFuture<Map<String, Connection>> refresh = new CompletableFuture<>();
+        final RefreshingConnectionDirectory directory = new RefreshingConnectionDirectory(
+            Map.of("vm-1", vmOne), MAX_AGE, () -> refresh, added -> { }, clock::get);
+        advancePastMaxAge();
+        directory.getIdentifiers();
+
+        directory.close();
+
+        assertTrue(refresh.isCancelled());
+        assertNull(directory.get("vm-2"));
+        assertFalse(directory.getIdentifiers().contains("vm-2"));
+    }
+}
@@ -32,11 +32,14 @@ import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -159,4 +162,28 @@ public class TreUserContextTest {
         assertTrue(connectionDirectory.getIdentifiers().contains("conn2"));
         assertTrue(connectionDirectory.getIdentifiers().contains("conn3"));
     }
+
+    @Test
+    public void testUpdateReplacesUserAndConnections() throws GuacamoleException {
+        final AzureTREAuthenticatedUser renewedUser = mock(AzureTREAuthenticatedUser.class);
+        TreUserContext context = new TreUserContext(authProvider, connections);
+        context.init(authenticatedUser);
+
+        context.update(renewedUser, Map.of("conn2", mockConnection));
+
+        assertEquals(renewedUser, context.getUser());
+        assertEquals(Set.of("conn2"), context.getConnectionDirectory().getIdentifiers());
+        assertTrue(context.self().getConnectionPermissions().hasPermission(
+            org.apache.guacamole.net.auth.permission.ObjectPermission.Type.READ, "conn2"));
+    }
+
+    @Test
+    public void testInvalidateRunsHook() {
+        final AtomicInteger invalidations = new AtomicInteger();
+        TreUserContext context = new TreUserContext(authProvider, connections, invalidations::incrementAndGet);
+
+        context.invalidate();
+
+        assertEquals(1, invalidations.get());
+    }
 }